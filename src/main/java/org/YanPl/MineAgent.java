@@ -2,9 +2,13 @@ package org.YanPl;
 
 import org.YanPl.command.CLICommand;
 import org.YanPl.listener.ChatListener;
+import org.YanPl.listener.CommandViewListener;
+import org.YanPl.listener.PlayerQuitListener;
+import org.YanPl.listener.PluginChangeListener;
 import org.YanPl.manager.CLIManager;
 import org.YanPl.manager.ConfigManager;
 import org.YanPl.manager.WorkspaceIndexer;
+import org.YanPl.util.TokenCounter;
 import org.bstats.bukkit.Metrics;
 import org.bukkit.plugin.java.JavaPlugin;
 
@@ -21,9 +25,13 @@ public final class MineAgent extends JavaPlugin {
         // 初始化配置管理器
         configManager = new ConfigManager(this);
         
-        // 初始化工作区索引器并执行索引
+        // 初始化工作区索引器，索引在服务器完成启动后的第一个 tick 开始并在后台进行，不阻塞插件启用；
+        // 此时其他插件也都已注册好命令
         workspaceIndexer = new WorkspaceIndexer(this);
-        workspaceIndexer.indexAll();
+        getServer().getScheduler().runTask(this, workspaceIndexer::indexAll);
+
+        // 在后台加载分词词表，加载完成前使用近似估算
+        getServer().getScheduler().runTaskAsynchronously(this, () -> TokenCounter.load(this));
 
         // 初始化 CLI 管理器
         cliManager = new CLIManager(this);
@@ -35,6 +43,9 @@ public final class MineAgent extends JavaPlugin {
 
         // 注册监听器
         getServer().getPluginManager().registerEvents(new ChatListener(this), this);
+        getServer().getPluginManager().registerEvents(new PlayerQuitListener(this), this);
+        getServer().getPluginManager().registerEvents(new PluginChangeListener(this), this);
+        getServer().getPluginManager().registerEvents(new CommandViewListener(this), this);
 
         // bStats 统计
         int pluginId = 28567;
@@ -70,6 +81,9 @@ public final class MineAgent extends JavaPlugin {
         if (cliManager != null) {
             cliManager.shutdown();
         }
+        if (workspaceIndexer != null) {
+            workspaceIndexer.shutdown();
+        }
         getLogger().info("MineAgent 已禁用！");
     }
 
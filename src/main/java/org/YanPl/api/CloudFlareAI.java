@@ -1,14 +1,33 @@
 package org.YanPl.api;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import okhttp3.*;
+import okio.BufferedSink;
+import okio.BufferedSource;
 import org.YanPl.MineAgent;
 import org.YanPl.model.DialogueSession;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 /**
  * CloudFlare Workers AI API 集成
@@ -16,10 +35,13 @@ import java.util.concurrent.TimeUnit;
 public class CloudFlareAI {
     private static final String API_RESPONSES_URL = "https://api.cloudflare.com/client/v4/accounts/%s/ai/v1/responses";
     private static final String ACCOUNTS_URL = "https://api.cloudflare.com/client/v4/accounts";
+    /** 连续多少次续接失败后停用服务端对话状态（例如网关不支持 previous_response_id） */
+    private static final int MAX_CHAIN_FAILURES = 3;
     private final MineAgent plugin;
     private final OkHttpClient httpClient;
     private final Gson gson = new Gson();
     private String cachedAccountId = null;
+    private final AtomicInteger chainFailures = new AtomicInteger();
 
     public CloudFlareAI(MineAgent plugin) {
         this.plugin = plugin;
@@ -38,6 +60,7 @@ public class CloudFlareAI {
      * 关闭 HTTP 客户端，释放资源
      */
     public void shutdown() {
+        httpClient.dispatcher().cancelAll();
         httpClient.dispatcher().executorService().shutdown();
         httpClient.connectionPool().evictAll();
         if (httpClient.cache() != null) {
@@ -48,189 +71,823 @@ public class CloudFlareAI {
     }
 
     /**
-     * 自动获取 CloudFlare Account ID
+     * 构建获取 Account ID 的请求
      */
-    private String fetchAccountId() throws IOException {
-        if (cachedAccountId != null) return cachedAccountId;
-
-        String cfKey = plugin.getConfigManager().getCloudflareCfKey();
-        if (cfKey.isEmpty()) {
-            throw new IOException("错误: 请先在配置文件中设置 cloudflare.cf_key。");
-        }
-
-        Request request = new Request.Builder()
+    private Request buildAccountRequest(String cfKey) {
+        return new Request.Builder()
                 .url(ACCOUNTS_URL)
                 .addHeader("Authorization", "Bearer " + cfKey)
                 .get()
                 .build();
+    }
+
+    /**
+     * 从账户列表响应中解析并缓存 Account ID
+     */
+    private String parseAccountId(Response response) throws IOException {
+        if (!response.isSuccessful()) {
+            throw new IOException("获取 Account ID 失败: " + response.code() + " " + response.message());
+        }
+
+        String responseBody = response.body().string();
+        JsonObject resultJson = gson.fromJson(responseBody, JsonObject.class);
+
+        if (resultJson.has("result") && resultJson.getAsJsonArray("result").size() > 0) {
+            cachedAccountId = resultJson.getAsJsonArray("result").get(0).getAsJsonObject().get("id").getAsString();
+            return cachedAccountId;
+        } else {
+            throw new IOException("未找到关联的 CloudFlare 账户，请检查 cf_key 权限。");
+        }
+    }
+
+    /**
+     * 异步发送对话请求，只返回输出文本
+     *
+     * 返回的 Future 被取消时会立即中断底层的 HTTP 请求，不再占用连接和 Token。
+     *
+     * 启用服务端对话状态时，若会话已有可续接的 previous_response_id，只发送新增的消息；
+     * 服务端报告 id 不存在或已过期时自动回退为完整重放历史。
+     *
+     * @param systemPrompt   相对稳定的系统提示词，变化时需要完整重放
+     * @param contextPrompt  每轮可能变化的上下文（如相关命令），续接时只在变化后单独发送
+     * @param onDelta        流式模式下每收到一段输出文本就回调一次（在 HTTP 线程中执行），为 null 时使用非流式请求
+     * @param deadlineMillis 整个调用（包括读取响应体）的截止时间戳，小于等于 0 表示不限制
+     */
+    public CompletableFuture<String> chatAsync(DialogueSession session, String systemPrompt, String contextPrompt,
+                                               Consumer<String> onDelta, long deadlineMillis) {
+        return chatAsync(session, systemPrompt, contextPrompt, onDelta, deadlineMillis, true);
+    }
+
+    /**
+     * 异步发送对话请求，只返回输出文本
+     *
+     * @param stateful 为 false 时不使用服务端对话状态（不发送 store 与 previous_response_id），
+     *                 用于摘要等一次性请求，避免在服务端留下无用的对话记录
+     * @see #chatAsync(DialogueSession, String, String, Consumer, long)
+     */
+    public CompletableFuture<String> chatAsync(DialogueSession session, String systemPrompt, String contextPrompt,
+                                               Consumer<String> onDelta, long deadlineMillis, boolean stateful) {
+        CompletableFuture<ChatReply> reply = startChat(session, new ChatOptions(systemPrompt, contextPrompt, onDelta, deadlineMillis, false, stateful));
+        CompletableFuture<String> future = reply.thenApply(ChatReply::getText);
+        future.whenComplete((result, error) -> {
+            if (future.isCancelled()) {
+                reply.cancel(true);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * 异步发送对话请求，返回输出文本以及模型发起的函数调用
+     *
+     * @param functionTools 是否在请求中声明 FunctionTools 中的函数工具；为 false 时与 chatAsync 相同
+     * @see #chatAsync(DialogueSession, String, String, Consumer, long)
+     */
+    public CompletableFuture<ChatReply> chatWithToolsAsync(DialogueSession session, String systemPrompt, String contextPrompt,
+                                                           Consumer<String> onDelta, long deadlineMillis, boolean functionTools) {
+        return startChat(session, new ChatOptions(systemPrompt, contextPrompt, onDelta, deadlineMillis, functionTools, true));
+    }
+
+    private CompletableFuture<ChatReply> startChat(DialogueSession session, ChatOptions options) {
+        CompletableFuture<ChatReply> future = new CompletableFuture<>();
+        String cfKey = plugin.getConfigManager().getCloudflareCfKey();
+        if (cfKey == null || cfKey.isEmpty()) {
+            future.complete(new ChatReply("错误: 请先在配置文件中设置 CloudFlare cf_key。", Collections.emptyList()));
+            return future;
+        }
+
+        AtomicReference<Call> currentCall = new AtomicReference<>();
+        future.whenComplete((result, error) -> {
+            Call call = currentCall.get();
+            if (future.isCancelled() && call != null) {
+                call.cancel();
+            }
+        });
 
-        try (Response response = httpClient.newCall(request).execute()) {
+        if (cachedAccountId != null) {
+            sendChat(session, options, cachedAccountId, true, currentCall, future);
+            return future;
+        }
+
+        // 自动获取 Account ID
+        enqueue(httpClient.newCall(buildAccountRequest(cfKey)), currentCall, future, options.deadlineMillis, response -> {
+            String accountId;
+            try {
+                accountId = parseAccountId(response);
+            } catch (IOException e) {
+                plugin.getLogger().severe("[AI Error] Failed to fetch Account ID: " + e.getMessage());
+                throw e;
+            }
+            sendChat(session, options, accountId, true, currentCall, future);
+        });
+        return future;
+    }
+
+    private void sendChat(DialogueSession session, ChatOptions options, String accountId, boolean allowChain,
+                          AtomicReference<Call> currentCall, CompletableFuture<ChatReply> future) {
+        String systemPrompt = options.systemPrompt;
+        String contextPrompt = options.contextPrompt;
+        Consumer<String> onDelta = options.onDelta;
+        boolean stream = onDelta != null;
+        // getHistory 返回不可变快照，请求期间玩家继续对话也不会影响本次发送的内容
+        List<DialogueSession.Message> history = session.getHistory();
+        boolean stateful = options.stateful && isStatefulEnabled();
+        DialogueSession.ResponseChain chain = allowChain && stateful ? usableChain(session.getResponseChain(), history, systemPrompt) : null;
+        Request request = buildChatRequest(history, session.getSummary(), systemPrompt, contextPrompt, chain, accountId, stream,
+                options.functionTools, stateful);
+
+        enqueue(httpClient.newCall(request), currentCall, future, options.deadlineMillis, response -> {
+            plugin.getLogger().info("[AI Response] Code: " + response.code());
+            ResponseBody responseBody = response.body();
+
+            // 只有错误明确指向 previous_response_id（过期或不存在）时才回退为完整重放，
+            // 鉴权失败、输入过长等其他 4xx 错误重放也会同样失败，直接报告
+            if (chain != null && response.code() >= 400 && response.code() < 500 && response.code() != 429) {
+                String errorBody = responseBody != null ? responseBody.string() : "";
+                if (!isStaleChainError(errorBody)) {
+                    plugin.getLogger().warning("[AI Error] Response Body: " + errorBody);
+                    throw new IOException("AI 调用失败: " + response.code() + " - " + errorBody);
+                }
+                plugin.getLogger().info("[AI] 对话链续接失败 (" + response.code() + ")，改为完整重放历史: " + errorBody);
+                if (chainFailures.incrementAndGet() >= MAX_CHAIN_FAILURES) {
+                    plugin.getLogger().warning("[AI] 服务端多次拒绝 previous_response_id，本次运行期间停用服务端对话状态。");
+                }
+                session.resetResponseChain();
+                sendChat(session, options, accountId, false, currentCall, future);
+                return;
+            }
+
+            if (response.code() == 429) {
+                throw new RateLimitException("AI 调用被限流 (429)", parseRetryAfter(response.header("Retry-After")));
+            }
             if (!response.isSuccessful()) {
-                throw new IOException("获取 Account ID 失败: " + response.code() + " " + response.message());
+                String errorBody = responseBody != null ? responseBody.string() : "";
+                plugin.getLogger().warning("[AI Error] Response Body: " + errorBody);
+                throw new IOException("AI 调用失败: " + response.code() + " - " + errorBody);
+            }
+            if (responseBody == null) {
+                throw new IOException("AI 响应为空");
             }
 
-            String responseBody = response.body().string();
-            JsonObject resultJson = gson.fromJson(responseBody, JsonObject.class);
-            
-            if (resultJson.has("result") && resultJson.getAsJsonArray("result").size() > 0) {
-                cachedAccountId = resultJson.getAsJsonArray("result").get(0).getAsJsonObject().get("id").getAsString();
-                return cachedAccountId;
+            // 某些模型或网关不支持流式输出，会直接返回完整 JSON
+            String contentType = response.header("Content-Type");
+            ParsedResponse parsed;
+            if (!stream || contentType == null || !contentType.contains("text/event-stream")) {
+                // 直接从响应流中按需读取，拿到输出文本后不再解析剩余内容
+                JsonReader reader = new JsonReader(responseBody.charStream());
+                if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                    throw new IOException("无法解析 AI 响应结果: " + reader.peek());
+                }
+                parsed = readResponse(reader, options.functionTools);
+                if (parsed.text == null && parsed.calls.isEmpty()) {
+                    throw new IOException("无法解析 AI 响应结果: 响应中没有 output_text");
+                }
+                if (parsed.text == null) {
+                    parsed.text = "";
+                }
+                if (stream && !parsed.text.isEmpty()) {
+                    onDelta.accept(parsed.text);
+                }
             } else {
-                throw new IOException("未找到关联的 CloudFlare 账户，请检查 cf_key 权限。");
+                parsed = readEventStream(responseBody.source(), onDelta, options.functionTools);
             }
+
+            // 一次性请求不参与对话链
+            if (options.stateful) {
+                if (parsed.calls.isEmpty()) {
+                    recordChain(session, history, systemPrompt, contextPrompt, chain, parsed.id, parsed.text);
+                } else {
+                    // 含函数调用的回复在历史中占多条记录，下一轮完整重放，不做续接
+                    session.resetResponseChain();
+                }
+            }
+            future.complete(new ChatReply(parsed.text, parsed.calls));
+        });
+    }
+
+    /**
+     * 错误内容是否指向 previous_response_id，例如 previous_response_not_found 或该参数无效
+     */
+    private static boolean isStaleChainError(String errorBody) {
+        return errorBody != null && errorBody.toLowerCase().contains("previous_response");
+    }
+
+    /**
+     * 判断会话的对话链能否用于本次请求：提示词未变、上次回复已按原样写入历史且有新增消息
+     */
+    private DialogueSession.ResponseChain usableChain(DialogueSession.ResponseChain chain, List<DialogueSession.Message> history, String systemPrompt) {
+        if (chain == null || !isStatefulEnabled()) return null;
+        if (chain.getSystemPromptHash() != Objects.hashCode(systemPrompt)) return null;
+        if (chain.getChainedMessages() >= plugin.getConfigManager().getStatefulMaxChainMessages()) return null;
+
+        int replyIndex = chain.getSyncedCount();
+        if (replyIndex < 0 || history.size() <= replyIndex + 1) return null;
+        DialogueSession.Message reply = history.get(replyIndex);
+        if (!"assistant".equals(reply.getRole()) || !reply.getContent().equals(chain.getReply())) return null;
+        return chain;
+    }
+
+    /**
+     * 请求成功后保存新的对话链状态，供下一轮续接
+     */
+    private void recordChain(DialogueSession session, List<DialogueSession.Message> history, String systemPrompt, String contextPrompt,
+                             DialogueSession.ResponseChain previous, String responseId, String reply) {
+        if (!isStatefulEnabled() || responseId == null) {
+            session.resetResponseChain();
+            return;
         }
+        if (previous != null) {
+            chainFailures.set(0);
+        }
+        int chained = previous == null ? 0 : previous.getChainedMessages() + history.size() - previous.getSyncedCount() - 1;
+        session.setResponseChain(new DialogueSession.ResponseChain(
+                responseId, history.size(), Objects.hashCode(systemPrompt), contextPrompt, reply, chained));
+    }
+
+    private boolean isStatefulEnabled() {
+        return plugin.getConfigManager().isStatefulConversationEnabled() && chainFailures.get() < MAX_CHAIN_FAILURES;
     }
 
     /**
-     * 发送对话请求
+     * 解析 Retry-After 头（秒），缺省时等待 2 秒
      */
-    public String chat(DialogueSession session, String systemPrompt) throws IOException {
-        String cfKey = plugin.getConfigManager().getCloudflareCfKey();
-        String model = plugin.getConfigManager().getCloudflareModel();
+    private long parseRetryAfter(String header) {
+        if (header != null) {
+            try {
+                return Math.max(1L, Long.parseLong(header.trim())) * 1000L;
+            } catch (NumberFormatException ignored) {}
+        }
+        return 2000L;
+    }
 
-        if (cfKey == null || cfKey.isEmpty()) {
-            return "错误: 请先在配置文件中设置 CloudFlare cf_key。";
+    /**
+     * 以异步方式执行请求，并把结果或异常转交给 future
+     */
+    private void enqueue(Call call, AtomicReference<Call> currentCall, CompletableFuture<?> future,
+                         long deadlineMillis, ResponseHandler handler) {
+        currentCall.set(call);
+        // 在两次请求之间被取消
+        if (future.isDone()) {
+            call.cancel();
+            return;
+        }
+
+        if (deadlineMillis > 0) {
+            long remaining = deadlineMillis - System.currentTimeMillis();
+            if (remaining <= 0) {
+                future.completeExceptionally(new InterruptedIOException("timeout"));
+                return;
+            }
+            call.timeout().deadline(remaining, TimeUnit.MILLISECONDS);
         }
 
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (Response r = response) {
+                    handler.handle(r);
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+    }
+
+    @FunctionalInterface
+    private interface ResponseHandler {
+        void handle(Response response) throws IOException;
+    }
+
+    /**
+     * 逐行解析 SSE 事件流，累积 output_text 增量
+     *
+     * @param collectCalls 是否收集函数调用（来自 output_item.done 事件，缺失时以 completed 事件中的完整结果为准）
+     */
+    private ParsedResponse readEventStream(BufferedSource source, Consumer<String> onDelta, boolean collectCalls) throws IOException {
+        StringBuilder text = new StringBuilder();
+        String completedText = null;
+        List<FunctionCall> calls = new ArrayList<>();
+        List<FunctionCall> completedCalls = Collections.emptyList();
+        String responseId = null;
+
+        String line;
+        while ((line = source.readUtf8Line()) != null) {
+            if (!line.startsWith("data:")) continue;
+            String data = line.substring(5).trim();
+            if (data.isEmpty()) continue;
+            if (data.equals("[DONE]")) break;
+
+            StreamEvent event;
+            try {
+                event = readStreamEvent(data, collectCalls);
+            } catch (IOException | IllegalStateException | NumberFormatException e) {
+                plugin.getLogger().warning("[AI Stream] 无法解析事件: " + data);
+                continue;
+            }
+            if (event.response != null && event.response.id != null) {
+                responseId = event.response.id;
+            }
+            if (event.type == null) continue;
+
+            switch (event.type) {
+                case "response.output_text.delta":
+                    if (event.delta == null) break;
+                    text.append(event.delta);
+                    onDelta.accept(event.delta);
+                    break;
+                case "response.output_item.done":
+                    if (event.call != null) {
+                        calls.add(event.call);
+                    }
+                    break;
+                case "response.completed":
+                    if (event.response != null) {
+                        completedText = event.response.text;
+                        completedCalls = event.response.calls;
+                    }
+                    break;
+                case "response.failed":
+                case "error":
+                    throw new IOException("AI 流式调用失败: " + data);
+                default:
+                    break;
+            }
+        }
+
+        ParsedResponse result = new ParsedResponse();
+        result.id = responseId;
+        result.calls = calls.isEmpty() ? completedCalls : calls;
+        // 没有收到任何增量时，以 completed 事件中的完整结果为准
+        if (text.length() == 0 && completedText != null) {
+            onDelta.accept(completedText);
+            result.text = completedText;
+            return result;
+        }
+        if (text.length() == 0 && result.calls.isEmpty()) {
+            throw new IOException("AI 流式响应中没有任何输出文本");
+        }
+        result.text = text.toString();
+        return result;
+    }
+
+    /**
+     * 解析单个 SSE 事件，只读取 type、delta 与 response 字段
+     *
+     * 读到 response 对象后即停止（type 总是排在它前面），避免为每个增量事件构建完整的 JSON 树。
+     * 收集函数调用时还会读取 output_item 事件中的 item。
+     */
+    private StreamEvent readStreamEvent(String data, boolean collectCalls) throws IOException {
+        StreamEvent event = new StreamEvent();
+        JsonReader reader = new JsonReader(new StringReader(data));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("type".equals(name)) {
+                event.type = nextStringOrNull(reader);
+            } else if ("delta".equals(name)) {
+                event.delta = nextStringOrNull(reader);
+            } else if ("response".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                event.response = readResponse(reader, collectCalls);
+                break;
+            } else if (collectCalls && "item".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                OutputItem item = readOutputItem(reader);
+                event.call = item.call;
+            } else {
+                reader.skipValue();
+            }
+        }
+        return event;
+    }
+
+    /**
+     * 构建 /ai/v1/responses 请求
+     */
+    private Request buildChatRequest(List<DialogueSession.Message> history, String summary, String systemPrompt, String contextPrompt,
+                                     DialogueSession.ResponseChain chain, String accountId, boolean stream, boolean functionTools,
+                                     boolean store) {
+        String cfKey = plugin.getConfigManager().getCloudflareCfKey();
+        String model = plugin.getConfigManager().getCloudflareModel();
+
         if (model == null || model.isEmpty()) {
             model = "@cf/openai/gpt-oss-120b";
             plugin.getLogger().warning("[AI] 模型名称为空，已回退到默认值: " + model);
         }
 
-        // 自动获取 Account ID
-        String accountId;
-        try {
-            accountId = fetchAccountId();
-        } catch (IOException e) {
-            plugin.getLogger().severe("[AI Error] Failed to fetch Account ID: " + e.getMessage());
-            throw e;
-        }
-
         // 使用 /ai/v1/responses 接口，这是 gpt-oss-120b 推荐的接口
         String url = String.format(API_RESPONSES_URL, accountId);
         plugin.getLogger().info("[AI Request] URL: " + url);
 
-        JsonArray messagesArray = new JsonArray();
+        List<DialogueSession.Message> input = new ArrayList<>();
+        List<DialogueSession.Message> messages;
 
-        // 1. 添加系统提示词 (作为 system 角色消息加入 input 数组)
-        // 注意：某些模型可能不支持 instructions 字段，或者该字段导致了 token 错误
-        // 我们尝试标准的 system message 方式
-        if (systemPrompt != null && !systemPrompt.isEmpty()) {
-            JsonObject systemMsg = new JsonObject();
-            systemMsg.addProperty("role", "system");
-            systemMsg.addProperty("content", systemPrompt);
-            messagesArray.add(systemMsg);
+        if (chain != null) {
+            // 续接服务端对话链：系统提示词与之前的历史已保存在服务端，只发送变化的上下文和新增消息
+            if (contextPrompt != null && !contextPrompt.isEmpty() && !contextPrompt.equals(chain.getContextPrompt())) {
+                input.add(new DialogueSession.Message("system", contextPrompt));
+            }
+            messages = history.subList(chain.getSyncedCount() + 1, history.size());
+        } else {
+            // 1. 添加系统提示词 (作为 system 角色消息加入 input 数组)
+            // 注意：某些模型可能不支持 instructions 字段，或者该字段导致了 token 错误
+            // 我们尝试标准的 system message 方式
+            String fullPrompt = (systemPrompt == null ? "" : systemPrompt) + (contextPrompt == null ? "" : contextPrompt);
+            if (!fullPrompt.isEmpty()) {
+                input.add(new DialogueSession.Message("system", fullPrompt));
+            }
+            // 较早对话的摘要作为一条单独的消息放在历史之前
+            if (summary != null && !summary.isEmpty()) {
+                input.add(new DialogueSession.Message("system", "以下是本次会话较早对话的摘要：\n" + summary));
+            }
+            messages = history;
+        }
+
+        // 函数调用与其结果必须成对出现：裁剪历史可能留下找不到调用的结果，被打断或忽略的调用则没有结果
+        Set<String> callIds = new HashSet<>();
+        Set<String> outputIds = new HashSet<>();
+        for (DialogueSession.Message msg : messages) {
+            if (msg.isFunctionCall()) {
+                callIds.add(msg.getCallId());
+            } else if (msg.isFunctionCallOutput()) {
+                outputIds.add(msg.getCallId());
+            }
         }
 
         // 2. 添加历史记录 (role: user/assistant)
-        for (DialogueSession.Message msg : session.getHistory()) {
+        for (DialogueSession.Message msg : messages) {
             String content = msg.getContent();
             String role = msg.getRole();
             if (content == null || content.isEmpty() || role == null || role.isEmpty()) continue;
             
             // 之前的逻辑跳过了 system 消息，现在我们需要确保不重复添加
             if ("system".equalsIgnoreCase(role)) continue;
-            
-            JsonObject m = new JsonObject();
-            m.addProperty("role", role);
-            m.addProperty("content", content);
-            messagesArray.add(m);
+            if (msg.isFunctionCallOutput() && !callIds.contains(msg.getCallId())) continue;
+
+            input.add(msg);
+            if (msg.isFunctionCall() && !outputIds.contains(msg.getCallId())) {
+                input.add(DialogueSession.Message.functionCallOutput(msg.getCallId(), "未执行：该调用已被取消或忽略"));
+            }
         }
 
         // 如果没有任何消息，至少添加一条占位符消息
-        if (messagesArray.size() == 0) {
-            JsonObject m = new JsonObject();
-            m.addProperty("role", "user");
-            m.addProperty("content", "Hello");
-            messagesArray.add(m);
-        }
-
-        // 构建符合 /ai/v1/responses 接口要求的请求体
-        JsonObject bodyJson = new JsonObject();
-        bodyJson.addProperty("model", model);
-        bodyJson.add("input", messagesArray);
-        
+        if (input.isEmpty()) {
+            input.add(new DialogueSession.Message("user", "Hello"));
+        }
+
         // 移除 instructions 字段，改用 system message
         // if (systemPrompt != null && !systemPrompt.isEmpty()) {
         //    bodyJson.addProperty("instructions", systemPrompt);
         // }
-        
-        // 如果是 gpt-oss 模型，添加推理参数
-        if (model.contains("gpt-oss")) {
-            JsonObject reasoning = new JsonObject();
-            reasoning.addProperty("effort", "medium");
-            bodyJson.add("reasoning", reasoning);
-        }
-        
-        String bodyString = gson.toJson(bodyJson);
-
-        plugin.getLogger().info("[AI Request] Model: " + model);
-        // 打印部分 Payload 以供调试
-        if (bodyString.length() > 1000) {
-            plugin.getLogger().info("[AI Request] Payload (Partial): " + bodyString.substring(0, 1000) + "...");
-        } else {
-            plugin.getLogger().info("[AI Request] Payload: " + bodyString);
-        }
 
-        RequestBody body = RequestBody.create(
-                bodyString,
-                MediaType.get("application/json; charset=utf-8")
-        );
+        ChatRequestBody body = new ChatRequestBody(model, input,
+                store, chain != null ? chain.getResponseId() : null,
+                model.contains("gpt-oss"), stream, functionTools ? FunctionTools.getDefinitionsJson() : null);
+
+        long chars = 0;
+        for (DialogueSession.Message msg : input) {
+            chars += msg.getContent().length();
+        }
+        plugin.getLogger().info("[AI Request] Model: " + model + ", " + (chain != null ? "续接对话链" : "完整历史")
+                + (functionTools ? ", 函数工具" : "") + ", " + input.size() + " 条消息, " + chars + " chars");
 
-        Request request = new Request.Builder()
+        return new Request.Builder()
                 .url(url)
                 .addHeader("Authorization", "Bearer " + cfKey)
                 .post(body)
                 .build();
+    }
 
-        try (Response response = httpClient.newCall(request).execute()) {
-            String responseBody = response.body() != null ? response.body().string() : "";
-            plugin.getLogger().info("[AI Response] Code: " + response.code());
+    /**
+     * /ai/v1/responses 请求体，发送时用 JsonWriter 直接写入连接，不在内存中拼出完整的 JSON 字符串
+     */
+    private static class ChatRequestBody extends RequestBody {
+        private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
 
-            if (!response.isSuccessful()) {
-                plugin.getLogger().warning("[AI Error] Response Body: " + responseBody);
-                throw new IOException("AI 调用失败: " + response.code() + " - " + responseBody);
+        private final String model;
+        private final List<DialogueSession.Message> input;
+        private final boolean store;
+        private final String previousResponseId;
+        private final boolean reasoning;
+        private final boolean stream;
+        private final String toolsJson;
+
+        private ChatRequestBody(String model, List<DialogueSession.Message> input, boolean store,
+                                String previousResponseId, boolean reasoning, boolean stream, String toolsJson) {
+            this.model = model;
+            this.input = input;
+            this.store = store;
+            this.previousResponseId = previousResponseId;
+            this.reasoning = reasoning;
+            this.stream = stream;
+            this.toolsJson = toolsJson;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return JSON;
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            // JsonWriter 逐段写出，套一层缓冲以免每段都单独编码；不关闭 writer，sink 由 OkHttp 负责关闭
+            JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(sink.outputStream(), StandardCharsets.UTF_8), 8192));
+            writer.beginObject();
+            writer.name("model").value(model);
+            writer.name("input").beginArray();
+            for (DialogueSession.Message msg : input) {
+                // 历史消息的 JSON 已在首次发送时缓存，重放时原样写出
+                writer.jsonValue(msg.getSerializedJson());
+            }
+            writer.endArray();
+            if (toolsJson != null) {
+                writer.name("tools").jsonValue(toolsJson);
             }
+            if (store) {
+                writer.name("store").value(true);
+            }
+            if (previousResponseId != null) {
+                writer.name("previous_response_id").value(previousResponseId);
+            }
+            // 如果是 gpt-oss 模型，添加推理参数
+            if (reasoning) {
+                writer.name("reasoning").beginObject().name("effort").value("medium").endObject();
+            }
+            if (stream) {
+                writer.name("stream").value(true);
+            }
+            writer.endObject();
+            writer.flush();
+        }
+    }
 
-            JsonObject responseJson = gson.fromJson(responseBody, JsonObject.class);
-            
-            // 1. 处理新的 /ai/v1/responses (Responses API) 格式
-            // 格式: { "output": [ { "type": "message", "content": [ { "type": "output_text", "text": "..." } ] } ] }
-            if (responseJson.has("output") && responseJson.get("output").isJsonArray()) {
-                JsonArray outputArray = responseJson.getAsJsonArray("output");
-                for (int i = 0; i < outputArray.size(); i++) {
-                    JsonObject item = outputArray.get(i).getAsJsonObject();
-                    if (item.has("type") && "message".equals(item.get("type").getAsString())) {
-                        if (item.has("content") && item.get("content").isJsonArray()) {
-                            JsonArray contents = item.getAsJsonArray("content");
-                            for (int j = 0; j < contents.size(); j++) {
-                                JsonObject contentObj = contents.get(j).getAsJsonObject();
-                                if (contentObj.has("type") && "output_text".equals(contentObj.get("type").getAsString())) {
-                                    return contentObj.get("text").getAsString();
-                                }
-                            }
-                        }
+    /**
+     * 从 Responses API 的响应对象中读取输出文本与响应 id
+     *
+     * reader 需位于对象开头。不收集函数调用时，拿到第一个 output_text 后立即返回，剩余内容不再解析，
+     * 因此 reader 之后不能再继续使用。响应 id 在标准格式中排在最前面，会先于输出文本被读到。
+     *
+     * @param collectCalls 是否读完整个 output 数组并收集其中的函数调用
+     */
+    private ParsedResponse readResponse(JsonReader reader, boolean collectCalls) throws IOException {
+        ParsedResponse parsed = new ParsedResponse();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            switch (name) {
+                case "id":
+                    parsed.id = nextStringOrNull(reader);
+                    break;
+                // 1. 处理新的 /ai/v1/responses (Responses API) 格式
+                // 格式: { "output": [ { "type": "message", "content": [ { "type": "output_text", "text": "..." } ] } ] }
+                case "output":
+                    if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+                        reader.skipValue();
+                        break;
                     }
-                }
+                    readOutput(reader, parsed, collectCalls);
+                    if (!collectCalls && parsed.text != null) return parsed;
+                    break;
+                // 2. 处理标准 /run 接口返回格式 (备选)，某些模型可能返回 text 而不是 response
+                case "result":
+                    if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                        reader.skipValue();
+                        break;
+                    }
+                    parsed.text = readResultText(reader);
+                    if (parsed.text != null) return parsed;
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
             }
+        }
+        reader.endObject();
+        return parsed;
+    }
 
-            // 2. 处理标准 /run 接口返回格式 (备选)
-            if (responseJson.has("result")) {
-                JsonObject result = responseJson.getAsJsonObject("result");
-                if (result.has("response")) {
-                    return result.get("response").getAsString();
-                }
+    /**
+     * 读取 output 数组：记录第一个 output_text，并按顺序收集函数调用
+     *
+     * 不收集函数调用时找到输出文本即返回，数组剩余部分不再读取。
+     */
+    private void readOutput(JsonReader reader, ParsedResponse parsed, boolean collectCalls) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
             }
+            OutputItem item = readOutputItem(reader);
+            if (item.call != null && collectCalls) {
+                parsed.calls.add(item.call);
+            } else if (item.text != null && parsed.text == null) {
+                parsed.text = item.text;
+                if (!collectCalls) return;
+            }
+        }
+        reader.endArray();
+    }
 
-            // 备选格式处理 (某些模型可能返回不同的 key)
-            if (responseJson.has("result")) {
-                JsonObject result = responseJson.getAsJsonObject("result");
-                if (result.has("text")) {
-                    return result.get("text").getAsString();
-                }
+    /**
+     * 读取 output 中的单个条目：message 条目取第一个 output_text，function_call 条目取调用信息
+     */
+    private OutputItem readOutputItem(JsonReader reader) throws IOException {
+        String type = null;
+        String text = null;
+        String callId = null;
+        String name = null;
+        String arguments = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "type":
+                    type = nextStringOrNull(reader);
+                    break;
+                case "call_id":
+                    callId = nextStringOrNull(reader);
+                    break;
+                case "name":
+                    name = nextStringOrNull(reader);
+                    break;
+                case "arguments":
+                    arguments = nextStringOrNull(reader);
+                    break;
+                case "content":
+                    if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+                        reader.skipValue();
+                        break;
+                    }
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        String contentText = readContentText(reader);
+                        if (text == null) text = contentText;
+                    }
+                    reader.endArray();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
             }
+        }
+        reader.endObject();
+
+        OutputItem item = new OutputItem();
+        if ("function_call".equals(type) && callId != null && name != null) {
+            item.call = new FunctionCall(callId, name, arguments);
+        } else {
+            item.text = text;
+        }
+        return item;
+    }
+
+    /**
+     * 读取单个 content 对象，类型为 output_text 时返回其文本（推理内容等其他类型返回 null）
+     */
+    private String readContentText(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+        String type = null;
+        String text = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("type".equals(name)) {
+                type = nextStringOrNull(reader);
+            } else if ("text".equals(name) && (type == null || "output_text".equals(type))) {
+                text = nextStringOrNull(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return "output_text".equals(type) ? text : null;
+    }
+
+    private String readResultText(JsonReader reader) throws IOException {
+        String response = null;
+        String text = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("response".equals(name)) {
+                response = nextStringOrNull(reader);
+            } else if ("text".equals(name)) {
+                text = nextStringOrNull(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return response != null ? response : text;
+    }
+
+    private String nextStringOrNull(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+            return reader.nextString();
+        }
+        reader.skipValue();
+        return null;
+    }
+
+    /**
+     * 响应中需要的字段
+     */
+    private static class ParsedResponse {
+        private String text;
+        private String id;
+        private List<FunctionCall> calls = new ArrayList<>();
+    }
+
+    private static class OutputItem {
+        private String text;
+        private FunctionCall call;
+    }
+
+    private static class StreamEvent {
+        private String type;
+        private String delta;
+        private ParsedResponse response;
+        private FunctionCall call;
+    }
+
+    /**
+     * 单次对话请求的参数
+     */
+    private static class ChatOptions {
+        private final String systemPrompt;
+        private final String contextPrompt;
+        private final Consumer<String> onDelta;
+        private final long deadlineMillis;
+        private final boolean functionTools;
+        /** 是否使用服务端对话状态（store / previous_response_id） */
+        private final boolean stateful;
+
+        private ChatOptions(String systemPrompt, String contextPrompt, Consumer<String> onDelta, long deadlineMillis,
+                            boolean functionTools, boolean stateful) {
+            this.systemPrompt = systemPrompt;
+            this.contextPrompt = contextPrompt;
+            this.onDelta = onDelta;
+            this.deadlineMillis = deadlineMillis;
+            this.functionTools = functionTools;
+            this.stateful = stateful;
+        }
+    }
+
+    /**
+     * 一次对话的结果：输出文本（只有函数调用时为空字符串）与按顺序排列的函数调用
+     */
+    public static class ChatReply {
+        private final String text;
+        private final List<FunctionCall> calls;
+
+        public ChatReply(String text, List<FunctionCall> calls) {
+            this.text = text;
+            this.calls = Collections.unmodifiableList(calls);
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public List<FunctionCall> getCalls() {
+            return calls;
+        }
+    }
+
+    /**
+     * 模型发起的函数调用
+     */
+    public static class FunctionCall {
+        private final String callId;
+        private final String name;
+        private final String arguments;
+
+        public FunctionCall(String callId, String name, String arguments) {
+            this.callId = callId;
+            this.name = name;
+            this.arguments = arguments;
+        }
+
+        public String getCallId() {
+            return callId;
+        }
+
+        public String getName() {
+            return name;
+        }
 
-            throw new IOException("无法解析 AI 响应结果: " + responseBody);
+        /**
+         * JSON 格式的参数
+         */
+        public String getArguments() {
+            return arguments;
         }
     }
 }
@@ -0,0 +1,192 @@
+package org.YanPl.api;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import org.YanPl.util.ToolCallLexer.ToolCall;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 原生函数调用模式下声明给模型的工具（Responses API 的 tools 字段）
+ *
+ * 模型返回的结构化调用会被转换为与文本模式相同的 ToolCall，由 CLIManager 统一执行。
+ */
+public final class FunctionTools {
+    private static final String DEFINITIONS_JSON = buildDefinitions();
+
+    private FunctionTools() {}
+
+    /**
+     * tools 数组的 JSON，类加载时构建一次，每次请求原样写出
+     */
+    public static String getDefinitionsJson() {
+        return DEFINITIONS_JSON;
+    }
+
+    /**
+     * 将模型返回的函数调用转换为 ToolCall；参数无法解析时按空参数处理，由具体工具给出错误提示
+     */
+    public static ToolCall toToolCall(CloudFlareAI.FunctionCall call) {
+        String name = call.getName() == null ? "" : call.getName().toLowerCase(Locale.ROOT);
+        JsonObject args = parseArguments(call.getArguments());
+        String text;
+        switch (name) {
+            case "run":
+                text = getString(args, "command");
+                break;
+            case "get":
+                text = getString(args, "file");
+                break;
+            case "lookup":
+                text = getString(args, "keyword");
+                break;
+            case "search":
+                String query = getString(args, "query");
+                text = args.has("widely") && isTrue(args.get("widely")) ? "widely " + query : query;
+                break;
+            case "choose":
+                text = String.join(",", getStringList(args, "options"));
+                break;
+            case "batch":
+                text = String.join("\n", getStringList(args, "commands"));
+                break;
+            default:
+                text = "";
+                break;
+        }
+        return new ToolCall("#" + name, "#" + call.getName(), text.trim(), call.getCallId());
+    }
+
+    private static JsonObject parseArguments(String arguments) {
+        if (arguments == null || arguments.isEmpty()) return new JsonObject();
+        try {
+            JsonElement element = JsonParser.parseString(arguments);
+            return element.isJsonObject() ? element.getAsJsonObject() : new JsonObject();
+        } catch (JsonParseException e) {
+            return new JsonObject();
+        }
+    }
+
+    private static String getString(JsonObject args, String key) {
+        JsonElement value = args.get(key);
+        return value != null && value.isJsonPrimitive() ? value.getAsString() : "";
+    }
+
+    private static boolean isTrue(JsonElement value) {
+        return value.isJsonPrimitive() && "true".equalsIgnoreCase(value.getAsString());
+    }
+
+    private static List<String> getStringList(JsonObject args, String key) {
+        List<String> list = new ArrayList<>();
+        JsonElement value = args.get(key);
+        if (value instanceof JsonArray) {
+            for (JsonElement item : (JsonArray) value) {
+                if (item.isJsonPrimitive()) list.add(item.getAsString());
+            }
+        } else if (value != null && value.isJsonPrimitive()) {
+            list.add(value.getAsString());
+        }
+        return list;
+    }
+
+    private static String buildDefinitions() {
+        StringWriter out = new StringWriter();
+        try (JsonWriter writer = new JsonWriter(out)) {
+            writer.beginArray();
+            function(writer, "run", "以玩家身份执行一条服务器命令，执行前需要玩家确认。每轮只能调用一次。",
+                    "command", "要执行的命令，不带开头的斜杠 /，例如 give @p apple");
+            function(writer, "get", "从预设目录获取插件预设文件的内容，执行不熟悉的第三方插件命令前应先查看。",
+                    "file", "预设文件名");
+            function(writer, "lookup", "按名称前缀或关键词查找服务器命令及其用法，传入 * 获取全部命令名。",
+                    "keyword", "命令名前缀或关键词");
+
+            writer.beginObject();
+            writer.name("type").value("function");
+            writer.name("name").value("search");
+            writer.name("description").value("搜索原版命令语法与 Minecraft Wiki 资料（优先查本地知识库），widely 为 true 时进行全网搜索。");
+            writer.name("parameters").beginObject();
+            writer.name("type").value("object");
+            writer.name("properties").beginObject();
+            writer.name("query").beginObject().name("type").value("string").name("description").value("搜索关键词").endObject();
+            writer.name("widely").beginObject().name("type").value("boolean").name("description").value("是否进行全网搜索").endObject();
+            writer.endObject();
+            writer.name("required").beginArray().value("query").endArray();
+            writer.endObject();
+            writer.endObject();
+
+            writer.beginObject();
+            writer.name("type").value("function");
+            writer.name("name").value("batch");
+            writer.name("description").value("批量执行多条服务器命令，玩家确认一次后分多个 tick 执行，结果汇总返回。每轮只能调用一次。");
+            writer.name("parameters").beginObject();
+            writer.name("type").value("object");
+            writer.name("properties").beginObject();
+            writer.name("commands").beginObject()
+                    .name("type").value("array")
+                    .name("items").beginObject().name("type").value("string").endObject()
+                    .name("description").value("要依次执行的命令，均不带开头的斜杠 /")
+                    .endObject();
+            writer.endObject();
+            writer.name("required").beginArray().value("commands").endArray();
+            writer.endObject();
+            writer.endObject();
+
+            writer.beginObject();
+            writer.name("type").value("function");
+            writer.name("name").value("choose");
+            writer.name("description").value("向玩家展示多个选项并等待其选择。每轮只能调用一次。");
+            writer.name("parameters").beginObject();
+            writer.name("type").value("object");
+            writer.name("properties").beginObject();
+            writer.name("options").beginObject()
+                    .name("type").value("array")
+                    .name("items").beginObject().name("type").value("string").endObject()
+                    .name("description").value("供玩家选择的选项")
+                    .endObject();
+            writer.endObject();
+            writer.name("required").beginArray().value("options").endArray();
+            writer.endObject();
+            writer.endObject();
+
+            function(writer, "over", "任务已完成，结束本轮对话。", null, null);
+            function(writer, "exit", "玩家想要退出 CLI 模式时调用。", null, null);
+            writer.endArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * 写出只有一个字符串参数（或没有参数）的函数声明
+     */
+    private static void function(JsonWriter writer, String name, String description, String param, String paramDescription) throws IOException {
+        writer.beginObject();
+        writer.name("type").value("function");
+        writer.name("name").value(name);
+        writer.name("description").value(description);
+        writer.name("parameters").beginObject();
+        writer.name("type").value("object");
+        writer.name("properties").beginObject();
+        if (param != null) {
+            writer.name(param).beginObject().name("type").value("string").name("description").value(paramDescription).endObject();
+        }
+        writer.endObject();
+        writer.name("required").beginArray();
+        if (param != null) {
+            writer.value(param);
+        }
+        writer.endArray();
+        writer.endObject();
+        writer.endObject();
+    }
+}
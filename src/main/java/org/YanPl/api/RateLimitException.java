@@ -0,0 +1,19 @@
+package org.YanPl.api;
+
+import java.io.IOException;
+
+/**
+ * CloudFlare 返回 429 时抛出的异常，携带建议的重试等待时间
+ */
+public class RateLimitException extends IOException {
+    private final long retryAfterMillis;
+
+    public RateLimitException(String message, long retryAfterMillis) {
+        super(message);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
@@ -1,6 +1,14 @@
 package org.YanPl.command;
 
 import org.YanPl.MineAgent;
+import org.YanPl.manager.AIRequestScheduler;
+import org.YanPl.manager.CLIManager;
+import org.YanPl.manager.HistoryCompactor;
+import org.YanPl.manager.KnowledgeBase;
+import org.YanPl.manager.SearchManager;
+import org.YanPl.util.SearchCache;
+import org.YanPl.util.TokenCounter;
+import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
@@ -88,30 +96,117 @@ public class CLICommand implements CommandExecutor, TabCompleter {
         if (args.length == 1) {
             // /cli reload
             plugin.getConfigManager().loadConfig();
-            plugin.getWorkspaceIndexer().indexAll();
-            player.sendMessage(ChatColor.GREEN + "配置与工作区已重新加载。");
+            reloadTokenizer();
+            player.sendMessage(ChatColor.GREEN + "配置已重新加载，工作区正在后台重新索引...");
+            reloadWorkspace(player);
         } else if (args.length == 2) {
             String target = args[1].toLowerCase();
             if (target.equals("workspace")) {
-                plugin.getWorkspaceIndexer().indexAll();
-                player.sendMessage(ChatColor.GREEN + "工作区索引已重新加载。");
+                player.sendMessage(ChatColor.GRAY + "工作区正在后台重新索引...");
+                reloadWorkspace(player);
+            } else if (target.equals("knowledge")) {
+                player.sendMessage(ChatColor.GRAY + "正在后台重新导入本地命令知识库...");
+                reloadKnowledge(player);
             } else if (target.equals("config")) {
                 plugin.getConfigManager().loadConfig();
+                reloadTokenizer();
                 player.sendMessage(ChatColor.GREEN + "配置文件已重新加载。");
             } else {
-                player.sendMessage(ChatColor.RED + "用法: /cli reload [workspace|config]");
+                player.sendMessage(ChatColor.RED + "用法: /cli reload [workspace|config|knowledge]");
             }
         }
     }
 
+    /**
+     * 在后台重新索引工作区，完成后回到主线程通知玩家
+     */
+    private void reloadWorkspace(Player player) {
+        plugin.getWorkspaceIndexer().indexAll().thenRun(() -> Bukkit.getScheduler().runTask(plugin, () -> {
+            if (player.isOnline()) {
+                player.sendMessage(ChatColor.GREEN + "工作区索引已重新加载。");
+            }
+        }));
+    }
+
+    /**
+     * 在后台重新导入本地命令知识库，完成后回到主线程通知玩家
+     */
+    private void reloadKnowledge(Player player) {
+        KnowledgeBase knowledge = plugin.getCliManager().getSearchManager().getKnowledgeBase();
+        knowledge.loadAsync(true).thenRun(() -> Bukkit.getScheduler().runTask(plugin, () -> {
+            if (player.isOnline()) {
+                player.sendMessage(ChatColor.GREEN + "本地命令知识库已重新导入，共 " + knowledge.size() + " 条。");
+            }
+        }));
+    }
+
+    /**
+     * 模型或词表可能已变化，在后台重新加载分词器
+     */
+    private void reloadTokenizer() {
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> TokenCounter.load(plugin));
+    }
+
     /**
      * 显示插件当前状态
      */
     private void handleStatus(Player player) {
         player.sendMessage(ChatColor.AQUA + "=== MineAgent 状态 ===");
+        if (!plugin.getWorkspaceIndexer().isReady()) {
+            player.sendMessage(ChatColor.WHITE + "工作区索引: " + ChatColor.YELLOW + "预热中");
+        }
         player.sendMessage(ChatColor.WHITE + "已索引命令: " + ChatColor.YELLOW + plugin.getWorkspaceIndexer().getIndexedCommands().size());
         player.sendMessage(ChatColor.WHITE + "已索引预设: " + ChatColor.YELLOW + plugin.getWorkspaceIndexer().getIndexedPresets().size());
+        player.sendMessage(ChatColor.WHITE + "可用命令: " + ChatColor.YELLOW + plugin.getWorkspaceIndexer().getCommandView(player).size()
+                + ChatColor.GRAY + " (权限视图缓存 " + plugin.getWorkspaceIndexer().getCommandViews().getViewCount() + " 个)");
         player.sendMessage(ChatColor.WHITE + "CLI 模式玩家: " + ChatColor.YELLOW + plugin.getCliManager().getActivePlayersCount());
+        AIRequestScheduler scheduler = plugin.getCliManager().getScheduler();
+        player.sendMessage(ChatColor.WHITE + "AI 请求: " + ChatColor.YELLOW + scheduler.getRunningCount() + "/" + plugin.getConfigManager().getMaxConcurrentRequests()
+                + ChatColor.WHITE + " 执行中, 排队 " + ChatColor.YELLOW + scheduler.getQueueDepth()
+                + ChatColor.WHITE + " (峰值 " + scheduler.getMaxQueueDepth() + ")");
+        player.sendMessage(ChatColor.WHITE + "排队等待: " + ChatColor.YELLOW + "平均 " + scheduler.getAverageWaitMillis() + "ms, 最长 " + scheduler.getMaxWaitMillis() + "ms"
+                + ChatColor.WHITE + " 限流重试: " + ChatColor.YELLOW + scheduler.getRateLimitRetries());
+        SearchCache searchCache = plugin.getCliManager().getSearchManager().getCache();
+        player.sendMessage(ChatColor.WHITE + "搜索缓存: " + ChatColor.YELLOW + searchCache.size() + " 条 (" + searchCache.getCurrentBytes() / 1024 + " KB)"
+                + ChatColor.WHITE + " 命中 " + ChatColor.YELLOW + searchCache.getHits()
+                + ChatColor.WHITE + " 未命中 " + ChatColor.YELLOW + searchCache.getMisses()
+                + ChatColor.WHITE + " 合并 " + ChatColor.YELLOW + searchCache.getCoalesced()
+                + ChatColor.WHITE + " 淘汰 " + ChatColor.YELLOW + searchCache.getEvictions());
+        KnowledgeBase knowledge = plugin.getCliManager().getSearchManager().getKnowledgeBase();
+        player.sendMessage(ChatColor.WHITE + "本地知识库: " + ChatColor.YELLOW + (knowledge.isLoaded()
+                ? knowledge.getLoadedVersion() + " (" + knowledge.size() + " 条)" : "未加载")
+                + ChatColor.WHITE + " 命中 " + ChatColor.YELLOW + knowledge.getHits()
+                + ChatColor.WHITE + " 未命中 " + ChatColor.YELLOW + knowledge.getMisses());
+        for (SearchManager.SourceStats stats : plugin.getCliManager().getSearchManager().getSourceStats()) {
+            player.sendMessage(ChatColor.WHITE + "搜索来源 " + stats.getName() + ": " + ChatColor.YELLOW + "平均 " + stats.getAverageMillis() + "ms"
+                    + ChatColor.WHITE + " 请求 " + ChatColor.YELLOW + stats.getRequests()
+                    + ChatColor.WHITE + " 失败 " + ChatColor.YELLOW + stats.getFailures()
+                    + ChatColor.WHITE + " 采用 " + ChatColor.YELLOW + stats.getWins());
+        }
+        HistoryCompactor compactor = plugin.getCliManager().getHistoryCompactor();
+        player.sendMessage(ChatColor.WHITE + "历史压缩: " + ChatColor.YELLOW + "预算 " + plugin.getConfigManager().getHistoryTokenBudget() + " Token"
+                + ChatColor.WHITE + " 摘要 " + ChatColor.YELLOW + compactor.getSummaries()
+                + ChatColor.WHITE + " (进行中 " + compactor.getRunningCount() + ", 失败 " + compactor.getFailures() + ")"
+                + ChatColor.WHITE + " 丢弃消息 " + ChatColor.YELLOW + compactor.getDroppedMessages());
+        CLIManager cliManager = plugin.getCliManager();
+        player.sendMessage(ChatColor.WHITE + "主线程耗时: " + ChatColor.YELLOW + "平均 " + cliManager.getAverageMainThreadMicros() + "μs/轮, 最长 "
+                + cliManager.getMaxMainThreadMicros() + "μs" + ChatColor.WHITE + " (" + cliManager.getMainThreadTurns() + " 轮)");
+        List<CLIManager.CommandWaitStats> waits = cliManager.getCommandWaitStats();
+        long runs = 0;
+        long syncRuns = 0;
+        for (CLIManager.CommandWaitStats stats : waits) {
+            runs += stats.getRuns();
+            syncRuns += stats.getSyncRuns();
+        }
+        player.sendMessage(ChatColor.WHITE + "命令反馈等待: " + ChatColor.YELLOW + runs + " 次"
+                + ChatColor.WHITE + " 免等待 " + ChatColor.YELLOW + syncRuns);
+        // 只列出平均等待最长的几个命令
+        waits.sort((a, b) -> Double.compare(b.getAverageTicks(), a.getAverageTicks()));
+        for (CLIManager.CommandWaitStats stats : waits.subList(0, Math.min(3, waits.size()))) {
+            player.sendMessage(ChatColor.WHITE + "  /" + stats.getCommand() + ": " + ChatColor.YELLOW + "平均 " + String.format("%.1f", stats.getAverageTicks()) + " tick, 最长 "
+                    + stats.getMaxTicks() + " tick" + ChatColor.WHITE + " (" + stats.getRuns() + " 次)");
+        }
+        player.sendMessage(ChatColor.WHITE + "Token 计数: " + ChatColor.YELLOW + TokenCounter.describe());
         player.sendMessage(ChatColor.WHITE + "插件版本: " + ChatColor.YELLOW + plugin.getDescription().getVersion());
     }
 
@@ -122,7 +217,7 @@ public class CLICommand implements CommandExecutor, TabCompleter {
                     .filter(s -> s.startsWith(args[0].toLowerCase()))
                     .collect(Collectors.toList());
         } else if (args.length == 2 && args[0].equalsIgnoreCase("reload")) {
-            return Arrays.asList("workspace", "config").stream()
+            return Arrays.asList("workspace", "config", "knowledge").stream()
                     .filter(s -> s.startsWith(args[1].toLowerCase()))
                     .collect(Collectors.toList());
         }
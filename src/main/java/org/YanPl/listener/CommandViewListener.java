@@ -0,0 +1,32 @@
+package org.YanPl.listener;
+
+import org.YanPl.MineAgent;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerCommandSendEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+/**
+ * 命令视图监听器，负责在玩家权限变化或离线时作废其命令视图缓存
+ *
+ * 服务端在玩家权限重新计算（recalculatePermissions，权限插件修改权限或切换世界时调用）后会重新发送命令列表，
+ * 并触发 PlayerCommandSendEvent；进入服务器时同样会触发。
+ */
+public class CommandViewListener implements Listener {
+    private final MineAgent plugin;
+
+    public CommandViewListener(MineAgent plugin) {
+        this.plugin = plugin;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onCommandSend(PlayerCommandSendEvent event) {
+        plugin.getWorkspaceIndexer().getCommandViews().invalidate(event.getPlayer().getUniqueId());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        plugin.getWorkspaceIndexer().getCommandViews().invalidate(event.getPlayer().getUniqueId());
+    }
+}
@@ -0,0 +1,22 @@
+package org.YanPl.listener;
+
+import org.YanPl.MineAgent;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+/**
+ * 玩家退出监听器，负责在玩家离线时中断其 AI 请求
+ */
+public class PlayerQuitListener implements Listener {
+    private final MineAgent plugin;
+
+    public PlayerQuitListener(MineAgent plugin) {
+        this.plugin = plugin;
+    }
+
+    @EventHandler
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        plugin.getCliManager().handleQuit(event.getPlayer());
+    }
+}
@@ -0,0 +1,36 @@
+package org.YanPl.listener;
+
+import org.YanPl.MineAgent;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.server.PluginDisableEvent;
+import org.bukkit.event.server.PluginEnableEvent;
+import org.bukkit.event.server.ServerLoadEvent;
+
+/**
+ * 插件变化监听器，负责在插件启用、停用（例如通过 PlugMan）或服务器重载后增量更新命令索引
+ */
+public class PluginChangeListener implements Listener {
+    private final MineAgent plugin;
+
+    public PluginChangeListener(MineAgent plugin) {
+        this.plugin = plugin;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPluginEnable(PluginEnableEvent event) {
+        plugin.getWorkspaceIndexer().onPluginEnabled(event.getPlugin());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPluginDisable(PluginDisableEvent event) {
+        if (event.getPlugin() == plugin) return;
+        plugin.getWorkspaceIndexer().onPluginDisabled(event.getPlugin());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onServerLoad(ServerLoadEvent event) {
+        plugin.getWorkspaceIndexer().resyncCommands();
+    }
+}
@@ -0,0 +1,287 @@
+package org.YanPl.manager;
+
+import org.YanPl.MineAgent;
+import org.YanPl.api.RateLimitException;
+import org.bukkit.Bukkit;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+
+/**
+ * AI 请求调度器，限制全局并发数，并在玩家之间轮询公平地分配请求名额
+ *
+ * 每名玩家同一时间最多只有一个请求在执行，其余请求按玩家排队；
+ * 被 CloudFlare 限流 (429) 的请求会在等待后自动重新排队，而不是直接失败。
+ */
+public class AIRequestScheduler {
+    private static final int MAX_RATE_LIMIT_RETRIES = 3;
+
+    private final MineAgent plugin;
+    private final Map<UUID, Deque<Job<?>>> queues = new HashMap<>();
+    private final Deque<UUID> rotation = new ArrayDeque<>();
+    private final Set<UUID> running = new HashSet<>();
+
+    private long totalSubmitted = 0;
+    private long totalStarted = 0;
+    private long totalWaitMillis = 0;
+    private long maxWaitMillis = 0;
+    private int maxQueueDepth = 0;
+    private long rateLimitRetries = 0;
+
+    public AIRequestScheduler(MineAgent plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * 提交一个请求
+     *
+     * @param owner    请求所属玩家
+     * @param task     真正发起请求的逻辑，只会在获得执行名额后调用
+     * @param onQueued 无法立即执行时回调排队位置（从 1 开始），在调用线程中执行
+     * @return 请求结果；取消它会将请求移出队列或中断正在执行的请求
+     */
+    public <T> CompletableFuture<T> submit(UUID owner, Supplier<CompletableFuture<T>> task, IntConsumer onQueued) {
+        Job<T> job = new Job<>(owner, task);
+        job.result.whenComplete((r, e) -> {
+            if (job.result.isCancelled()) {
+                cancel(job);
+            }
+        });
+
+        int position;
+        synchronized (this) {
+            totalSubmitted++;
+            queues.computeIfAbsent(owner, k -> new ArrayDeque<>()).addLast(job);
+            if (!rotation.contains(owner)) {
+                rotation.addLast(owner);
+            }
+            maxQueueDepth = Math.max(maxQueueDepth, getQueueDepthLocked());
+        }
+        dispatch();
+
+        synchronized (this) {
+            position = job.started ? 0 : positionOf(job);
+        }
+        if (position > 0 && onQueued != null) {
+            onQueued.accept(position);
+        }
+        return job.result;
+    }
+
+    /**
+     * 在名额允许的情况下按轮询顺序启动排队中的请求
+     */
+    private void dispatch() {
+        List<Job<?>> toStart = new ArrayList<>();
+        synchronized (this) {
+            int maxConcurrent = Math.max(1, plugin.getConfigManager().getMaxConcurrentRequests());
+            int checked = 0;
+            while (running.size() < maxConcurrent && checked < rotation.size()) {
+                UUID owner = rotation.pollFirst();
+                Deque<Job<?>> queue = queues.get(owner);
+                if (queue == null || queue.isEmpty()) {
+                    queues.remove(owner);
+                    continue;
+                }
+                if (running.contains(owner)) {
+                    rotation.addLast(owner);
+                    checked++;
+                    continue;
+                }
+
+                Job<?> job = queue.pollFirst();
+                running.add(owner);
+                job.started = true;
+                long waited = System.currentTimeMillis() - job.enqueuedAt;
+                totalStarted++;
+                totalWaitMillis += waited;
+                maxWaitMillis = Math.max(maxWaitMillis, waited);
+                toStart.add(job);
+
+                if (queue.isEmpty()) {
+                    queues.remove(owner);
+                } else {
+                    rotation.addLast(owner);
+                }
+                checked = 0;
+            }
+        }
+        for (Job<?> job : toStart) {
+            start(job);
+        }
+    }
+
+    private <T> void start(Job<T> job) {
+        if (job.result.isDone()) {
+            finish(job);
+            return;
+        }
+
+        CompletableFuture<T> underlying;
+        try {
+            underlying = job.task.get();
+        } catch (Exception e) {
+            job.result.completeExceptionally(e);
+            finish(job);
+            return;
+        }
+        synchronized (this) {
+            job.underlying = underlying;
+        }
+        // 发起请求期间被取消时 cancel(job) 还拿不到 underlying，由这里中断请求；名额在请求结束后释放
+        if (job.result.isCancelled()) {
+            underlying.cancel(true);
+        }
+
+        underlying.whenComplete((value, error) -> {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (cause instanceof RateLimitException && job.attempts < MAX_RATE_LIMIT_RETRIES && !job.result.isDone()) {
+                retryLater(job, ((RateLimitException) cause).getRetryAfterMillis());
+                return;
+            }
+            if (error != null) {
+                job.result.completeExceptionally(cause);
+            } else {
+                job.result.complete(value);
+            }
+            finish(job);
+        });
+    }
+
+    /**
+     * 被限流的请求释放名额，等待一段时间后重新排到该玩家队列的最前面
+     */
+    private void retryLater(Job<?> job, long delayMillis) {
+        synchronized (this) {
+            rateLimitRetries++;
+            running.remove(job.owner);
+            job.attempts++;
+            job.started = false;
+            job.underlying = null;
+        }
+        plugin.getLogger().warning("[AI Scheduler] 请求被限流，将在 " + delayMillis + "ms 后重试 (第 " + job.attempts + " 次)");
+        dispatch();
+
+        long delayTicks = Math.max(1L, delayMillis / 50L);
+        Bukkit.getScheduler().runTaskLaterAsynchronously(plugin, () -> {
+            if (job.result.isDone()) return;
+            synchronized (this) {
+                job.enqueuedAt = System.currentTimeMillis();
+                queues.computeIfAbsent(job.owner, k -> new ArrayDeque<>()).addFirst(job);
+                if (!rotation.contains(job.owner)) {
+                    rotation.addFirst(job.owner);
+                }
+            }
+            dispatch();
+        }, delayTicks);
+    }
+
+    private void finish(Job<?> job) {
+        synchronized (this) {
+            if (!job.started) return;
+            job.started = false;
+            running.remove(job.owner);
+        }
+        dispatch();
+    }
+
+    private void cancel(Job<?> job) {
+        CompletableFuture<?> underlying;
+        synchronized (this) {
+            Deque<Job<?>> queue = queues.get(job.owner);
+            if (queue != null && queue.remove(job) && queue.isEmpty()) {
+                queues.remove(job.owner);
+                rotation.remove(job.owner);
+            }
+            underlying = job.underlying;
+            // 正在发起请求：交给 start() 在拿到 underlying 后中断，请求结束前不释放名额
+            if (job.started && underlying == null) return;
+        }
+        if (underlying != null) {
+            underlying.cancel(true);
+        }
+        finish(job);
+    }
+
+    /**
+     * 按轮询顺序计算请求的排队位置
+     */
+    private int positionOf(Job<?> target) {
+        List<Iterator<Job<?>>> iterators = new ArrayList<>();
+        for (UUID owner : rotation) {
+            Deque<Job<?>> queue = queues.get(owner);
+            if (queue != null) {
+                iterators.add(queue.iterator());
+            }
+        }
+
+        int position = 0;
+        boolean remaining = true;
+        while (remaining) {
+            remaining = false;
+            for (Iterator<Job<?>> iterator : iterators) {
+                if (!iterator.hasNext()) continue;
+                remaining = true;
+                position++;
+                if (iterator.next() == target) {
+                    return position;
+                }
+            }
+        }
+        return 0;
+    }
+
+    private int getQueueDepthLocked() {
+        int depth = 0;
+        for (Deque<Job<?>> queue : queues.values()) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    public synchronized int getQueueDepth() {
+        return getQueueDepthLocked();
+    }
+
+    public synchronized int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public synchronized int getRunningCount() {
+        return running.size();
+    }
+
+    public synchronized long getTotalSubmitted() {
+        return totalSubmitted;
+    }
+
+    public synchronized long getAverageWaitMillis() {
+        return totalStarted == 0 ? 0 : totalWaitMillis / totalStarted;
+    }
+
+    public synchronized long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    public synchronized long getRateLimitRetries() {
+        return rateLimitRetries;
+    }
+
+    private static class Job<T> {
+        private final UUID owner;
+        private final Supplier<CompletableFuture<T>> task;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private volatile CompletableFuture<T> underlying;
+        private long enqueuedAt = System.currentTimeMillis();
+        private boolean started = false;
+        private int attempts = 0;
+
+        private Job(UUID owner, Supplier<CompletableFuture<T>> task) {
+            this.owner = owner;
+            this.task = task;
+        }
+    }
+}
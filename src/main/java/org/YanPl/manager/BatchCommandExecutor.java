@@ -0,0 +1,127 @@
+package org.YanPl.manager;
+
+import net.md_5.bungee.api.ChatMessageType;
+import net.md_5.bungee.api.chat.TextComponent;
+import org.YanPl.util.CaptureSender;
+import org.bukkit.ChatColor;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitRunnable;
+
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * 把一组已确认的命令分摊到多个 tick 执行
+ *
+ * 每个 tick 在时间预算内尽量多执行几条（至少一条），逐条捕获输出，
+ * 全部完成后合并为一条结果交给回调；执行进度显示在玩家的动作栏。
+ */
+public class BatchCommandExecutor extends BukkitRunnable {
+    /** 单条命令的输出在汇总结果中最多保留的字符数 */
+    private static final int MAX_OUTPUT_CHARS = 200;
+    /** 汇总结果最多保留的字符数，超出部分只给出统计 */
+    private static final int MAX_RESULT_CHARS = 6000;
+
+    private final Player player;
+    private final CaptureSender capture;
+    private final List<String> commands;
+    private final long budgetNanos;
+    private final Predicate<String> dispatcher;
+    private final BooleanSupplier cancelled;
+    private final Consumer<String> onComplete;
+
+    private final StringBuilder details = new StringBuilder();
+    private int next = 0;
+    private int succeeded = 0;
+    private int failed = 0;
+    private int ticks = 0;
+    private int omitted = 0;
+
+    /**
+     * @param dispatcher 以捕获发送者执行一条命令并返回是否成功
+     * @param cancelled  返回 true 时停止执行剩余命令（玩家打断或退出 CLI）
+     * @param onComplete 全部执行完毕后在主线程收到汇总结果；被取消时不会调用
+     */
+    public BatchCommandExecutor(Player player, CaptureSender capture, List<String> commands, long budgetMillis,
+                                Predicate<String> dispatcher, BooleanSupplier cancelled, Consumer<String> onComplete) {
+        this.player = player;
+        this.capture = capture;
+        this.commands = commands;
+        this.budgetNanos = Math.max(1, budgetMillis) * 1_000_000L;
+        this.dispatcher = dispatcher;
+        this.cancelled = cancelled;
+        this.onComplete = onComplete;
+    }
+
+    @Override
+    public void run() {
+        if (cancelled.getAsBoolean()) {
+            cancel();
+            showProgress(ChatColor.YELLOW + "批量执行已中断 (" + next + "/" + commands.size() + ")");
+            return;
+        }
+
+        ticks++;
+        long start = System.nanoTime();
+        do {
+            runCommand(commands.get(next++));
+        } while (next < commands.size() && System.nanoTime() - start < budgetNanos);
+
+        if (next < commands.size()) {
+            showProgress(ChatColor.GRAY + "批量执行中 " + next + "/" + commands.size());
+            return;
+        }
+
+        cancel();
+        showProgress(ChatColor.GREEN + "批量执行完成 " + succeeded + "/" + commands.size());
+        onComplete.accept(buildResult());
+    }
+
+    private void runCommand(String command) {
+        capture.begin();
+        boolean success;
+        try {
+            success = dispatcher.test(command);
+        } catch (Throwable t) {
+            success = false;
+        }
+        String output = capture.finish();
+        if (success) {
+            succeeded++;
+        } else {
+            failed++;
+        }
+
+        if (details.length() >= MAX_RESULT_CHARS) {
+            omitted++;
+            return;
+        }
+        if (output.length() > MAX_OUTPUT_CHARS) {
+            output = output.substring(0, MAX_OUTPUT_CHARS) + "...";
+        }
+        details.append("\n[").append(next).append("] ").append(command)
+                .append(success ? " -> 成功" : " -> 失败");
+        if (!output.isEmpty()) {
+            details.append(": ").append(output.replace('\n', ' '));
+        }
+    }
+
+    private String buildResult() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("批量执行完成，共 ").append(commands.size()).append(" 条命令，成功 ").append(succeeded)
+                .append("，失败 ").append(failed).append("，用时 ").append(ticks).append(" tick。");
+        sb.append(details);
+        if (omitted > 0) {
+            sb.append("\n...(其余 ").append(omitted).append(" 条命令的输出已省略)");
+        }
+        return sb.toString();
+    }
+
+    private void showProgress(String text) {
+        if (player.isOnline()) {
+            player.spigot().sendMessage(ChatMessageType.ACTION_BAR, new TextComponent(text));
+        }
+    }
+}
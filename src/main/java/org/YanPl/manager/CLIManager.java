@@ -6,7 +6,16 @@ import net.md_5.bungee.api.chat.TextComponent;
 import net.md_5.bungee.api.chat.hover.content.Text;
 import org.YanPl.MineAgent;
 import org.YanPl.api.CloudFlareAI;
+import org.YanPl.api.FunctionTools;
+import org.YanPl.model.CLIPlayerState;
+import org.YanPl.model.CLIPlayerState.Phase;
+import org.YanPl.model.CommandInfo;
 import org.YanPl.model.DialogueSession;
+import org.YanPl.util.CaptureSender;
+import org.YanPl.util.CommandSearchIndex;
+import org.YanPl.util.StreamSegmenter;
+import org.YanPl.util.ToolCallLexer;
+import org.YanPl.util.ToolCallLexer.ToolCall;
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
 import org.bukkit.entity.Player;
@@ -14,7 +23,10 @@ import org.bukkit.entity.Player;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 import org.bukkit.scheduler.BukkitRunnable;
 
@@ -22,21 +34,37 @@ import org.bukkit.scheduler.BukkitRunnable;
  * CLI 模式管理器，负责管理玩家的 CLI 状态和对话流
  */
 public class CLIManager {
+    private static final int LOOKUP_LIMIT = 20;
+    static final List<String> KNOWN_TOOLS = Arrays.asList("#over", "#exit", "#run", "#batch", "#get", "#lookup", "#choose", "#search");
+    /** 只读取信息、互不依赖的工具，同一轮中的多个调用可以一起执行 */
+    private static final Set<String> BATCH_TOOLS = new HashSet<>(Arrays.asList("#get", "#lookup", "#search"));
+    private static final ToolCallLexer TOOL_LEXER = new ToolCallLexer(KNOWN_TOOLS);
+
     private final MineAgent plugin;
     private final CloudFlareAI ai;
     private final PromptManager promptManager;
-    private final Set<UUID> activeCLIPayers = new HashSet<>();
-    private final Set<UUID> pendingAgreementPlayers = new HashSet<>();
-    private final Set<UUID> agreedPlayers = new HashSet<>();
+    private final AIRequestScheduler scheduler;
+    private final SearchManager searchManager;
+    private final HistoryCompactor historyCompactor;
+    /** 处于 CLI 模式或正在等待同意协议的玩家；不在其中的玩家聊天只需一次查找即可放行 */
+    private final Map<UUID, CLIPlayerState> players = new ConcurrentHashMap<>();
+    private final Set<UUID> agreedPlayers = ConcurrentHashMap.newKeySet();
     private final File agreedPlayersFile;
-    private final Map<UUID, DialogueSession> sessions = new ConcurrentHashMap<>();
-    private final Map<UUID, Boolean> isGenerating = new ConcurrentHashMap<>();
-    private final Map<UUID, String> pendingCommands = new ConcurrentHashMap<>();
+
+    /** 每轮 AI 回复在主线程上的处理耗时（回复后处理在异步线程完成，这里只剩发送消息与执行工具） */
+    private long mainThreadTurns = 0;
+    private long mainThreadNanos = 0;
+    private long maxMainThreadNanos = 0;
+    /** 各命令 #run 后等待反馈的 tick 数 */
+    private final Map<String, CommandWaitStats> commandWaits = new HashMap<>();
 
     public CLIManager(MineAgent plugin) {
         this.plugin = plugin;
         this.ai = new CloudFlareAI(plugin);
         this.promptManager = new PromptManager(plugin);
+        this.scheduler = new AIRequestScheduler(plugin);
+        this.searchManager = new SearchManager(plugin, ai.getHttpClient());
+        this.historyCompactor = new HistoryCompactor(plugin, ai, scheduler);
         this.agreedPlayersFile = new File(plugin.getDataFolder(), "agreed_players.txt");
         loadAgreedPlayers();
         startTimeoutTask();
@@ -75,16 +103,16 @@ public class CLIManager {
                 long now = System.currentTimeMillis();
                 long timeoutMs = plugin.getConfigManager().getTimeoutMinutes() * 60 * 1000L;
                 
-                for (UUID uuid : new ArrayList<>(activeCLIPayers)) {
-                    DialogueSession session = sessions.get(uuid);
-                    if (session != null && (now - session.getLastActivityTime()) > timeoutMs) {
+                for (Map.Entry<UUID, CLIPlayerState> entry : new ArrayList<>(players.entrySet())) {
+                    UUID uuid = entry.getKey();
+                    CLIPlayerState state = entry.getValue();
+                    if (state.isActive() && (now - state.getSession().getLastActivityTime()) > timeoutMs) {
                         Player player = Bukkit.getPlayer(uuid);
                         if (player != null) {
                             player.sendMessage(ChatColor.YELLOW + "由于长时间未活动，已自动退出 CLI Mode。");
                             exitCLI(player);
                         } else {
-                            activeCLIPayers.remove(uuid);
-                            sessions.remove(uuid);
+                            clearPlayerState(uuid);
                         }
                     }
                 }
@@ -96,8 +124,8 @@ public class CLIManager {
      * 切换玩家的 CLI 模式
      */
     public void toggleCLI(Player player) {
-        UUID uuid = player.getUniqueId();
-        if (activeCLIPayers.contains(uuid)) {
+        CLIPlayerState state = players.get(player.getUniqueId());
+        if (state != null && state.isActive()) {
             exitCLI(player);
         } else {
             enterCLI(player);
@@ -108,9 +136,13 @@ public class CLIManager {
      * 关闭管理器，清理资源
      */
     public void shutdown() {
+        for (CLIPlayerState state : players.values()) {
+            state.cancelInFlight();
+        }
+        searchManager.shutdown();
+        historyCompactor.shutdown();
         ai.shutdown();
-        sessions.clear();
-        activeCLIPayers.clear();
+        players.clear();
     }
 
     /**
@@ -124,12 +156,11 @@ public class CLIManager {
         if (!agreedPlayers.contains(uuid)) {
             plugin.getLogger().info("[CLI] Player " + player.getName() + " needs to agree to terms.");
             sendAgreement(player);
-            pendingAgreementPlayers.add(uuid);
+            players.put(uuid, new CLIPlayerState(Phase.AGREEING));
             return;
         }
 
-        activeCLIPayers.add(uuid);
-        sessions.put(uuid, new DialogueSession());
+        players.put(uuid, new CLIPlayerState(Phase.IDLE));
         sendEnterMessage(player);
     }
 
@@ -139,119 +170,135 @@ public class CLIManager {
     public void exitCLI(Player player) {
         UUID uuid = player.getUniqueId();
         plugin.getLogger().info("[CLI] Player " + player.getName() + " is exiting CLI mode.");
-        activeCLIPayers.remove(uuid);
-        pendingAgreementPlayers.remove(uuid);
-        sessions.remove(uuid);
-        isGenerating.remove(uuid);
+        clearPlayerState(uuid);
         sendExitMessage(player);
     }
 
-    public void handleConfirm(Player player) {
+    /**
+     * 玩家退出游戏时清理状态，并中断尚未完成的 AI 请求
+     */
+    public void handleQuit(Player player) {
         UUID uuid = player.getUniqueId();
-        if (pendingCommands.containsKey(uuid)) {
-            String cmd = pendingCommands.get(uuid);
-            if (!"CHOOSING".equals(cmd)) {
-                pendingCommands.remove(uuid);
-                executeCommand(player, cmd);
-            }
+        if (players.containsKey(uuid)) {
+            plugin.getLogger().info("[CLI] Player " + player.getName() + " quit while in CLI mode.");
+            clearPlayerState(uuid);
+        }
+    }
+
+    private void clearPlayerState(UUID uuid) {
+        CLIPlayerState state = players.remove(uuid);
+        if (state == null) return;
+        state.close();
+        historyCompactor.cancel(state.getSession());
+    }
+
+    public void handleConfirm(Player player) {
+        CLIPlayerState state = players.get(player.getUniqueId());
+        if (state == null) return;
+        int turn = state.beginTurn(Phase.AWAITING_CONFIRM);
+        if (turn != CLIPlayerState.NO_TURN) {
+            executePending(player, state, turn);
         }
     }
 
     public void handleCancel(Player player) {
-        UUID uuid = player.getUniqueId();
-        if (pendingCommands.containsKey(uuid)) {
-            pendingCommands.remove(uuid);
+        CLIPlayerState state = players.get(player.getUniqueId());
+        if (state != null && (state.transition(Phase.AWAITING_CONFIRM, Phase.IDLE) || state.transition(Phase.CHOOSING, Phase.IDLE))) {
             player.sendMessage(ChatColor.GRAY + "⇒ 命令已取消");
-            isGenerating.put(uuid, false);
         }
     }
 
     /**
      * 处理玩家发送的消息
+     *
+     * 在异步聊天线程中调用，可能与主线程上的工具执行、AI 回调并发；
+     * 状态切换失败说明状态刚被另一方改变，重新读取后再处理。
      */
     public boolean handleChat(Player player, String message) {
         UUID uuid = player.getUniqueId();
-
-        // 如果玩家在等待协议同意
-        if (pendingAgreementPlayers.contains(uuid)) {
-            plugin.getLogger().info("[CLI] Player " + player.getName() + " sent agreement message: " + message);
-            if (message.equalsIgnoreCase("agree")) {
-                pendingAgreementPlayers.remove(uuid);
-                saveAgreedPlayer(uuid);
-                enterCLI(player);
-            } else {
-                player.sendMessage(ChatColor.RED + "请发送 agree 以同意协议，或发送 /cli 退出。");
+        CLIPlayerState state = players.get(uuid);
+        if (state == null) return false;
+
+        while (true) {
+            Phase phase = state.getPhase();
+
+            // 如果玩家在等待协议同意
+            if (phase == Phase.AGREEING) {
+                plugin.getLogger().info("[CLI] Player " + player.getName() + " sent agreement message: " + message);
+                if (message.equalsIgnoreCase("agree")) {
+                    if (!state.transition(Phase.AGREEING, Phase.IDLE)) continue;
+                    saveAgreedPlayer(uuid);
+                    plugin.getLogger().info("[CLI] Player " + player.getName() + " is entering CLI mode.");
+                    sendEnterMessage(player);
+                } else {
+                    player.sendMessage(ChatColor.RED + "请发送 agree 以同意协议，或发送 /cli 退出。");
+                }
+                return true;
             }
-            return true;
-        }
 
-        // 如果玩家处于 CLI 模式
-        if (activeCLIPayers.contains(uuid)) {
+            // 玩家处于 CLI 模式
             plugin.getLogger().info("[CLI] Intercepted message from " + player.getName() + ": " + message);
             if (message.equalsIgnoreCase("exit")) {
                 exitCLI(player);
                 return true;
             }
             if (message.equalsIgnoreCase("stop")) {
-                boolean interrupted = false;
-                if (isGenerating.getOrDefault(uuid, false)) {
-                    isGenerating.put(uuid, false);
+                if (phase == Phase.GENERATING) {
+                    if (!state.transition(Phase.GENERATING, Phase.IDLE)) continue;
+                    state.cancelInFlight();
                     player.sendMessage(ChatColor.YELLOW + "⇒ 已打断 Agent 生成");
-                    interrupted = true;
-                }
-                if (pendingCommands.containsKey(uuid)) {
-                    pendingCommands.remove(uuid);
+                } else if (phase == Phase.AWAITING_CONFIRM || phase == Phase.CHOOSING) {
+                    if (!state.transition(phase, Phase.IDLE)) continue;
                     player.sendMessage(ChatColor.GRAY + "⇒ 已取消当前待处理的操作");
-                    isGenerating.put(uuid, false);
-                    interrupted = true;
-                }
-                if (!interrupted) {
+                } else {
                     player.sendMessage(ChatColor.GRAY + "当前没有正在进行的操作。输入 exit 退出 CLI 模式。");
                 }
                 return true;
             }
 
-            // 处理待确认的命令或选择
-            if (pendingCommands.containsKey(uuid)) {
-                String pending = pendingCommands.get(uuid);
-                if (pending.equals("CHOOSING")) {
-                    pendingCommands.remove(uuid);
-                    feedbackToAI(player, "#choose_result: " + message);
+            switch (phase) {
+                case CHOOSING: {
+                    int turn = state.beginTurn(Phase.CHOOSING);
+                    if (turn == CLIPlayerState.NO_TURN) continue;
+                    startTurn(state);
+                    feedbackToAI(player, state, turn, state.getPendingCall(), "#choose_result: " + message);
                     return true;
                 }
-                
-                if (message.equalsIgnoreCase("y") || message.equalsIgnoreCase("/mineagent confirm")) {
-                    String cmd = pendingCommands.remove(uuid);
-                    executeCommand(player, cmd);
-                } else if (message.equalsIgnoreCase("n") || message.equalsIgnoreCase("/mineagent cancel")) {
-                    pendingCommands.remove(uuid);
-                    player.sendMessage(ChatColor.GRAY + "⇒ 命令已取消");
-                    isGenerating.put(uuid, false);
-                } else {
-                    player.sendMessage(ChatColor.RED + "请确认命令 [Y/N]");
+                case AWAITING_CONFIRM:
+                    // 处理待确认的命令
+                    if (message.equalsIgnoreCase("y") || message.equalsIgnoreCase("/mineagent confirm")) {
+                        int turn = state.beginTurn(Phase.AWAITING_CONFIRM);
+                        if (turn == CLIPlayerState.NO_TURN) continue;
+                        executePending(player, state, turn);
+                    } else if (message.equalsIgnoreCase("n") || message.equalsIgnoreCase("/mineagent cancel")) {
+                        if (!state.transition(Phase.AWAITING_CONFIRM, Phase.IDLE)) continue;
+                        player.sendMessage(ChatColor.GRAY + "⇒ 命令已取消");
+                    } else {
+                        player.sendMessage(ChatColor.RED + "请确认命令 [Y/N]");
+                    }
+                    return true;
+                case GENERATING:
+                    player.sendMessage(ChatColor.RED + "⨀ 请不要在 Agent 生成内容时发送消息，如需打断请输入 stop");
+                    return true;
+                default: {
+                    // 启动后的首次索引尚未完成，命令列表与预设文件还不可用
+                    if (!plugin.getWorkspaceIndexer().isReady()) {
+                        player.sendMessage(ChatColor.YELLOW + "⨀ MineAgent 正在预热（索引命令与预设文件），请稍后再发送消息");
+                        return true;
+                    }
+                    int turn = state.beginTurn(Phase.IDLE);
+                    if (turn == CLIPlayerState.NO_TURN) continue;
+                    processAIMessage(player, state, turn, message);
+                    return true;
                 }
-                return true;
             }
-            
-            if (isGenerating.getOrDefault(uuid, false)) {
-                player.sendMessage(ChatColor.RED + "⨀ 请不要在 Agent 生成内容时发送消息，如需打断请输入 stop");
-                return true;
-            }
-
-            processAIMessage(player, message);
-            return true;
         }
-
-        return false;
     }
 
-    private void processAIMessage(Player player, String message) {
-        UUID uuid = player.getUniqueId();
-        DialogueSession session = sessions.get(uuid);
-        if (session == null) return;
-
+    private void processAIMessage(Player player, CLIPlayerState state, int turn, String message) {
+        DialogueSession session = state.getSession();
         session.addMessage("user", message);
-        isGenerating.put(uuid, true);
+        startTurn(state);
 
         player.sendMessage(ChatColor.GRAY + "◇ " + message);
         // 不再主动发送 Thought...，避免干扰用户
@@ -259,131 +306,228 @@ public class CLIManager {
 
         plugin.getLogger().info("[CLI] Session " + player.getName() + " - History Size: " + session.getHistory().size() + ", Est. Tokens: " + session.getEstimatedTokens());
 
-        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
-            try {
-                String response = ai.chat(session, promptManager.getBaseSystemPrompt(player));
-                Bukkit.getScheduler().runTask(plugin, () -> handleAIResponse(player, response));
-            } catch (IOException e) {
-                Bukkit.getScheduler().runTask(plugin, () -> {
-                    player.sendMessage(ChatColor.RED + "AI 调用出错: " + e.getMessage());
-                    isGenerating.put(uuid, false);
-                    // 移除导致失败的消息，防止污染后续对话
+        requestAIResponse(player, state, turn, true);
+    }
+
+    /**
+     * 异步调用 AI 并在主线程处理回复
+     *
+     * @param turn            发起请求时这段生成的编号，回调据此丢弃被打断的旧请求的结果
+     * @param rollbackOnError 调用失败时是否移除最后一条消息，防止污染后续对话
+     */
+    private void requestAIResponse(Player player, CLIPlayerState state, int turn, boolean rollbackOnError) {
+        UUID uuid = player.getUniqueId();
+        DialogueSession session = state.getSession();
+        long deadline = state.getTurnDeadline();
+        if (deadline > 0 && System.currentTimeMillis() >= deadline) {
+            notifyTurnTimeout(player, state, turn);
+            return;
+        }
+
+        StreamSegmenter segmenter = plugin.getConfigManager().isStreamEnabled() ? new StreamSegmenter(KNOWN_TOOLS) : null;
+        Consumer<String> onDelta = segmenter == null ? null : delta -> {
+            boolean first = !segmenter.hasEmitted();
+            String segment = segmenter.append(delta);
+            if (segment.isEmpty()) return;
+            TextComponent component = buildAgentComponent(segment, first);
+            Bukkit.getScheduler().runTask(plugin, () -> {
+                if (state.isCurrentTurn(turn)) {
+                    player.spigot().sendMessage(component);
+                }
+            });
+        };
+
+        historyCompactor.beforeRequest(session, uuid);
+        CommandViewCache.CommandView view = plugin.getWorkspaceIndexer().getCommandView(player);
+        String systemPrompt = promptManager.getBaseSystemPrompt(player, view);
+        String contextPrompt = promptManager.getContextPrompt(session, view);
+        boolean nativeTools = plugin.getConfigManager().isNativeToolsEnabled();
+        CompletableFuture<CloudFlareAI.ChatReply> future = scheduler.submit(uuid,
+                () -> ai.chatWithToolsAsync(session, systemPrompt, contextPrompt, onDelta, deadline, nativeTools),
+                position -> notifyQueued(player, position));
+        state.setInFlight(future);
+
+        future.whenComplete((response, error) -> {
+            state.clearInFlight(future);
+            // 已被 stop / exit / 退出游戏主动取消，无需任何处理
+            if (future.isCancelled()) return;
+
+            // 清理思考内容、提取工具调用、构建消息组件都在当前的异步线程完成
+            AgentReply reply = error == null ? parseReply(response, segmenter) : null;
+            Bukkit.getScheduler().runTask(plugin, () -> {
+                if (reply != null) {
+                    long start = System.nanoTime();
+                    handleAIResponse(player, state, turn, reply);
+                    recordMainThreadTime(System.nanoTime() - start);
+                    return;
+                }
+                // 回调排队期间玩家已打断，最后一条消息可能已属于新的一轮，不能回滚
+                if (!state.isCurrentTurn(turn)) return;
+                if (rollbackOnError) {
                     session.removeLastMessage();
-                });
-            }
+                }
+                if (deadline > 0 && System.currentTimeMillis() >= deadline) {
+                    notifyTurnTimeout(player, state, turn);
+                } else if (state.endTurn(turn)) {
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    player.sendMessage(ChatColor.RED + "AI 调用出错: " + cause.getMessage());
+                }
+            });
         });
     }
 
-    private void handleAIResponse(Player player, String response) {
-        UUID uuid = player.getUniqueId();
-        DialogueSession session = sessions.get(uuid);
-        if (session == null) return;
+    private void notifyQueued(Player player, int position) {
+        player.sendMessage(ChatColor.GRAY + "⨀ 当前请求较多，已进入排队，位置 " + position);
+    }
+
+    /**
+     * 开始新一轮对话，重置整个工具循环的截止时间
+     */
+    private void startTurn(CLIPlayerState state) {
+        int seconds = plugin.getConfigManager().getTurnTimeoutSeconds();
+        state.setTurnDeadline(seconds > 0 ? System.currentTimeMillis() + seconds * 1000L : 0L);
+    }
 
-        // 如果生成已被打断，则丢弃响应
-        if (!isGenerating.getOrDefault(uuid, false)) {
+    private void notifyTurnTimeout(Player player, CLIPlayerState state, int turn) {
+        if (state.endTurn(turn)) {
+            player.sendMessage(ChatColor.YELLOW + "⨀ 本轮任务已超过时限 (" + plugin.getConfigManager().getTurnTimeoutSeconds() + " 秒)，已自动停止。");
+        }
+    }
+
+    /**
+     * 解析 AI 的完整回复（异步线程）：移除思考内容，提取工具调用，并构建待展示的消息组件
+     *
+     * 模型发起了原生函数调用时以其为准，否则从正文中提取 #工具 调用。
+     *
+     * @param segmenter 流式模式下已展示部分的分段器，非流式时为 null
+     */
+    private AgentReply parseReply(CloudFlareAI.ChatReply chatReply, StreamSegmenter segmenter) {
+        String response = chatReply.getText();
+        // 一次扫描移除思考内容并提取全部工具调用
+        ToolCallLexer.Result parsed = TOOL_LEXER.parse(response);
+        String content = parsed.getContent();
+
+        // Agent 内容（流式模式下只展示尚未输出的剩余部分）
+        TextComponent display = null;
+        if (segmenter != null) {
+            String rest = segmenter.remainder(response, content);
+            if (!rest.isEmpty()) {
+                display = buildAgentComponent(rest, !segmenter.hasEmitted());
+            }
+        } else if (!content.isEmpty()) {
+            display = buildAgentComponent(content, true);
+        }
+
+        List<DialogueSession.Message> messages = new ArrayList<>();
+        List<ToolCall> calls;
+        if (chatReply.getCalls().isEmpty()) {
+            messages.add(new DialogueSession.Message("assistant", response));
+            calls = parsed.getCalls();
+        } else {
+            if (!response.isEmpty()) {
+                messages.add(new DialogueSession.Message("assistant", response));
+            }
+            calls = new ArrayList<>();
+            for (CloudFlareAI.FunctionCall call : chatReply.getCalls()) {
+                messages.add(DialogueSession.Message.functionCall(call.getCallId(), call.getName(), call.getArguments()));
+                calls.add(FunctionTools.toToolCall(call));
+            }
+        }
+        // 提前算好 Token 数，加入历史时无需在主线程上分词
+        for (DialogueSession.Message message : messages) {
+            message.getTokenCount();
+        }
+        return new AgentReply(messages, calls, display);
+    }
+
+    /**
+     * 处理 AI 的完整回复（主线程），只负责状态切换、发送消息与执行工具
+     */
+    private void handleAIResponse(Player player, CLIPlayerState state, int turn, AgentReply reply) {
+        DialogueSession session = state.getSession();
+
+        // 如果生成已被打断（或已退出 CLI，或打断后已开始新的一轮），则丢弃响应
+        if (!state.isCurrentTurn(turn)) {
             plugin.getLogger().info("[CLI] Discarding AI response for " + player.getName() + " due to interruption.");
             return;
         }
 
-        plugin.getLogger().info("[CLI] AI Response received for " + player.getName() + " (Length: " + response.length() + ")");
+        plugin.getLogger().info("[CLI] AI Response received for " + player.getName() + " (Messages: " + reply.messages.size() + ", Tool calls: " + reply.calls.size() + ")");
 
         // 先将 AI 的回复加入历史记录，确保后续工具执行产生的反馈在回复之后
-        session.addMessage("assistant", response);
-
-        // 解析并移除思考内容
-        // 移除 <thought>...</thought>
-        String cleanResponse = response.replaceAll("(?s)<thought>.*?</thought>", "");
-        // 移除 Markdown 风格的 Thought: 块或类似文本
-        cleanResponse = cleanResponse.replaceAll("(?i)^Thought:.*?\n", "");
-        cleanResponse = cleanResponse.replaceAll("(?i)^思考过程:.*?\n", "");
-        cleanResponse = cleanResponse.trim();
-        
-        // 增强的工具调用提取逻辑：使用正则表达式匹配末尾的工具调用
-        // 匹配模式：最后一个 # 加上已知的工具名
-        String content = cleanResponse;
-        String toolCall = "";
-        
-        // 定义已知工具列表
-        List<String> knownTools = Arrays.asList("#over", "#exit", "#run", "#get", "#choose", "#search");
-        
-        // 从后往前寻找最后一个工具调用
-        int lastHashIndex = cleanResponse.lastIndexOf("#");
-        if (lastHashIndex != -1) {
-            String potentialToolPart = cleanResponse.substring(lastHashIndex).trim();
-            for (String tool : knownTools) {
-                if (potentialToolPart.toLowerCase().startsWith(tool)) {
-                    toolCall = potentialToolPart;
-                    content = cleanResponse.substring(0, lastHashIndex).trim();
-                    break;
-                }
-            }
+        for (DialogueSession.Message message : reply.messages) {
+            session.addMessage(message);
         }
 
-        // 展示 Agent 内容
-        if (!content.isEmpty()) {
-            displayAgentContent(player, content);
+        if (reply.display != null) {
+            player.spigot().sendMessage(reply.display);
         }
 
         // 处理工具调用
-        if (!toolCall.isEmpty()) {
-            executeTool(player, toolCall);
+        if (!reply.calls.isEmpty()) {
+            executeTools(player, state, turn, reply.calls);
         } else {
-            isGenerating.put(uuid, false);
+            state.endTurn(turn);
             checkTokenWarning(player, session);
         }
     }
 
+    private synchronized void recordMainThreadTime(long nanos) {
+        mainThreadTurns++;
+        mainThreadNanos += nanos;
+        maxMainThreadNanos = Math.max(maxMainThreadNanos, nanos);
+    }
+
     private void checkTokenWarning(Player player, DialogueSession session) {
-        int estimatedTokens = session.getEstimatedTokens();
-        // 假设模型窗口较小或我们设置了一个阈值
-        int maxTokens = 4000; 
-        int remaining = maxTokens - estimatedTokens;
-        
+        int budget = plugin.getConfigManager().getHistoryTokenBudget();
+        if (budget <= 0) return;
+        int remaining = budget - session.getEstimatedTokens();
+
         if (remaining < plugin.getConfigManager().getTokenWarningThreshold()) {
-            player.sendMessage(ChatColor.YELLOW + "⨀ 剩余 Token 不足 (" + remaining + ")，Agent 可能会遗忘较早的对话内容。");
+            String hint = plugin.getConfigManager().isHistorySummaryEnabled()
+                    ? "较早的对话将被压缩为摘要。" : "Agent 可能会遗忘较早的对话内容。";
+            player.sendMessage(ChatColor.YELLOW + "⨀ 对话历史接近 Token 预算 (剩余 " + Math.max(0, remaining) + "/" + budget + ")，" + hint);
         }
     }
 
-    private void executeTool(Player player, String toolCall) {
-        UUID uuid = player.getUniqueId();
-        
-        // 改进的解析逻辑：兼容冒号和空格分隔符，且只分割第一次出现的标识符
-        String toolName;
-        String args = "";
-        
-        // 查找第一个冒号或空格的位置
-        int colonIndex = toolCall.indexOf(":");
-        int spaceIndex = toolCall.indexOf(" ");
-        
-        int splitIndex = -1;
-        if (colonIndex != -1 && spaceIndex != -1) {
-            splitIndex = Math.min(colonIndex, spaceIndex);
-        } else if (colonIndex != -1) {
-            splitIndex = colonIndex;
-        } else if (spaceIndex != -1) {
-            splitIndex = spaceIndex;
-        }
-
-        if (splitIndex != -1) {
-            toolName = toolCall.substring(0, splitIndex).trim();
-            args = toolCall.substring(splitIndex + 1).trim();
+    /**
+     * 执行一轮回复中的工具调用
+     *
+     * 开头连续的 #get / #lookup / #search 一起执行，结果在同一轮反馈中返回；
+     * #run、#choose 等需要玩家参与或结束对话的工具每轮只执行一个，其后的调用会被忽略，
+     * 被忽略的调用随本轮的工具结果一起反馈给 AI。
+     */
+    private void executeTools(Player player, CLIPlayerState state, int turn, List<ToolCall> calls) {
+        int batchSize = 0;
+        while (batchSize < calls.size() && BATCH_TOOLS.contains(calls.get(batchSize).getName())) {
+            batchSize++;
+        }
+        List<ToolCall> ignored = new ArrayList<>(calls.subList(Math.max(1, batchSize), calls.size()));
+        if (!ignored.isEmpty()) {
+            plugin.getLogger().info("[CLI] Ignoring " + ignored.size() + " tool call(s) for " + player.getName() + ": " + ignored);
+        }
+        state.setIgnoredCalls(ignored);
+
+        if (batchSize == 0) {
+            executeTool(player, state, turn, calls.get(0));
         } else {
-            toolName = toolCall.trim();
+            executeBatch(player, state, turn, calls.subList(0, batchSize));
         }
+    }
 
+    private void executeTool(Player player, CLIPlayerState state, int turn, ToolCall call) {
+        String toolName = call.getRawName();
+        String args = call.getArgs();
         plugin.getLogger().info("[CLI] Executing tool for " + player.getName() + ": " + toolName + " (Args: " + args + ")");
-        
-        // 统一转换为小写进行匹配
-        String lowerToolName = toolName.toLowerCase();
-        
-        // 展示给玩家时只显示工具名（如果不是 search 或 run 这种有自己显示逻辑的工具）
-        if (!lowerToolName.equals("#search") && !lowerToolName.equals("#run")) {
+
+        // 展示给玩家时只显示工具名（run 与 batch 有自己的显示逻辑）
+        if (!call.getName().equals("#run") && !call.getName().equals("#batch")) {
             player.sendMessage(ChatColor.GRAY + "〇 " + toolName);
         }
 
-        switch (lowerToolName) {
+        switch (call.getName()) {
             case "#over":
-                isGenerating.put(uuid, false);
+                state.endTurn(turn);
                 break;
             case "#exit":
                 exitCLI(player);
@@ -391,36 +535,132 @@ public class CLIManager {
             case "#run":
                 if (args.isEmpty()) {
                     player.sendMessage(ChatColor.RED + "错误: #run 工具需要提供命令参数");
-                    feedbackToAI(player, "#error: #run 工具需要提供命令参数，例如 #run: say hello");
+                    feedbackToAI(player, state, turn, call, "#error: #run 工具需要提供命令参数，例如 #run: say hello");
                 } else {
-                    handleRunTool(player, args);
+                    handleRunTool(player, state, turn, call, args);
                 }
                 break;
-            case "#get":
-                handleGetTool(player, args);
+            case "#batch":
+                handleBatchTool(player, state, turn, call);
                 break;
             case "#choose":
-                handleChooseTool(player, args);
-                break;
-            case "#search":
-                handleSearchTool(player, args);
+                handleChooseTool(player, state, turn, call);
                 break;
             default:
                 player.sendMessage(ChatColor.RED + "未知工具: " + toolName);
-                feedbackToAI(player, "#error: 未知工具 " + toolName + "。请仅使用系统提示中定义的工具。");
+                feedbackToAI(player, state, turn, call, "#error: 未知工具 " + toolName + "。请仅使用系统提示中定义的工具。");
                 break;
         }
     }
 
-    private void handleRunTool(Player player, String command) {
-        UUID uuid = player.getUniqueId();
-        
+    /**
+     * 同时执行一组只读工具，全部完成后合并为一条反馈发给 AI
+     */
+    private void executeBatch(Player player, CLIPlayerState state, int turn, List<ToolCall> batch) {
+        List<String> queries = new ArrayList<>();
+        for (ToolCall call : batch) {
+            if (call.getName().equals("#search")) queries.add(call.getArgs());
+        }
+        CompletableFuture<List<String>> searches = queries.isEmpty() ? null : submitSearches(player, queries);
+
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        int searchIndex = 0;
+        for (ToolCall call : batch) {
+            plugin.getLogger().info("[CLI] Executing tool for " + player.getName() + ": " + call.getRawName() + " (Args: " + call.getArgs() + ")");
+            switch (call.getName()) {
+                case "#get":
+                    player.sendMessage(ChatColor.GRAY + "〇 " + call.getRawName());
+                    results.add(CompletableFuture.completedFuture(getToolResult(call.getArgs())));
+                    break;
+                case "#lookup":
+                    player.sendMessage(ChatColor.GRAY + "〇 " + call.getRawName());
+                    results.add(CompletableFuture.completedFuture(lookupToolResult(call.getArgs(),
+                            plugin.getWorkspaceIndexer().getCommandView(player))));
+                    break;
+                default:
+                    int index = searchIndex++;
+                    results.add(searches.thenApply(found -> found.get(index)));
+                    break;
+            }
+        }
+
+        CompletableFuture<List<String>> combined = CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0]))
+                .thenApply(v -> {
+                    List<String> feedback = new ArrayList<>();
+                    for (CompletableFuture<String> result : results) {
+                        feedback.add(result.join());
+                    }
+                    return feedback;
+                });
+        state.setInFlight(combined);
+
+        combined.whenComplete((feedback, error) -> {
+            state.clearInFlight(combined);
+            if (combined.isCancelled()) {
+                // stop / exit 只会取消合并结果，需要同时取消仍在排队或进行中的搜索
+                if (searches != null) {
+                    searches.cancel(true);
+                }
+                return;
+            }
+            Bukkit.getScheduler().runTask(plugin, () -> feedbackToAI(player, state, turn, batch, feedback));
+        });
+    }
+
+    private void handleRunTool(Player player, CLIPlayerState state, int turn, ToolCall call, String command) {
         // 自动过滤掉领先的斜杠 /
         String cleanCommand = command.startsWith("/") ? command.substring(1) : command;
-        pendingCommands.put(uuid, cleanCommand);
+        if (!state.awaitConfirm(turn, call, cleanCommand)) return;
 
         TextComponent message = new TextComponent(ChatColor.GRAY + "⇒ " + cleanCommand + " ");
-        
+        appendConfirmButtons(message);
+        player.spigot().sendMessage(message);
+    }
+
+    /**
+     * 解析 #batch 的命令列表（以 | 或换行分隔）并等待玩家确认
+     */
+    private void handleBatchTool(Player player, CLIPlayerState state, int turn, ToolCall call) {
+        List<String> commands = new ArrayList<>();
+        for (String part : call.getArgs().split("[|\n]")) {
+            String command = part.trim();
+            if (command.startsWith("/")) command = command.substring(1).trim();
+            if (!command.isEmpty()) commands.add(command);
+        }
+        int maxCommands = plugin.getConfigManager().getBatchMaxCommands();
+        if (commands.isEmpty()) {
+            player.sendMessage(ChatColor.RED + "错误: #batch 工具需要提供命令列表");
+            feedbackToAI(player, state, turn, call, "#error: #batch 工具需要提供以 | 分隔的命令列表，例如 #batch: give Steve apple | give Alex apple");
+            return;
+        }
+        if (commands.size() > maxCommands) {
+            player.sendMessage(ChatColor.RED + "错误: 批量命令过多 (" + commands.size() + "/" + maxCommands + ")");
+            feedbackToAI(player, state, turn, call, "#error: 一次 #batch 最多 " + maxCommands + " 条命令，当前 " + commands.size() + " 条，请拆分后分批执行");
+            return;
+        }
+        if (!state.awaitBatchConfirm(turn, call, commands)) return;
+
+        // 悬停显示完整的命令列表（过长时只列出开头部分）
+        StringBuilder preview = new StringBuilder();
+        for (int i = 0; i < commands.size(); i++) {
+            if (i == 20) {
+                preview.append("\n... 共 ").append(commands.size()).append(" 条");
+                break;
+            }
+            if (i > 0) preview.append("\n");
+            preview.append(commands.get(i));
+        }
+        TextComponent summary = new TextComponent(ChatColor.GRAY + "⇒ 批量执行 " + commands.size() + " 条命令");
+        summary.setHoverEvent(new HoverEvent(HoverEvent.Action.SHOW_TEXT, new Text(preview.toString())));
+
+        TextComponent message = new TextComponent("");
+        message.addExtra(summary);
+        message.addExtra(" ");
+        appendConfirmButtons(message);
+        player.spigot().sendMessage(message);
+    }
+
+    private void appendConfirmButtons(TextComponent message) {
         TextComponent yBtn = new TextComponent(ChatColor.GREEN + "[ Y ]");
         yBtn.setClickEvent(new ClickEvent(ClickEvent.Action.RUN_COMMAND, "/cli confirm"));
         yBtn.setHoverEvent(new HoverEvent(HoverEvent.Action.SHOW_TEXT, new Text("确认执行命令")));
@@ -434,382 +674,333 @@ public class CLIManager {
         message.addExtra(yBtn);
         message.addExtra(spacer);
         message.addExtra(nBtn);
+    }
 
-        player.spigot().sendMessage(message);
+    /**
+     * 执行玩家已确认的单条命令或批量命令，仅在成功离开 AWAITING_CONFIRM 状态后调用
+     */
+    private void executePending(Player player, CLIPlayerState state, int turn) {
+        List<String> batch = state.getPendingBatch();
+        if (batch != null) {
+            executeBatchCommands(player, state, turn, state.getPendingCall(), batch);
+        } else {
+            executeCommand(player, state, turn, state.getPendingCall(), state.getPendingCommand());
+        }
     }
 
-    private void executeCommand(Player player, String command) {
+    /**
+     * 按每 tick 的时间预算分批执行命令，全部完成后把汇总结果反馈给 AI
+     */
+    private void executeBatchCommands(Player player, CLIPlayerState state, int turn, ToolCall call, List<String> commands) {
+        startTurn(state);
         Bukkit.getScheduler().runTask(plugin, () -> {
-            StringBuilder output = new StringBuilder();
-            
-            // 我们通过动态代理创建一个不仅实现 CommandSender，还尽量模拟 Player 行为的代理对象
-            // 注意：这里我们尝试实现 Player 接口以绕过某些原版命令的 instanceof Player 检查
-            org.bukkit.command.CommandSender interceptor = (org.bukkit.command.CommandSender) java.lang.reflect.Proxy.newProxyInstance(
-                plugin.getClass().getClassLoader(),
-                new Class<?>[]{org.bukkit.entity.Player.class},
-                (proxy, method, args) -> {
-                    String methodName = method.getName();
-                    
-                    // 拦截所有 sendMessage 和相关发送消息的方法
-                    if (methodName.equals("sendMessage") || methodName.equals("sendRawMessage") || methodName.equals("sendActionBar")) {
-                        if (args.length > 0 && args[0] != null) {
-                            if (args[0] instanceof String) {
-                                String msg = (String) args[0];
-                                if (output.length() > 0) output.append("\n");
-                                output.append(org.bukkit.ChatColor.stripColor(msg));
-                                // 转发给真实玩家
-                                if (methodName.equals("sendActionBar")) {
-                                    player.spigot().sendMessage(net.md_5.bungee.api.ChatMessageType.ACTION_BAR, new net.md_5.bungee.api.chat.TextComponent(msg));
-                                } else {
-                                    player.sendMessage(msg);
-                                }
-                            } else if (args[0] instanceof String[]) {
-                                for (String msg : (String[]) args[0]) {
-                                    if (output.length() > 0) output.append("\n");
-                                    output.append(org.bukkit.ChatColor.stripColor(msg));
-                                    player.sendMessage(msg);
-                                }
-                            }
-                        }
-                        return null;
-                    }
-
-                    // 拦截标题发送
-                    if (methodName.equals("sendTitle") && args.length >= 2) {
-                        String title = args[0] != null ? args[0].toString() : "";
-                        String subtitle = args[1] != null ? args[1].toString() : "";
-                        if (!title.isEmpty() || !subtitle.isEmpty()) {
-                            if (output.length() > 0) output.append("\n");
-                            output.append("[Title] ").append(org.bukkit.ChatColor.stripColor(title));
-                            if (!subtitle.isEmpty()) output.append(" [Subtitle] ").append(org.bukkit.ChatColor.stripColor(subtitle));
-                            
-                            // 转发给玩家，使用更通用的 API 避开可能的版本不匹配
-                            try {
-                                player.sendTitle(title, subtitle, 
-                                    args.length > 2 ? (int)args[2] : 10, 
-                                    args.length > 3 ? (int)args[3] : 70, 
-                                    args.length > 4 ? (int)args[4] : 20);
-                            } catch (NoSuchMethodError e) {
-                                // 兼容极旧版本或特定的 Bukkit 环境
-                                player.sendMessage(title + " " + subtitle);
-                            }
-                        }
-                        return null;
-                    }
-                    
-                    // 拦截 spigot().sendMessage
-                    if (methodName.equals("spigot")) {
-                        return new org.bukkit.command.CommandSender.Spigot() {
-                            @Override
-                            public void sendMessage(net.md_5.bungee.api.chat.BaseComponent component) {
-                                if (component == null) return;
-                                String legacyText = net.md_5.bungee.api.chat.TextComponent.toLegacyText(component);
-                                if (output.length() > 0) output.append("\n");
-                                output.append(org.bukkit.ChatColor.stripColor(legacyText));
-                                player.spigot().sendMessage(component);
-                            }
-
-                            @Override
-                            public void sendMessage(net.md_5.bungee.api.chat.BaseComponent... components) {
-                                if (components == null) return;
-                                for (net.md_5.bungee.api.chat.BaseComponent component : components) {
-                                    sendMessage(component);
-                                }
-                            }
-                        };
-                    }
-
-                    // 其他方法（权限检查、名字等）委托给原玩家
-                    try {
-                        Object result = method.invoke(player, args);
-                        // 如果方法返回 null 且返回类型是基本类型，需要返回对应的默认值
-                        if (result == null && method.getReturnType().isPrimitive()) {
-                            Class<?> returnType = method.getReturnType();
-                            if (returnType == boolean.class) return false;
-                            if (returnType == int.class) return 0;
-                            if (returnType == double.class) return 0.0;
-                            if (returnType == float.class) return 0.0f;
-                            if (returnType == long.class) return 0L;
-                            if (returnType == byte.class) return (byte) 0;
-                            if (returnType == short.class) return (short) 0;
-                            if (returnType == char.class) return '\0';
-                        }
-                        return result;
-                    } catch (java.lang.reflect.InvocationTargetException e) {
-                        // 记录异常但不崩溃，尽量让命令继续执行
-                        plugin.getLogger().warning("[CLI] Method " + methodName + " threw exception: " + e.getCause().getMessage());
-                        throw e.getCause();
-                    } catch (Exception e) {
-                        return null;
-                    }
-                }
-            );
+            CaptureSender capture = state.getCaptureSender(player);
+            new BatchCommandExecutor(player, capture, commands, plugin.getConfigManager().getBatchTickBudgetMillis(),
+                    command -> dispatchCaptured(player, capture, command),
+                    () -> !state.isCurrentTurn(turn),
+                    result -> {
+                        player.sendMessage(ChatColor.GRAY + "⇒ 反馈已发送至 Agent");
+                        feedbackToAI(player, state, turn, call, "#batch_result: " + result);
+                    }).runTaskTimer(plugin, 0L, 1L);
+        });
+    }
 
-            boolean success = false;
-            try {
-                // 优先尝试使用拦截器执行，以捕获输出
-                success = Bukkit.dispatchCommand(interceptor, command);
-            } catch (Throwable t) {
-                // 如果拦截器执行过程中抛出异常（通常是因为类型转换失败，如 VanillaCommandWrapper）
-                // 针对原版命令，我们尝试使用 execute 包装器来绕过类型检查
-                try {
-                    String wrappedCommand = "execute as " + player.getName() + " run " + command;
-                    success = Bukkit.dispatchCommand(interceptor, wrappedCommand);
-                } catch (Throwable t2) {
-                    plugin.getLogger().warning("[CLI] Interceptor failed even with wrapped command: " + t2.getMessage());
-                    // 最后的手段：退回到使用真实玩家身份执行，但这意味着无法捕获输出
-                    success = player.performCommand(command);
-                }
+    private void executeCommand(Player player, CLIPlayerState state, int turn, ToolCall call, String command) {
+        // 玩家确认后重新计时，等待确认的时间不计入工具循环时限
+        startTurn(state);
+        Bukkit.getScheduler().runTask(plugin, () -> {
+            // 复用该玩家的捕获发送者：它实现 Player 接口以通过原版命令的 instanceof Player 检查，
+            // 发送给它的消息会被记录并转发给玩家
+            CaptureSender capture = state.getCaptureSender(player);
+            capture.begin();
+            boolean finalSuccess = dispatchCaptured(player, capture, command);
+            String label = commandLabel(command);
+
+            // 已知同步执行的命令在返回时已经输出完毕，直接收集反馈
+            if (isSyncCommand(label)) {
+                completeCommand(player, state, turn, call, command, capture.finish(), finalSuccess);
+                recordCommandWait(label, 0, true);
+                return;
             }
 
-            boolean finalSuccess = success;
-            
             // 提示玩家正在等待异步反馈
             player.sendMessage(ChatColor.GRAY + "⇒ 命令已下发，等待反馈中...");
 
-            // 延迟 1 秒（20 ticks）后再处理结果，给异步任务留出时间
-            Bukkit.getScheduler().runTaskLater(plugin, () -> {
-                // 特殊处理：如果是 list 命令且没有捕获到输出，手动添加玩家列表
-                if (command.toLowerCase().startsWith("list") && output.length() <= 30) {
-                    StringBuilder sb = new StringBuilder("当前在线玩家: ");
-                    Bukkit.getOnlinePlayers().forEach(p -> sb.append(p.getName()).append(", "));
-                    output.append("\n").append(sb.toString());
-                }
-                
-                String finalResult;
-                if (output.length() > 0) {
-                    finalResult = output.toString();
-                } else if (finalSuccess) {
-                    // 如果成功但没有捕获到输出，尝试给 AI 提供更具体的上下文
-                    if (command.toLowerCase().startsWith("tp")) {
-                        finalResult = "命令执行成功 (传送指令通常没有文本反馈)";
-                    } else if (command.toLowerCase().startsWith("op") || command.toLowerCase().startsWith("deop")) {
-                        finalResult = "命令执行成功 (权限变更指令通常仅显示在控制台或被静默处理)";
+            // 每 tick 检查一次：输出连续空闲 idleTicks 后即结束等待，最长不超过 maxTicks
+            int idleTicks = plugin.getConfigManager().getCommandOutputIdleTicks();
+            int maxTicks = plugin.getConfigManager().getCommandOutputMaxWaitTicks();
+            new BukkitRunnable() {
+                private int waited = 0;
+                private int idle = 0;
+                private long lastCount = capture.getCapturedCount();
+
+                @Override
+                public void run() {
+                    // 等待期间玩家打断或退出，结果已不再需要
+                    if (!state.isCurrentTurn(turn)) {
+                        cancel();
+                        capture.finish();
+                        return;
+                    }
+                    waited++;
+                    long count = capture.getCapturedCount();
+                    if (count != lastCount) {
+                        lastCount = count;
+                        idle = 0;
                     } else {
-                        finalResult = "命令执行成功 (但系统未能捕获到该命令的文本输出，可能是静默执行或直接发送到了玩家屏幕)";
+                        idle++;
+                    }
+                    if (idle >= idleTicks || waited >= maxTicks) {
+                        cancel();
+                        completeCommand(player, state, turn, call, command, capture.finish(), finalSuccess);
+                        recordCommandWait(label, waited, false);
                     }
-                } else {
-                    // 如果失败且没有输出，通常是语法错误或原版命令拦截失败
-                    finalResult = "命令执行失败。可能原因：\n1. 命令语法错误\n2. 权限不足\n3. 该指令不支持拦截输出\n请检查语法或换一种实现方式。";
                 }
-                
-                player.sendMessage(ChatColor.GRAY + "⇒ 反馈已发送至 Agent");
-                
-                // 将详细结果反馈给 AI
-                feedbackToAI(player, "#run_result: " + finalResult);
-            }, 20L);
+            }.runTaskTimer(plugin, 1L, 1L);
         });
     }
 
-    private void handleGetTool(Player player, String fileName) {
-        File presetFile = new File(plugin.getDataFolder(), "preset/" + fileName);
-        if (!presetFile.exists()) {
-            feedbackToAI(player, "#get_result: 文件不存在");
-            return;
+    /**
+     * 以捕获发送者执行命令，失败时依次尝试 execute 包装与玩家本人执行
+     */
+    private boolean dispatchCaptured(Player player, CaptureSender capture, String command) {
+        org.bukkit.command.CommandSender interceptor = capture.getSender();
+        boolean success = false;
+        try {
+            // 优先尝试使用拦截器执行，以捕获输出
+            success = Bukkit.dispatchCommand(interceptor, command);
+        } catch (Throwable t) {
+            // 如果拦截器执行过程中抛出异常（通常是因为类型转换失败，如 VanillaCommandWrapper）
+            // 针对原版命令，我们尝试使用 execute 包装器来绕过类型检查
+            try {
+                String wrappedCommand = "execute as " + player.getName() + " run " + command;
+                success = Bukkit.dispatchCommand(interceptor, wrappedCommand);
+            } catch (Throwable t2) {
+                plugin.getLogger().warning("[CLI] Interceptor failed even with wrapped command: " + t2.getMessage());
+                // 最后的手段：退回到使用真实玩家身份执行，但这意味着无法捕获输出
+                success = player.performCommand(command);
+            }
         }
+        return success;
+    }
 
-        try {
-            List<String> lines = java.nio.file.Files.readAllLines(presetFile.toPath());
-            String content = String.join("\n", lines);
-            feedbackToAI(player, "#get_result: " + content);
-        } catch (IOException e) {
-            feedbackToAI(player, "#get_result: 读取文件失败 - " + e.getMessage());
+    /**
+     * 命令的名称部分（小写，不含斜杠）
+     */
+    private static String commandLabel(String command) {
+        String trimmed = command.trim();
+        if (trimmed.startsWith("/")) trimmed = trimmed.substring(1);
+        int space = trimmed.indexOf(' ');
+        return (space == -1 ? trimmed : trimmed.substring(0, space)).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * 命令是否在返回时已经输出完毕：显式的 minecraft: 命令，或解析到原版命令且在同步命令列表中的标签
+     *
+     * 按标签解析到的命令判断归属，被其他插件覆盖的同名命令（如 Essentials 的 tp）仍按异步命令等待反馈。
+     */
+    private boolean isSyncCommand(String label) {
+        if (label.startsWith("minecraft:")) return true;
+        return plugin.getConfigManager().getSyncCommands().contains(label)
+                && plugin.getWorkspaceIndexer().isVanillaCommand(label);
+    }
+
+    /**
+     * 整理捕获到的输出并反馈给 AI
+     */
+    private void completeCommand(Player player, CLIPlayerState state, int turn, ToolCall call, String command, String captured, boolean success) {
+        StringBuilder output = new StringBuilder(captured);
+        // 特殊处理：如果是 list 命令且没有捕获到输出，手动添加玩家列表
+        if (command.toLowerCase().startsWith("list") && output.length() <= 30) {
+            StringBuilder sb = new StringBuilder("当前在线玩家: ");
+            Bukkit.getOnlinePlayers().forEach(p -> sb.append(p.getName()).append(", "));
+            output.append("\n").append(sb.toString());
+        }
+
+        String finalResult;
+        if (output.length() > 0) {
+            finalResult = output.toString();
+        } else if (success) {
+            // 如果成功但没有捕获到输出，尝试给 AI 提供更具体的上下文
+            if (command.toLowerCase().startsWith("tp")) {
+                finalResult = "命令执行成功 (传送指令通常没有文本反馈)";
+            } else if (command.toLowerCase().startsWith("op") || command.toLowerCase().startsWith("deop")) {
+                finalResult = "命令执行成功 (权限变更指令通常仅显示在控制台或被静默处理)";
+            } else {
+                finalResult = "命令执行成功 (但系统未能捕获到该命令的文本输出，可能是静默执行或直接发送到了玩家屏幕)";
+            }
+        } else {
+            // 如果失败且没有输出，通常是语法错误或原版命令拦截失败
+            finalResult = "命令执行失败。可能原因：\n1. 命令语法错误\n2. 权限不足\n3. 该指令不支持拦截输出\n请检查语法或换一种实现方式。";
+        }
+
+        player.sendMessage(ChatColor.GRAY + "⇒ 反馈已发送至 Agent");
+
+        // 将详细结果反馈给 AI
+        feedbackToAI(player, state, turn, call, "#run_result: " + finalResult);
+    }
+
+    private synchronized void recordCommandWait(String label, int ticks, boolean sync) {
+        commandWaits.computeIfAbsent(label, CommandWaitStats::new).record(ticks, sync);
+    }
+
+    private String getToolResult(String fileName) {
+        String content = plugin.getWorkspaceIndexer().getPresetStore().get(fileName);
+        if (content == null) {
+            return "#get_result: " + fileName + " 文件不存在";
+        }
+        return "#get_result: " + content;
+    }
+
+    /**
+     * 查找命令，只返回玩家有权限执行的命令
+     */
+    private String lookupToolResult(String keyword, CommandViewCache.CommandView view) {
+        CommandSearchIndex index = plugin.getWorkspaceIndexer().getCommandIndex();
+        if (keyword.isEmpty() || keyword.equals("*")) {
+            List<String> names = new ArrayList<>();
+            for (String name : index.getAllNames()) {
+                if (view.allows(name)) names.add(name);
+            }
+            return "#lookup_result: 全部命令 (" + names.size() + ")：" + String.join(", ", names);
+        }
+
+        // 先按名称前缀匹配，再补充关键词检索结果
+        Map<String, CommandInfo> matches = new LinkedHashMap<>();
+        for (CommandInfo info : index.lookupPrefix(keyword, LOOKUP_LIMIT, view::allows)) {
+            matches.put(info.getName(), info);
+        }
+        Map<String, Float> query = Collections.singletonMap(keyword, 1.0f);
+        for (CommandInfo info : index.search(query, LOOKUP_LIMIT, view::allows)) {
+            if (matches.size() >= LOOKUP_LIMIT) break;
+            matches.putIfAbsent(info.getName(), info);
+        }
+
+        if (matches.isEmpty()) {
+            return "#lookup_result: 未找到与 " + keyword + " 相关且玩家有权限执行的命令";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (CommandInfo info : matches.values()) {
+            sb.append("\n- ").append(info.format());
         }
+        return "#lookup_result: " + sb;
     }
 
-    private void handleChooseTool(Player player, String optionsStr) {
-        String[] options = optionsStr.split(",");
+    private void handleChooseTool(Player player, CLIPlayerState state, int turn, ToolCall call) {
+        // 先切换状态再展示选项，保证玩家点击时已处于选择状态
+        if (!state.awaitChoice(turn, call)) return;
+
+        List<String> options = call.getArgList();
         TextComponent message = new TextComponent(ChatColor.GRAY + "⨀ [ ");
         
-        for (int i = 0; i < options.length; i++) {
-            String opt = options[i].trim();
+        for (int i = 0; i < options.size(); i++) {
+            String opt = options.get(i);
             TextComponent optBtn = new TextComponent(ChatColor.AQUA + opt);
             // 设置点击事件，点击后执行 /cli select <opt>
             optBtn.setClickEvent(new ClickEvent(ClickEvent.Action.RUN_COMMAND, "/cli select " + opt));
             optBtn.setHoverEvent(new HoverEvent(HoverEvent.Action.SHOW_TEXT, new Text(ChatColor.GRAY + "点击选择: " + ChatColor.AQUA + opt)));
             
             message.addExtra(optBtn);
-            if (i < options.length - 1) {
+            if (i < options.size() - 1) {
                 message.addExtra(ChatColor.GRAY + " | ");
             }
         }
         message.addExtra(ChatColor.GRAY + " ]");
         
         player.spigot().sendMessage(message);
-        // 标记玩家正在进行选择，以便拦截点击后的 RUN_COMMAND
-        pendingCommands.put(player.getUniqueId(), "CHOOSING"); 
-    }
-
-    private void handleSearchTool(Player player, String query) {
-        player.sendMessage(ChatColor.GRAY + "〇 #search: " + query);
-        
-        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
-            String result;
-            if (query.toLowerCase().contains("widely")) {
-                String q = query.replace("widely", "").trim();
-                result = fetchPublicSearchResult(q);
-            } else {
-                result = fetchWikiResult(query);
-                // 如果 Wiki 没搜到，自动尝试全网搜索
-                if (result.equals("未找到相关 Wiki 条目。")) {
-                    player.sendMessage(ChatColor.GRAY + "〇 Wiki 无结果，正在尝试全网搜索...");
-                    result = fetchPublicSearchResult(query);
-                }
-            }
-            
-            final String finalResult = result;
-            Bukkit.getScheduler().runTask(plugin, () -> {
-                feedbackToAI(player, "#search_result: " + finalResult);
-            });
-        });
     }
 
     /**
-     * 调用 Minecraft Wiki 公开 API 搜索
+     * 把同一轮的全部 #search 作为一个调度任务提交，任务开始后同时发起各个搜索
+     *
+     * 调度器每名玩家同一时间只执行一个任务，逐个提交会让同一轮的搜索依次排队；
+     * 合并后只占用该玩家的一个名额。单个搜索出错只影响它自己的结果，取消任务会一并取消其中的搜索。
+     *
+     * @return 与 queries 一一对应的 #search_result 反馈
      */
-    private String fetchWikiResult(String query) {
-        try {
-            // 使用 Minecraft Wiki 的 MediaWiki API
-            String url = "https://zh.minecraft.wiki/api.php?action=query&list=search&srsearch=" + 
-                         java.net.URLEncoder.encode(query, "UTF-8") + "&format=json&utf8=1";
-            
-            okhttp3.Request request = new okhttp3.Request.Builder().url(url).build();
-             try (okhttp3.Response response = ai.getHttpClient().newCall(request).execute()) {
-                 if (response.isSuccessful() && response.body() != null) {
-                    com.google.gson.JsonObject json = com.google.gson.JsonParser.parseString(response.body().string()).getAsJsonObject();
-                    com.google.gson.JsonArray searchResults = json.getAsJsonObject("query").getAsJsonArray("search");
-                    
-                    if (searchResults.size() > 0) {
-                        StringBuilder sb = new StringBuilder("Minecraft Wiki 搜索结果：\n");
-                        for (int i = 0; i < Math.min(3, searchResults.size()); i++) {
-                            com.google.gson.JsonObject item = searchResults.get(i).getAsJsonObject();
-                            String title = item.get("title").getAsString();
-                            String snippet = item.get("snippet").getAsString().replaceAll("<[^>]*>", ""); // 移除 HTML 标签
-                            sb.append("- ").append(title).append(": ").append(snippet).append("\n");
+    private CompletableFuture<List<String>> submitSearches(Player player, List<String> queries) {
+        for (String query : queries) {
+            player.sendMessage(ChatColor.GRAY + "〇 #search: " + query);
+        }
+        return scheduler.submit(player.getUniqueId(), () -> {
+            List<CompletableFuture<String>> searches = new ArrayList<>();
+            for (String query : queries) {
+                searches.add(searchManager.search(query, notice -> player.sendMessage(ChatColor.GRAY + "〇 " + notice)));
+            }
+            CompletableFuture<List<String>> all = CompletableFuture.allOf(searches.toArray(new CompletableFuture<?>[0]))
+                    .handle((v, ignored) -> {
+                        List<String> feedback = new ArrayList<>();
+                        for (CompletableFuture<String> search : searches) {
+                            feedback.add(search.handle((result, error) -> {
+                                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                                return "#search_result: " + (error == null ? result : "搜索出错: " + cause.getMessage());
+                            }).join());
                         }
-                        return sb.toString();
+                        return feedback;
+                    });
+            all.whenComplete((feedback, error) -> {
+                if (all.isCancelled()) {
+                    for (CompletableFuture<String> search : searches) {
+                        search.cancel(true);
                     }
                 }
-            }
-        } catch (Exception e) {
-            return "Wiki 搜索出错: " + e.getMessage();
-        }
-        return "未找到相关 Wiki 条目。";
+            });
+            return all;
+        }, position -> notifyQueued(player, position));
+    }
+
+    private void feedbackToAI(Player player, CLIPlayerState state, int turn, ToolCall call, String result) {
+        feedbackToAI(player, state, turn, Collections.singletonList(call), Collections.singletonList(result));
     }
 
     /**
-     * 调用公开搜索接口 (UAPI Aggregate Search)
+     * 把工具结果反馈给 AI 并继续生成
+     *
+     * 原生函数调用的结果作为对应调用的函数输出写入历史；文本形式调用的结果合并为一条用户消息。
+     * 本轮被忽略的调用各附一条错误，提醒 AI 它们没有执行。
      */
-    private String fetchPublicSearchResult(String query) {
-        try {
-            // 使用 UAPI 的聚合搜索接口
-            String url = "https://uapis.cn/api/v1/search/aggregate";
-            
-            com.google.gson.JsonObject bodyJson = new com.google.gson.JsonObject();
-            // 参数名确认为 query
-            bodyJson.addProperty("query", query);
-            
-            okhttp3.RequestBody body = okhttp3.RequestBody.create(
-                bodyJson.toString(),
-                okhttp3.MediaType.get("application/json; charset=utf-8")
-            );
-            
-            okhttp3.Request request = new okhttp3.Request.Builder()
-                .url(url)
-                .header("User-Agent", "MineAgent/1.0")
-                .post(body)
-                .build();
-                
-             try (okhttp3.Response response = ai.getHttpClient().newCall(request).execute()) {
-                 if (response.isSuccessful() && response.body() != null) {
-                    String responseBody = response.body().string();
-                    com.google.gson.JsonElement jsonElement = com.google.gson.JsonParser.parseString(responseBody);
-                    
-                    com.google.gson.JsonArray results = null;
-                    if (jsonElement.isJsonArray()) {
-                        results = jsonElement.getAsJsonArray();
-                    } else if (jsonElement.isJsonObject()) {
-                        com.google.gson.JsonObject jsonObj = jsonElement.getAsJsonObject();
-                        if (jsonObj.has("data") && jsonObj.get("data").isJsonArray()) {
-                            results = jsonObj.getAsJsonArray("data");
-                        } else if (jsonObj.has("results") && jsonObj.get("results").isJsonArray()) {
-                            results = jsonObj.getAsJsonArray("results");
-                        }
-                    }
+    private void feedbackToAI(Player player, CLIPlayerState state, int turn, List<ToolCall> calls, List<String> results) {
+        // 工具执行期间玩家已打断或退出 CLI（或打断后已开始新的一轮），丢弃迟到的结果
+        if (!state.isCurrentTurn(turn)) {
+            plugin.getLogger().info("[CLI] Discarding tool feedback for " + player.getName() + " due to interruption.");
+            return;
+        }
 
-                    if (results != null && results.size() > 0) {
-                        StringBuilder sb = new StringBuilder("全网搜索结果 (" + query + ")：\n");
-                        for (int i = 0; i < Math.min(5, results.size()); i++) {
-                            com.google.gson.JsonObject item = results.get(i).getAsJsonObject();
-                            
-                            String title = "无标题";
-                            if (item.has("title") && !item.get("title").isJsonNull()) {
-                                title = item.get("title").getAsString();
-                            }
-                            
-                            String content = "";
-                            if (item.has("content") && !item.get("content").isJsonNull()) {
-                                content = item.get("content").getAsString();
-                            } else if (item.has("snippet") && !item.get("snippet").isJsonNull()) {
-                                content = item.get("snippet").getAsString();
-                            } else if (item.has("abstract") && !item.get("abstract").isJsonNull()) {
-                                content = item.get("abstract").getAsString();
-                            }
-                            
-                            if (content.length() > 500) {
-                                content = content.substring(0, 500) + "...";
-                            }
-                            
-                            sb.append("- ").append(title).append(": ").append(content).append("\n");
-                        }
-                        return sb.toString();
-                    }
-                } else {
-                        plugin.getLogger().warning("UAPI 搜索失败: " + response.code() + " " + response.message());
-                        try {
-                             plugin.getLogger().warning("UAPI 错误详情: " + response.body().string());
-                        } catch (Exception ignored) {}
-                    }
+        List<ToolCall> ignored = state.takeIgnoredCalls();
+        if (!ignored.isEmpty()) {
+            calls = new ArrayList<>(calls);
+            results = new ArrayList<>(results);
+            for (ToolCall call : ignored) {
+                calls.add(call);
+                results.add("#error: 该工具调用需要单独一轮执行，已被忽略，如仍需要请重新调用：" + call);
             }
-        } catch (Exception e) {
-            return "全网搜索出错: " + e.getMessage();
         }
-        return "未找到相关全网搜索结果。";
-    }
 
-    private void feedbackToAI(Player player, String feedback) {
-        UUID uuid = player.getUniqueId();
-        DialogueSession session = sessions.get(uuid);
-        if (session == null) return;
-
-        session.addMessage("user", feedback);
-        isGenerating.put(uuid, true);
+        DialogueSession session = state.getSession();
+        if (calls.get(0).getCallId() != null) {
+            for (int i = 0; i < calls.size(); i++) {
+                session.addMessage(DialogueSession.Message.functionCallOutput(calls.get(i).getCallId(), results.get(i)));
+            }
+        } else {
+            session.addMessage("user", String.join("\n\n", results));
+        }
 
         // 工具返回信息不显示给玩家，仅在日志记录并触发 AI 思考
-        plugin.getLogger().info("[CLI] Feedback sent to AI for " + player.getName() + ": " + feedback);
+        plugin.getLogger().info("[CLI] Feedback sent to AI for " + player.getName() + ": " + String.join(" | ", results));
         
         // 异步调用 AI，不显示 "Thought..." 提示，因为这是后台自动反馈
-        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
-            try {
-                    String systemPrompt = promptManager.getBaseSystemPrompt(player);
-                    String response = ai.chat(session, systemPrompt);
-
-                Bukkit.getScheduler().runTask(plugin, () -> {
-                    handleAIResponse(player, response);
-                });
-            } catch (IOException e) {
-                Bukkit.getScheduler().runTask(plugin, () -> {
-                    player.sendMessage(ChatColor.RED + "AI 调用出错: " + e.getMessage());
-                    isGenerating.put(uuid, false);
-                });
-            }
-        });
+        requestAIResponse(player, state, turn, false);
     }
 
-    private void displayAgentContent(Player player, String content) {
+    /**
+     * 构建 Agent 正文的消息组件，不涉及玩家对象，可在异步线程调用
+     *
+     * @param first 是否为本轮回复的第一段，后续流式片段使用缩进代替 ◆ 前缀
+     */
+    private static TextComponent buildAgentComponent(String content, boolean first) {
         // 先处理代码块 ```...```
         String[] codeParts = content.split("```");
-        TextComponent finalMessage = new TextComponent(ChatColor.WHITE + "◆ ");
+        TextComponent finalMessage = new TextComponent(ChatColor.WHITE + (first ? "◆ " : "  "));
         
         for (int i = 0; i < codeParts.length; i++) {
             if (i % 2 == 1) {
@@ -831,7 +1022,7 @@ public class CLIManager {
                 }
             }
         }
-        player.spigot().sendMessage(finalMessage);
+        return finalMessage;
     }
 
     private void sendAgreement(Player player) {
@@ -856,7 +1047,115 @@ public class CLIManager {
         player.sendMessage(ChatColor.GRAY + "==================");
     }
 
-    public ChatColor getActivePlayersCount() {
-        throw new UnsupportedOperationException("Unimplemented method 'getActivePlayersCount'");
+    public int getActivePlayersCount() {
+        int count = 0;
+        for (CLIPlayerState state : players.values()) {
+            if (state.isActive()) count++;
+        }
+        return count;
+    }
+
+    public synchronized long getMainThreadTurns() {
+        return mainThreadTurns;
+    }
+
+    public synchronized long getAverageMainThreadMicros() {
+        return mainThreadTurns == 0 ? 0 : mainThreadNanos / mainThreadTurns / 1000;
+    }
+
+    public synchronized long getMaxMainThreadMicros() {
+        return maxMainThreadNanos / 1000;
+    }
+
+    /**
+     * 各命令等待反馈的统计快照
+     */
+    public synchronized List<CommandWaitStats> getCommandWaitStats() {
+        List<CommandWaitStats> list = new ArrayList<>();
+        for (CommandWaitStats stats : commandWaits.values()) {
+            list.add(stats.copy());
+        }
+        return list;
+    }
+
+    public AIRequestScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public HistoryCompactor getHistoryCompactor() {
+        return historyCompactor;
+    }
+
+    public SearchManager getSearchManager() {
+        return searchManager;
+    }
+
+    /**
+     * 单个命令等待反馈的统计
+     */
+    public static class CommandWaitStats {
+        private final String command;
+        private long runs = 0;
+        private long syncRuns = 0;
+        private long totalTicks = 0;
+        private int maxTicks = 0;
+
+        private CommandWaitStats(String command) {
+            this.command = command;
+        }
+
+        private void record(int ticks, boolean sync) {
+            runs++;
+            if (sync) syncRuns++;
+            totalTicks += ticks;
+            maxTicks = Math.max(maxTicks, ticks);
+        }
+
+        private CommandWaitStats copy() {
+            CommandWaitStats copy = new CommandWaitStats(command);
+            copy.runs = runs;
+            copy.syncRuns = syncRuns;
+            copy.totalTicks = totalTicks;
+            copy.maxTicks = maxTicks;
+            return copy;
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        public long getRuns() {
+            return runs;
+        }
+
+        /**
+         * 作为同步命令免于等待的次数
+         */
+        public long getSyncRuns() {
+            return syncRuns;
+        }
+
+        public double getAverageTicks() {
+            return runs == 0 ? 0 : (double) totalTicks / runs;
+        }
+
+        public int getMaxTicks() {
+            return maxTicks;
+        }
+    }
+
+    /**
+     * 在异步线程中解析好的 AI 回复
+     */
+    private static class AgentReply {
+        private final List<DialogueSession.Message> messages;
+        private final List<ToolCall> calls;
+        private final TextComponent display;
+
+        private AgentReply(List<DialogueSession.Message> messages, List<ToolCall> calls, TextComponent display) {
+            this.messages = messages;
+            this.calls = calls;
+            this.display = display;
+        }
     }
 }
@@ -0,0 +1,192 @@
+package org.YanPl.manager;
+
+import org.YanPl.model.CommandInfo;
+import org.YanPl.util.CommandSearchIndex;
+import org.bukkit.permissions.Permissible;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 按权限过滤的命令视图缓存
+ *
+ * 玩家的权限指纹是他对索引中每个不同权限节点的 hasPermission 结果组成的位集，权限相同的玩家共享同一个视图。
+ * 每名玩家取到的视图按玩家缓存，直到命令索引的代数变化或调用 invalidate（玩家权限重新计算、离线）；
+ * 计算指纹需要查询权限，只能在主线程进行，读取缓存可在任意线程。
+ */
+public class CommandViewCache {
+    /** 缓存的视图数上限，超过后清空重建（通常只有少数几个权限组） */
+    private static final int MAX_VIEWS = 256;
+
+    private final CommandSearchIndex index;
+    private volatile Table table;
+    /** 玩家 -> 上次为其计算的视图 */
+    private final Map<UUID, CommandView> playerViews = new ConcurrentHashMap<>();
+
+    public CommandViewCache(CommandSearchIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * 获取玩家在当前索引代数下缓存的视图，没有或已过期时返回 null，可在任意线程调用
+     */
+    public CommandView getCachedView(UUID player) {
+        CommandView view = playerViews.get(player);
+        return view != null && view.generation == index.getGeneration() ? view : null;
+    }
+
+    /**
+     * 获取玩家上次缓存的视图（可能属于旧的索引代数），没有时返回 null
+     */
+    public CommandView getLastView(UUID player) {
+        return playerViews.get(player);
+    }
+
+    /**
+     * 作废玩家缓存的视图，下次获取时重新计算权限指纹
+     */
+    public void invalidate(UUID player) {
+        playerViews.remove(player);
+    }
+
+    /**
+     * 计算该玩家可执行的命令视图并缓存（主线程，Bukkit 的权限查询不是线程安全的）
+     */
+    public CommandView getView(UUID player, Permissible permissible) {
+        CommandView view = computeView(permissible);
+        playerViews.put(player, view);
+        return view;
+    }
+
+    private CommandView computeView(Permissible permissible) {
+        Table current = currentTable();
+        BitSet fingerprint = new BitSet(current.nodes.size());
+        for (int i = 0; i < current.nodes.size(); i++) {
+            if (permissible.hasPermission(current.nodes.get(i))) {
+                fingerprint.set(i);
+            }
+        }
+
+        CommandView view = current.views.get(fingerprint);
+        if (view == null) {
+            if (current.views.size() >= MAX_VIEWS) {
+                current.views.clear();
+            }
+            view = current.views.computeIfAbsent(fingerprint, current::buildView);
+        }
+        return view;
+    }
+
+    /**
+     * 当前缓存的不同视图数
+     */
+    public int getViewCount() {
+        Table current = table;
+        return current == null ? 0 : current.views.size();
+    }
+
+    private Table currentTable() {
+        long generation = index.getGeneration();
+        Table current = table;
+        if (current == null || current.generation != generation) {
+            current = new Table(generation, index.getAll());
+            table = current;
+        }
+        return current;
+    }
+
+    /**
+     * 某一索引代数下的权限节点表与已生成的视图
+     */
+    private static final class Table {
+        private final long generation;
+        private final List<CommandInfo> commands;
+        /** 索引中出现过的全部权限节点，位集的第 i 位对应第 i 个节点 */
+        private final List<String> nodes = new ArrayList<>();
+        /** 每个命令需要的权限节点下标，拥有其中任意一个即可执行；为空表示无需权限 */
+        private final int[][] required;
+        private final Map<BitSet, CommandView> views = new ConcurrentHashMap<>();
+
+        private Table(long generation, List<CommandInfo> commands) {
+            this.generation = generation;
+            this.commands = commands;
+            this.required = new int[commands.size()][];
+
+            Map<String, Integer> nodeIndex = new HashMap<>();
+            for (int i = 0; i < commands.size(); i++) {
+                String permission = commands.get(i).getPermission();
+                if (permission.isEmpty()) {
+                    required[i] = new int[0];
+                    continue;
+                }
+                // 与 Command.testPermissionSilent 一致：多个节点以 ; 分隔，满足任意一个即可
+                String[] parts = permission.split(";");
+                int[] indexes = new int[parts.length];
+                for (int j = 0; j < parts.length; j++) {
+                    indexes[j] = nodeIndex.computeIfAbsent(parts[j].trim(), node -> {
+                        nodes.add(node);
+                        return nodes.size() - 1;
+                    });
+                }
+                required[i] = indexes;
+            }
+        }
+
+        private CommandView buildView(BitSet fingerprint) {
+            Set<String> allowed = new HashSet<>();
+            for (int i = 0; i < commands.size(); i++) {
+                int[] indexes = required[i];
+                boolean permitted = indexes.length == 0;
+                for (int index : indexes) {
+                    if (fingerprint.get(index)) {
+                        permitted = true;
+                        break;
+                    }
+                }
+                if (permitted) {
+                    allowed.add(commands.get(i).getName());
+                }
+            }
+            return new CommandView(generation, allowed);
+        }
+    }
+
+    /**
+     * 一组权限可执行的命令，不可变，可在任意线程读取
+     */
+    public static final class CommandView {
+        /** 无法取得玩家权限时使用的空视图 */
+        public static final CommandView EMPTY = new CommandView(-1, Collections.emptySet());
+
+        private final long generation;
+        private final Set<String> allowed;
+
+        private CommandView(long generation, Set<String> allowed) {
+            this.generation = generation;
+            this.allowed = Collections.unmodifiableSet(allowed);
+        }
+
+        /**
+         * 生成该视图时命令索引的代数
+         */
+        public long getGeneration() {
+            return generation;
+        }
+
+        public boolean allows(String commandName) {
+            return allowed.contains(commandName);
+        }
+
+        public int size() {
+            return allowed.size();
+        }
+    }
+}
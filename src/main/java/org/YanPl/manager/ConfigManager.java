@@ -7,8 +7,12 @@ import org.bukkit.configuration.file.YamlConfiguration;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * 配置管理器，负责加载和保存插件配置
@@ -16,6 +20,8 @@ import java.util.Map;
 public class ConfigManager {
     private final MineAgent plugin;
     private FileConfiguration config;
+    /** 已知同步执行的命令，加载配置时解析一次 */
+    private Set<String> syncCommands = new HashSet<>();
 
     public ConfigManager(MineAgent plugin) {
         this.plugin = plugin;
@@ -98,6 +104,15 @@ public class ConfigManager {
         plugin.saveDefaultConfig();
         plugin.reloadConfig();
         this.config = plugin.getConfig();
+
+        Set<String> commands = new HashSet<>();
+        for (String command : config.getStringList("command_output.sync_commands")) {
+            String label = command.trim().toLowerCase(Locale.ROOT);
+            if (label.startsWith("/")) label = label.substring(1);
+            if (label.startsWith("minecraft:")) label = label.substring("minecraft:".length());
+            if (!label.isEmpty()) commands.add(label);
+        }
+        this.syncCommands = Collections.unmodifiableSet(commands);
     }
 
     /**
@@ -127,4 +142,181 @@ public class ConfigManager {
     public int getTokenWarningThreshold() {
         return config.getInt("settings.token_warning_threshold", 500);
     }
+
+    /**
+     * 是否启用流式输出
+     */
+    public boolean isStreamEnabled() {
+        return config.getBoolean("settings.stream", true);
+    }
+
+    /**
+     * 获取单轮任务（含工具循环）的总时限，单位秒
+     */
+    public int getTurnTimeoutSeconds() {
+        return config.getInt("settings.turn_timeout_seconds", 180);
+    }
+
+    /**
+     * 获取 AI 请求的全局最大并发数
+     */
+    public int getMaxConcurrentRequests() {
+        return config.getInt("scheduler.max_concurrent", 4);
+    }
+
+    /**
+     * 获取 Token 计数使用的 tiktoken 编码名称
+     *
+     * settings.tokenizer 为 auto 时按模型推断：gpt-oss / gpt-4o 使用 o200k_base，gpt-4 / gpt-3.5 使用 cl100k_base，
+     * 其他模型返回 none（使用近似估算）。
+     */
+    public String getTokenizerEncoding() {
+        String setting = config.getString("settings.tokenizer", "auto");
+        if (!"auto".equalsIgnoreCase(setting)) {
+            return setting;
+        }
+        String model = getCloudflareModel().toLowerCase();
+        if (model.contains("gpt-oss") || model.contains("gpt-4o") || model.contains("gpt-5")) {
+            return "o200k_base";
+        }
+        if (model.contains("gpt-4") || model.contains("gpt-3.5")) {
+            return "cl100k_base";
+        }
+        return "none";
+    }
+
+    /**
+     * 获取对话历史（含摘要，不含系统提示词）的 Token 预算，0 表示不限制
+     */
+    public int getHistoryTokenBudget() {
+        return config.getInt("settings.history_token_budget", 6000);
+    }
+
+    /**
+     * 是否在后台将较早的对话压缩为摘要
+     */
+    public boolean isHistorySummaryEnabled() {
+        return config.getBoolean("settings.history_summary", true);
+    }
+
+    /**
+     * 是否启用服务端对话状态（Responses API 的 previous_response_id）
+     */
+    public boolean isStatefulConversationEnabled() {
+        return config.getBoolean("settings.stateful_conversation", false);
+    }
+
+    /**
+     * 获取对话链续接的消息数上限，超过后完整重放一次历史以重新开始
+     */
+    public int getStatefulMaxChainMessages() {
+        return config.getInt("settings.stateful_max_chain_messages", 40);
+    }
+
+    /**
+     * 是否使用原生函数调用（在请求中声明 JSON Schema 工具）代替文本形式的 #工具 约定
+     */
+    public boolean isNativeToolsEnabled() {
+        return config.getBoolean("settings.native_tools", false);
+    }
+
+    /**
+     * 获取 #run 命令返回后输出连续空闲多少 tick 即视为反馈结束
+     */
+    public int getCommandOutputIdleTicks() {
+        return Math.max(1, config.getInt("command_output.idle_ticks", 4));
+    }
+
+    /**
+     * 获取 #run 命令等待反馈的最长 tick 数
+     */
+    public int getCommandOutputMaxWaitTicks() {
+        return Math.max(1, config.getInt("command_output.max_wait_ticks", 60));
+    }
+
+    /**
+     * 获取 #batch 批量命令每 tick 可用的执行时间（毫秒）
+     */
+    public int getBatchTickBudgetMillis() {
+        return Math.max(1, config.getInt("command_output.batch_tick_budget_ms", 5));
+    }
+
+    /**
+     * 获取一次 #batch 最多包含的命令条数
+     */
+    public int getBatchMaxCommands() {
+        return config.getInt("command_output.batch_max_commands", 500);
+    }
+
+    /**
+     * 获取已知同步执行的原版命令（小写，不含斜杠与 minecraft: 前缀），这些命令返回后立即收集反馈
+     *
+     * 只有标签实际解析到原版命令时才适用，判断由调用方完成。
+     */
+    public Set<String> getSyncCommands() {
+        return syncCommands;
+    }
+
+    /**
+     * 获取提示词中注入的相关命令数量上限
+     */
+    public int getPromptCommandLimit() {
+        return config.getInt("settings.prompt_command_limit", 30);
+    }
+
+    /**
+     * 获取提示词中注入的相关预设片段的 Token 预算，0 表示不注入
+     */
+    public int getPromptPresetTokens() {
+        return Math.max(0, config.getInt("settings.prompt_preset_tokens", 600));
+    }
+
+    /**
+     * 获取搜索缓存有效期（分钟）
+     */
+    public int getSearchCacheTtlMinutes() {
+        return config.getInt("search.cache.ttl_minutes", 720);
+    }
+
+    /**
+     * 获取搜索缓存最大条目数
+     */
+    public int getSearchCacheMaxEntries() {
+        return config.getInt("search.cache.max_entries", 500);
+    }
+
+    /**
+     * 获取搜索缓存最大占用（KB）
+     */
+    public int getSearchCacheMaxKilobytes() {
+        return config.getInt("search.cache.max_kilobytes", 4096);
+    }
+
+    /**
+     * 是否先在本地命令知识库中查找 #search，未命中时再访问网络
+     */
+    public boolean isKnowledgeBaseEnabled() {
+        return config.getBoolean("search.knowledge.enabled", true);
+    }
+
+    /**
+     * 是否并行查询 Wiki 与全网搜索（search.mode: parallel / sequential）
+     */
+    public boolean isParallelSearch() {
+        return !"sequential".equalsIgnoreCase(config.getString("search.mode", "parallel"));
+    }
+
+    /**
+     * 获取一次 #search 的总时限（秒）
+     */
+    public int getSearchDeadlineSeconds() {
+        return config.getInt("search.deadline_seconds", 15);
+    }
+
+    /**
+     * 获取首个有效结果返回后等待其他来源合并的时间（毫秒）
+     */
+    public int getSearchMergeWindowMillis() {
+        return config.getInt("search.merge_window_ms", 400);
+    }
 }
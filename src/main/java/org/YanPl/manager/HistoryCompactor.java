@@ -0,0 +1,197 @@
+package org.YanPl.manager;
+
+import org.YanPl.MineAgent;
+import org.YanPl.api.CloudFlareAI;
+import org.YanPl.model.DialogueSession;
+import org.YanPl.util.StreamSegmenter;
+import org.bukkit.Bukkit;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 对话历史压缩器，按 Token 预算管理 DialogueSession
+ *
+ * 历史超过预算的 75% 时，在后台把较早的对话交给 AI 压缩为滚动摘要，不阻塞玩家当前的请求；
+ * 请求发出前若仍超过预算（摘要尚未完成或已关闭摘要功能），则直接丢弃最早的消息。
+ */
+public class HistoryCompactor {
+    private static final double SUMMARY_TRIGGER_RATIO = 0.75;
+    private static final double SUMMARY_KEEP_RATIO = 0.4;
+    private static final int MIN_KEEP_MESSAGES = 4;
+    private static final int MAX_SUMMARY_CHARS = 2000;
+    private static final int MAX_TRANSCRIPT_MESSAGE_CHARS = 3000;
+    private static final long SUMMARY_TIMEOUT_MILLIS = 120_000L;
+
+    private static final String SUMMARY_PROMPT =
+            "你是对话压缩助手。请把下面 Minecraft 服务器中玩家与 MineAgent 的对话压缩为简洁的中文摘要。\n" +
+            "必须保留：玩家的目标与偏好、已执行的命令及其结果、查到的关键信息与结论、尚未完成的任务。\n" +
+            "不要编造内容，不要输出任何以 # 开头的工具调用，不要寒暄，摘要不超过 600 字。\n";
+
+    private final MineAgent plugin;
+    private final CloudFlareAI ai;
+    private final AIRequestScheduler scheduler;
+    private final Map<DialogueSession, CompletableFuture<String>> running = new ConcurrentHashMap<>();
+
+    private long summaries = 0;
+    private long failures = 0;
+    private long droppedMessages = 0;
+
+    public HistoryCompactor(MineAgent plugin, CloudFlareAI ai, AIRequestScheduler scheduler) {
+        this.plugin = plugin;
+        this.ai = ai;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * 在发出 AI 请求前调用：必要时启动后台摘要，并保证历史不超过预算
+     *
+     * 玩家发言时在异步聊天线程调用，工具反馈时在主线程调用；会话的读写均为同步方法，
+     * 启动摘要的检查与登记在会话锁内完成，两个线程同时调用也只会启动一次摘要。
+     *
+     * @param owner 会话所属玩家，摘要请求以由它派生的所有者参与调度器的轮询
+     */
+    public void beforeRequest(DialogueSession session, UUID owner) {
+        int budget = plugin.getConfigManager().getHistoryTokenBudget();
+        if (budget <= 0) return;
+
+        if (plugin.getConfigManager().isHistorySummaryEnabled()
+                && session.getEstimatedTokens() > budget * SUMMARY_TRIGGER_RATIO) {
+            startSummary(session, owner, budget);
+        }
+
+        int dropped = session.trimToBudget(budget);
+        if (dropped > 0) {
+            synchronized (this) {
+                droppedMessages += dropped;
+            }
+            plugin.getLogger().info("[History] 历史超出 Token 预算，已丢弃 " + dropped + " 条最早的消息。");
+        }
+    }
+
+    private void startSummary(DialogueSession session, UUID owner, int budget) {
+        synchronized (session) {
+            if (running.containsKey(session)) return;
+            submitSummary(session, owner, budget);
+        }
+    }
+
+    /**
+     * 摘要请求的调度所有者：每个玩家一个，与玩家自己的对话请求互不占用名额，
+     * 不同玩家的摘要之间仍按所有者公平轮询，一个慢摘要不会拖住其他玩家
+     */
+    private static UUID summaryOwner(UUID player) {
+        return UUID.nameUUIDFromBytes(("MineAgent-Summary:" + player).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void submitSummary(DialogueSession session, UUID owner, int budget) {
+
+        List<DialogueSession.Message> compacted = session.selectForCompaction((int) (budget * SUMMARY_KEEP_RATIO), MIN_KEEP_MESSAGES);
+        if (compacted.isEmpty()) return;
+
+        long generation = session.getGeneration();
+        DialogueSession request = new DialogueSession();
+        request.addMessage("user", buildTranscript(session.getSummary(), compacted));
+
+        CompletableFuture<String> future = scheduler.submit(summaryOwner(owner),
+                () -> ai.chatAsync(request, SUMMARY_PROMPT, "", null, System.currentTimeMillis() + SUMMARY_TIMEOUT_MILLIS, false),
+                null);
+        running.put(session, future);
+
+        future.whenComplete((text, error) -> {
+            running.remove(session, future);
+            if (future.isCancelled()) return;
+            // chatAsync 在未配置 cf_key 时会直接返回以 "错误:" 开头的提示文本
+            if (error != null || text == null || text.trim().isEmpty() || text.startsWith("错误:")) {
+                synchronized (this) {
+                    failures++;
+                }
+                plugin.getLogger().warning("[History] 生成对话摘要失败: " + (error != null ? error.getMessage() : "结果为空"));
+                return;
+            }
+
+            String summary = StreamSegmenter.cleanResponse(text).trim();
+            if (summary.length() > MAX_SUMMARY_CHARS) {
+                summary = summary.substring(0, MAX_SUMMARY_CHARS) + "...";
+            }
+            String finalSummary = summary;
+            Bukkit.getScheduler().runTask(plugin, () -> {
+                if (session.applySummary(finalSummary, compacted, generation)) {
+                    synchronized (this) {
+                        summaries++;
+                    }
+                    plugin.getLogger().info("[History] 已将 " + compacted.size() + " 条较早的消息压缩为摘要 (" + finalSummary.length() + " 字)。");
+                }
+            });
+        });
+    }
+
+    /**
+     * 将已有摘要与待压缩的消息整理为一段对话记录
+     */
+    private String buildTranscript(String previousSummary, List<DialogueSession.Message> messages) {
+        StringBuilder sb = new StringBuilder();
+        if (previousSummary != null && !previousSummary.isEmpty()) {
+            sb.append("已有摘要：\n").append(previousSummary).append("\n\n");
+            sb.append("请将已有摘要与以下新增对话合并为一份新的摘要。\n\n");
+        }
+        sb.append("对话记录：\n");
+        for (DialogueSession.Message msg : messages) {
+            String label;
+            if (msg.isFunctionCall()) {
+                label = "[Agent] 调用工具 " + msg.getName() + ": ";
+            } else if (msg.isFunctionCallOutput()) {
+                label = "[工具反馈] ";
+            } else if ("assistant".equals(msg.getRole())) {
+                label = "[Agent] ";
+            } else if (msg.getContent().startsWith("#")) {
+                label = "[工具反馈] ";
+            } else {
+                label = "[玩家] ";
+            }
+            String content = msg.getContent();
+            // 单条过长的工具反馈（如搜索结果）只保留开头，避免摘要请求本身超出窗口
+            if (content.length() > MAX_TRANSCRIPT_MESSAGE_CHARS) {
+                content = content.substring(0, MAX_TRANSCRIPT_MESSAGE_CHARS) + "...";
+            }
+            sb.append(label).append(content).append("\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 取消某个会话正在进行的摘要（玩家退出 CLI 时调用）
+     */
+    public void cancel(DialogueSession session) {
+        if (session == null) return;
+        CompletableFuture<String> future = running.remove(session);
+        if (future != null) {
+            future.cancel(true);
+        }
+    }
+
+    public void shutdown() {
+        for (CompletableFuture<String> future : new ArrayList<>(running.values())) {
+            future.cancel(true);
+        }
+        running.clear();
+    }
+
+    public synchronized long getSummaries() {
+        return summaries;
+    }
+
+    public synchronized long getFailures() {
+        return failures;
+    }
+
+    public synchronized long getDroppedMessages() {
+        return droppedMessages;
+    }
+
+    public int getRunningCount() {
+        return running.size();
+    }
+}
@@ -0,0 +1,212 @@
+package org.YanPl.manager;
+
+import org.YanPl.MineAgent;
+import org.YanPl.util.KnowledgeImporter;
+import org.YanPl.util.KnowledgeIndex;
+import org.YanPl.util.ResourceUtil;
+import org.bukkit.Bukkit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 本地原版命令知识库，#search 先在这里查找，只有未命中时才访问网络
+ *
+ * 数据来自插件内置的语法数据与 knowledge/import/ 目录下的本地文件（语法数据 .txt 或 Wiki 导出 .xml），
+ * 导入后写入 knowledge/版本号.idx。条目本身不按游戏版本筛选，版本号只用于区分索引缓存；
+ * 来源未变化时启动直接读取该文件，不再解析原始数据。
+ */
+public class KnowledgeBase {
+    private static final String BUNDLED_DATASET = "knowledge/commands.txt";
+    /** 一次查询最多返回的条目数 */
+    private static final int MAX_HITS = 3;
+    /** 参与挑选的候选条目数，直接提到命令名的条目可以越过相关度更高的其他条目 */
+    private static final int CANDIDATES = 8;
+    /** 返回内容的字符数上限 */
+    private static final int MAX_RESULT_CHARS = 2500;
+    /** 查询未直接提到命令名时，查询词在条目中出现的比例至少达到该值才视为命中 */
+    private static final float MIN_COVERAGE = 0.6f;
+
+    private final MineAgent plugin;
+    private final File directory;
+    private final File importDir;
+    private volatile KnowledgeIndex index;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public KnowledgeBase(MineAgent plugin) {
+        this.plugin = plugin;
+        this.directory = new File(plugin.getDataFolder(), "knowledge");
+        this.importDir = new File(directory, "import");
+    }
+
+    /**
+     * 在后台线程加载当前游戏版本的索引
+     *
+     * @param reimport 为 true 时忽略磁盘上的索引，重新导入全部来源
+     * @return 加载完成（无论成功与否）时结束的 Future
+     */
+    public CompletableFuture<Void> loadAsync(boolean reimport) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            try {
+                load(reimport);
+            } catch (Exception e) {
+                plugin.getLogger().warning("加载本地命令知识库失败: " + e.getMessage());
+            } finally {
+                done.complete(null);
+            }
+        });
+        return done;
+    }
+
+    private synchronized void load(boolean reimport) throws IOException {
+        long start = System.nanoTime();
+        importDir.mkdirs();
+        String version = getGameVersion();
+        String stamp = sourceStamp();
+        File indexFile = new File(directory, version + ".idx");
+
+        if (!reimport && indexFile.isFile()) {
+            try {
+                KnowledgeIndex stored = KnowledgeIndex.read(indexFile);
+                if (stored.getGameVersion().equals(version) && stored.getSourceStamp().equals(stamp)) {
+                    index = stored;
+                    plugin.getLogger().info("已加载本地命令知识库 " + version + "（" + stored.size() + " 条，用时 "
+                            + (System.nanoTime() - start) / 1_000_000 + "ms）。");
+                    return;
+                }
+            } catch (IOException e) {
+                plugin.getLogger().warning("本地命令知识库索引无法读取，将重新导入: " + e.getMessage());
+            }
+        }
+
+        List<KnowledgeIndex.Entry> entries = importAll();
+        KnowledgeIndex built = KnowledgeIndex.build(version, stamp, entries);
+        built.write(indexFile);
+        index = built;
+        plugin.getLogger().info("已导入本地命令知识库 " + version + "（" + built.size() + " 条，用时 "
+                + (System.nanoTime() - start) / 1_000_000 + "ms）。");
+    }
+
+    /**
+     * 读取内置语法数据与导入目录中的全部文件，只访问本地文件
+     */
+    private List<KnowledgeIndex.Entry> importAll() throws IOException {
+        List<KnowledgeIndex.Entry> entries = new ArrayList<>();
+        try (InputStream in = plugin.getResource(BUNDLED_DATASET)) {
+            if (in != null) {
+                entries.addAll(KnowledgeImporter.parseDataset(new InputStreamReader(in, StandardCharsets.UTF_8)));
+            }
+        }
+
+        for (File file : listImportFiles()) {
+            String name = file.getName().toLowerCase();
+            try (InputStream in = Files.newInputStream(file.toPath())) {
+                List<KnowledgeIndex.Entry> imported = name.endsWith(".xml")
+                        ? KnowledgeImporter.parseWikiDump(in)
+                        : KnowledgeImporter.parseDataset(new InputStreamReader(in, StandardCharsets.UTF_8));
+                entries.addAll(imported);
+                plugin.getLogger().info("从 " + file.getName() + " 导入 " + imported.size() + " 条命令资料。");
+            } catch (IOException e) {
+                plugin.getLogger().warning("导入 " + file.getName() + " 失败: " + e.getMessage());
+            }
+        }
+        return entries;
+    }
+
+    private List<File> listImportFiles() {
+        File[] files = importDir.listFiles((dir, name) -> {
+            String lower = name.toLowerCase();
+            return lower.endsWith(".txt") || lower.endsWith(".xml");
+        });
+        if (files == null) return new ArrayList<>();
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    /**
+     * 数据来源的状态：插件 JAR（内置数据）与导入目录中每个文件的大小和修改时间
+     */
+    private String sourceStamp() {
+        StringBuilder sb = new StringBuilder(ResourceUtil.jarStamp(plugin));
+        for (File file : listImportFiles()) {
+            sb.append('|').append(file.getName()).append(':').append(file.length()).append(':').append(file.lastModified());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 在本地知识库中查找，未加载或未命中时返回 null
+     */
+    public String lookup(String query) {
+        KnowledgeIndex current = index;
+        if (current == null) return null;
+
+        // 稳定排序：提到命令名的条目排在前面，其余保持相关度顺序
+        List<KnowledgeIndex.Hit> found = new ArrayList<>(current.search(query, CANDIDATES));
+        found.sort((a, b) -> Boolean.compare(b.isTitleMatched(), a.isTitleMatched()));
+        if (found.size() > MAX_HITS) found = found.subList(0, MAX_HITS);
+        if (found.isEmpty() || !isConfident(found.get(0))) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+
+        KnowledgeIndex.Hit top = found.get(0);
+        // 资料未按游戏版本筛选，标注出来以免模型把较新版本的命令或语法当作当前服务器可用
+        StringBuilder sb = new StringBuilder("本地命令知识库（通用语法资料，未按服务器版本 ").append(current.getGameVersion())
+                .append(" 筛选，个别命令或参数可能不存在或写法不同，请结合 #lookup 与命令反馈确认）：\n");
+        for (KnowledgeIndex.Hit hit : found) {
+            // 其余条目只有同样可信且相关度接近时才附上
+            if (hit != top && (!isConfident(hit) || hit.getScore() < top.getScore() * 0.5f)) continue;
+            if (hit != top && sb.length() + hit.getText().length() > MAX_RESULT_CHARS) break;
+            sb.append("- ").append(hit.getTitle()).append(":\n").append(hit.getText()).append("\n");
+        }
+        return sb.toString();
+    }
+
+    private boolean isConfident(KnowledgeIndex.Hit hit) {
+        return hit.isTitleMatched() || hit.getCoverage() >= MIN_COVERAGE;
+    }
+
+    /**
+     * 当前服务端的游戏版本，例如 1.20.4-R0.1-SNAPSHOT 取 1.20.4
+     */
+    private static String getGameVersion() {
+        String version = Bukkit.getBukkitVersion();
+        int dash = version.indexOf('-');
+        return (dash > 0 ? version.substring(0, dash) : version).replaceAll("[^0-9A-Za-z._]", "_");
+    }
+
+    public boolean isLoaded() {
+        return index != null;
+    }
+
+    public int size() {
+        KnowledgeIndex current = index;
+        return current == null ? 0 : current.size();
+    }
+
+    public String getLoadedVersion() {
+        KnowledgeIndex current = index;
+        return current == null ? "" : current.getGameVersion();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,245 @@
+package org.YanPl.manager;
+
+import org.YanPl.MineAgent;
+import org.YanPl.util.PresetChunkIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 预设文件内存缓存，负责加载 preset 目录下的 txt 文件并在文件变化时热更新
+ *
+ * 内容以不可变字符串保存，读取不涉及磁盘 IO，可在任意线程调用。
+ * 每次加载或删除文件时同步更新片段检索索引，供提示词按相关度注入预设内容。
+ */
+public class PresetStore {
+    private static final String EXTENSION = ".txt";
+
+    private final MineAgent plugin;
+    private final Path presetDir;
+    private final Map<String, String> presets = new ConcurrentHashMap<>();
+    /** 已加载文件的大小与修改时间，未变化的文件在重新加载时跳过 */
+    private final Map<String, String> stamps = new ConcurrentHashMap<>();
+    private final PresetChunkIndex chunkIndex = new PresetChunkIndex();
+    private final List<Runnable> changeListeners = new CopyOnWriteArrayList<>();
+    private Thread watchThread;
+    private WatchService watchService;
+
+    public PresetStore(MineAgent plugin) {
+        this.plugin = plugin;
+        this.presetDir = new File(plugin.getDataFolder(), "preset").toPath().toAbsolutePath().normalize();
+    }
+
+    /**
+     * 重新加载目录下的预设文件，大小与修改时间都未变化的文件不会重新读取
+     *
+     * @return 实际读取的文件数
+     */
+    public int loadAll() {
+        Set<String> seen = new HashSet<>();
+        int read = 0;
+        File[] files = presetDir.toFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.isFile() || !file.getName().toLowerCase().endsWith(EXTENSION)) continue;
+                String key = normalize(file.getName());
+                if (key == null) continue;
+                if (presets.containsKey(key) && stampOf(file).equals(stamps.get(key))) {
+                    seen.add(key);
+                    continue;
+                }
+                if (load(file.getName()) != null) {
+                    seen.add(key);
+                    read++;
+                }
+            }
+        }
+        presets.keySet().retainAll(seen);
+        stamps.keySet().retainAll(seen);
+        chunkIndex.retainFiles(seen);
+        return read;
+    }
+
+    private static String stampOf(File file) {
+        return file.length() + ":" + file.lastModified();
+    }
+
+    /**
+     * 读取单个预设文件到内存
+     *
+     * @param fileName 磁盘上的实际文件名
+     * @return 规范化后的键，读取失败时返回 null
+     */
+    private String load(String fileName) {
+        String key = normalize(fileName);
+        if (key == null) return null;
+        try {
+            // 先记下读取前的状态，读取期间被修改时下次重新加载会再读一次
+            String stamp = stampOf(presetDir.resolve(fileName).toFile());
+            String content = new String(Files.readAllBytes(presetDir.resolve(fileName)), StandardCharsets.UTF_8);
+            presets.put(key, content);
+            stamps.put(key, stamp);
+            chunkIndex.update(key, content);
+            return key;
+        } catch (NoSuchFileException e) {
+            presets.remove(key);
+            stamps.remove(key);
+            chunkIndex.remove(key);
+        } catch (IOException e) {
+            plugin.getLogger().warning("读取预设文件 " + fileName + " 失败: " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * 获取预设内容，文件不存在或路径越界时返回 null
+     */
+    public String get(String name) {
+        String key = normalize(name);
+        return key == null ? null : presets.get(key);
+    }
+
+    /**
+     * 预设片段检索索引，随文件加载与删除增量更新
+     */
+    public PresetChunkIndex getChunkIndex() {
+        return chunkIndex;
+    }
+
+    /**
+     * 获取所有已加载的预设文件名（已排序）
+     */
+    public List<String> getNames() {
+        List<String> names = new ArrayList<>(presets.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * 将 AI 提供的文件名规范化为 preset 目录下的文件名
+     *
+     * 会去掉引号、补全 .txt 扩展名并统一为小写；任何试图跳出 preset 目录的路径都返回 null。
+     */
+    public String normalize(String name) {
+        if (name == null) return null;
+        String clean = name.trim().replace('\\', '/');
+        if (clean.length() >= 2 && (clean.startsWith("\"") || clean.startsWith("'"))) {
+            clean = clean.substring(1, clean.length() - 1).trim();
+        }
+        if (clean.startsWith("preset/")) {
+            clean = clean.substring("preset/".length());
+        }
+        if (clean.isEmpty()) return null;
+        clean = clean.toLowerCase();
+        if (!clean.endsWith(EXTENSION)) {
+            clean += EXTENSION;
+        }
+
+        try {
+            Path resolved = presetDir.resolve(clean).normalize();
+            if (!presetDir.equals(resolved.getParent())) {
+                return null;
+            }
+            return resolved.getFileName().toString();
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 注册监听器，预设文件被热更新后在监听线程中回调
+     */
+    public void addChangeListener(Runnable listener) {
+        changeListeners.add(listener);
+    }
+
+    /**
+     * 启动目录监听，文件新增、修改或删除时只刷新对应条目
+     */
+    public synchronized void startWatching() {
+        if (watchThread != null) return;
+        try {
+            Files.createDirectories(presetDir);
+            watchService = FileSystems.getDefault().newWatchService();
+            presetDir.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            plugin.getLogger().warning("无法监听预设目录，预设修改需执行 /cli reload 生效: " + e.getMessage());
+            return;
+        }
+
+        WatchService service = watchService;
+        watchThread = new Thread(() -> watchLoop(service), "MineAgent-PresetWatcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    private void watchLoop(WatchService service) {
+        while (!Thread.currentThread().isInterrupted()) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            boolean changed = false;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    loadAll();
+                    changed = true;
+                    continue;
+                }
+                String fileName = ((Path) event.context()).getFileName().toString();
+                if (!fileName.toLowerCase().endsWith(EXTENSION)) continue;
+
+                String presetKey = normalize(fileName);
+                if (presetKey == null) continue;
+                if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                    presets.remove(presetKey);
+                    stamps.remove(presetKey);
+                    chunkIndex.remove(presetKey);
+                } else {
+                    load(fileName);
+                }
+                plugin.getLogger().info("预设文件已刷新: " + presetKey);
+                changed = true;
+            }
+            if (changed) {
+                changeListeners.forEach(Runnable::run);
+            }
+            if (!key.reset()) {
+                // 目录被删除（例如配置升级时重建 preset 目录），下次索引时重新开始监听
+                synchronized (this) {
+                    if (watchService == service) {
+                        shutdown();
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * 停止目录监听
+     */
+    public synchronized void shutdown() {
+        if (watchThread != null) {
+            watchThread.interrupt();
+            watchThread = null;
+        }
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ignored) {}
+            watchService = null;
+        }
+    }
+}
@@ -1,46 +1,165 @@
 package org.YanPl.manager;
 
 import org.YanPl.MineAgent;
+import org.YanPl.model.CommandInfo;
+import org.YanPl.model.DialogueSession;
+import org.YanPl.util.PresetChunkIndex;
+import org.YanPl.util.TokenCounter;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * 提示词管理器，负责生成系统提示词
+ *
+ * 与玩家无关的静态部分按工作区索引代数缓存，只有重新索引后才会重建；
+ * 每次调用只需在其后拼接与当前对话相关的命令和玩家信息，且前缀字节稳定，便于服务端前缀缓存命中。
  */
 public class PromptManager {
+    private static final int RELEVANCE_HISTORY_MESSAGES = 3;
+    /** 每次最多考察的预设片段数，按相关度依次放入 Token 预算 */
+    private static final int PRESET_CHUNK_CANDIDATES = 8;
+
     private final MineAgent plugin;
+    private volatile CachedPrompt cachedPrompt;
 
     public PromptManager(MineAgent plugin) {
         this.plugin = plugin;
     }
 
     /**
-     * 生成基础系统提示词
+     * 生成基础系统提示词（静态提示词 + 当前玩家），只在索引或玩家权限变化时改变
+     */
+    public String getBaseSystemPrompt(org.bukkit.entity.Player player, CommandViewCache.CommandView view) {
+        return getStaticPrompt() + "当前与你对话的玩家是：" + player.getName()
+                + "（有权限使用其中 " + view.size() + " 个命令）\n";
+    }
+
+    /**
+     * 生成随对话变化的上下文提示词：与最近消息相关、且玩家有权限执行的命令，以及相关的预设片段
      */
-    public String getBaseSystemPrompt(org.bukkit.entity.Player player) {
+    public String getContextPrompt(DialogueSession session, CommandViewCache.CommandView view) {
+        Map<String, Float> query = buildRelevanceQuery(session);
+        StringBuilder sb = new StringBuilder();
+
+        List<CommandInfo> relevant = plugin.getWorkspaceIndexer().getCommandIndex()
+                .search(query, plugin.getConfigManager().getPromptCommandLimit(), view::allows);
+        if (!relevant.isEmpty()) {
+            sb.append("与当前对话相关的命令（按相关度排序，仅为部分命令）：\n");
+            for (CommandInfo info : relevant) {
+                sb.append("- ").append(info.format()).append("\n");
+            }
+        }
+
+        appendPresetChunks(sb, query);
+        return sb.toString();
+    }
+
+    /**
+     * 按相关度附加预设片段，直到用完 Token 预算；放不下的片段跳过，继续尝试后面较短的片段
+     */
+    private void appendPresetChunks(StringBuilder sb, Map<String, Float> query) {
+        int budget = plugin.getConfigManager().getPromptPresetTokens();
+        if (budget <= 0 || query.isEmpty()) return;
+
+        List<PresetChunkIndex.Chunk> chunks = plugin.getWorkspaceIndexer().getPresetStore().getChunkIndex()
+                .search(query, PRESET_CHUNK_CANDIDATES);
+        StringBuilder section = new StringBuilder();
+        for (PresetChunkIndex.Chunk chunk : chunks) {
+            String entry = "[" + chunk.getFile() + "]\n" + chunk.getText() + "\n";
+            int tokens = TokenCounter.count(entry);
+            if (tokens > budget) continue;
+            budget -= tokens;
+            section.append(entry);
+        }
+        if (section.length() == 0) return;
+
+        if (sb.length() > 0) sb.append("\n");
+        sb.append("与当前对话相关的预设资料片段（节选，完整内容可用 #get 获取）：\n").append(section);
+    }
+
+    /**
+     * 以最近几条玩家亲自输入的消息作为检索词，越新的消息权重越高
+     *
+     * 工具反馈（#xxx_result）不参与检索，保证同一轮工具循环中注入的命令保持不变。
+     */
+    private Map<String, Float> buildRelevanceQuery(DialogueSession session) {
+        Map<String, Float> query = new LinkedHashMap<>();
+        List<DialogueSession.Message> history = session.getHistory();
+        float weight = 1.0f;
+        for (int i = history.size() - 1; i >= 0 && query.size() < RELEVANCE_HISTORY_MESSAGES; i--) {
+            DialogueSession.Message msg = history.get(i);
+            if (!"user".equals(msg.getRole()) || msg.getContent().startsWith("#")) continue;
+            query.merge(msg.getContent(), weight, Math::max);
+            weight = 0.5f;
+        }
+        return query;
+    }
+
+    /**
+     * 获取静态提示词，索引代数变化时重建
+     */
+    public String getStaticPrompt() {
+        long generation = plugin.getWorkspaceIndexer().getGeneration();
+        boolean nativeTools = plugin.getConfigManager().isNativeToolsEnabled();
+        CachedPrompt cached = cachedPrompt;
+        if (cached == null || cached.generation != generation || cached.nativeTools != nativeTools) {
+            cached = new CachedPrompt(generation, nativeTools, buildStaticPrompt(nativeTools));
+            cachedPrompt = cached;
+        }
+        return cached.text;
+    }
+
+    private String buildStaticPrompt(boolean nativeTools) {
         StringBuilder sb = new StringBuilder();
         sb.append("你是一个名为 MineAgent 的 Minecraft 助手。你的目标是通过简单的对话生成并执行 Minecraft 命令。\n");
         sb.append("当前 Minecraft 版本：").append(org.bukkit.Bukkit.getBukkitVersion()).append("\n");
-        sb.append("当前与你对话的玩家是：").append(player.getName()).append("\n");
-        sb.append("当前可用命令列表（索引）：").append(String.join(", ", plugin.getWorkspaceIndexer().getIndexedCommands())).append("\n");
+        sb.append("服务器共有 ").append(plugin.getWorkspaceIndexer().getCommandIndex().size())
+                .append(" 个命令。提示词末尾只列出与当前对话相关的部分，如需查找其他命令请使用 #lookup 工具。\n");
         sb.append("当前可用插件预设文件：").append(String.join(", ", plugin.getWorkspaceIndexer().getIndexedPresets())).append("\n");
         sb.append("\n规则：\n");
         sb.append("1. **绝对禁止使用任何 Markdown 格式**（如 # 标题、- 列表、[链接]等）。\n");
         sb.append("2. 如果你需要高亮显示某些关键词（如命令、玩家名、物品名），请使用 ** ** 将其括起来。例如：你可以输入 **weather rain** 来更改天气。\n");
-        sb.append("3. 你可以使用以下工具。**重要：工具调用必须独立成行，且必须放在整个回复的最末尾。**\n");
-        sb.append("   格式：#工具名: 参数\n");
-        sb.append("   #search: <args> - 在 Minecraft Wiki 搜索。使用 #search: widely <args> 调用全网搜索。\n");
-        sb.append("   #choose: <A>,<B>,<C>... - 展示多个选项供用户选择。\n");
-        sb.append("   #get: <file> - 从预设目录获取文件内容。\n");
-        sb.append("   #run: <command> - 以玩家身份执行命令。注意：命令参数不要带斜杠 /。例如 #run: give @p apple \n");
-        sb.append("   #over - 完成任务，停止对话。\n");
-        sb.append("   #exit - 当用户想退出 CLI 时调用。\n");
-        sb.append("   **注意：每轮回复只能包含一个工具调用。工具名和冒号之间不要有空格。执行命令时绝对不要带斜杠 /。**\n");
-        sb.append("3. 执行 #run 前，如果你不确定第三方插件（如 LuckPerms, EssentialsX, CoreProtect 等）的语法，**必须优先使用 #get 工具**查看对应的预设文件内容。只有当预设文件中没有相关信息时，才考虑使用 #search。\n");
-        sb.append("4. **重要：关于命令反馈**：如果你收到反馈说“系统未能捕获输出”，这通常是因为该命令是静默执行的，或者它直接将消息发送到了玩家屏幕而未经过系统拦截。\n");
+        if (nativeTools) {
+            sb.append("3. 你可以调用系统提供的函数工具：run（执行命令）、batch（批量执行多条命令）、get（获取预设文件）、lookup（查找命令）、search（搜索资料）、choose（让玩家选择）、over（完成任务）、exit（退出 CLI）。\n");
+            sb.append("   **注意：需要使用工具时直接发起函数调用，不要在正文中书写 #工具名。get、lookup、search 可以在同一轮中并行调用多个；run、batch、choose、over、exit 每轮只能调用一个。需要对许多玩家或对象执行同类命令时使用 batch，玩家只需确认一次。执行命令时绝对不要带斜杠 /。**\n");
+        } else {
+            sb.append("3. 你可以使用以下工具。**重要：工具调用必须独立成行，且必须放在整个回复的最末尾。**\n");
+            sb.append("   格式：#工具名: 参数\n");
+            sb.append("   #search: <args> - 搜索原版命令语法与 Minecraft Wiki（优先查本地知识库）。使用 #search: widely <args> 调用全网搜索。\n");
+            sb.append("   #choose: <A>,<B>,<C>... - 展示多个选项供用户选择。\n");
+            sb.append("   #get: <file> - 从预设目录获取文件内容。\n");
+            sb.append("   #lookup: <keyword> - 按名称前缀或关键词查找服务器命令及其用法。使用 #lookup: * 获取全部命令名。\n");
+            sb.append("   #run: <command> - 以玩家身份执行命令。注意：命令参数不要带斜杠 /。例如 #run: give @p apple \n");
+            sb.append("   #batch: <command1> | <command2> | ... - 批量执行多条命令（如给多名玩家发放物品），玩家只需确认一次，结果汇总返回。\n");
+            sb.append("   #over - 完成任务，停止对话。\n");
+            sb.append("   #exit - 当用户想退出 CLI 时调用。\n");
+            sb.append("   **注意：每个工具调用独占一行。#get、#lookup、#search 可以在同一轮中连续调用多个，结果会一并返回；#run、#batch、#choose、#over、#exit 每轮只能调用一个。工具名和冒号之间不要有空格。执行命令时绝对不要带斜杠 /。**\n");
+        }
+        if (nativeTools) {
+            sb.append("4. 提示词末尾可能附有与当前对话相关的预设资料片段，请优先参考。调用 run 或 batch 前，如果片段中没有而你又不确定第三方插件（如 LuckPerms, EssentialsX, CoreProtect 等）的语法，**必须优先调用 get 函数**查看对应的预设文件内容。只有当预设文件中没有相关信息时，才考虑调用 search 函数。\n");
+        } else {
+            sb.append("4. 提示词末尾可能附有与当前对话相关的预设资料片段，请优先参考。执行 #run 前，如果片段中没有而你又不确定第三方插件（如 LuckPerms, EssentialsX, CoreProtect 等）的语法，**必须优先使用 #get 工具**查看对应的预设文件内容。只有当预设文件中没有相关信息时，才考虑使用 #search。\n");
+        }
+        sb.append("5. **重要：关于命令反馈**：如果你收到反馈说“系统未能捕获输出”，这通常是因为该命令是静默执行的，或者它直接将消息发送到了玩家屏幕而未经过系统拦截。\n");
         sb.append("   - **不要** 盲目重复执行相同的命令。\n");
         sb.append("   - 如果你是在查询某个状态（如 gamerule），你可以假设命令已执行，并建议玩家查看他们的聊天栏反馈。\n");
         sb.append("   - 你也可以尝试换一种方式，例如对于 gamerule，直接告诉玩家已经发起了查询。\n");
-        // sb.append("5. 你的思考过程（Thought）不应展示给用户，只需输出最终正文和工具调用。\n");
-        
-        return sb.toString(); 
+        // sb.append("6. 你的思考过程（Thought）不应展示给用户，只需输出最终正文和工具调用。\n");
+
+        return sb.toString();
+    }
+
+    private static class CachedPrompt {
+        private final long generation;
+        private final boolean nativeTools;
+        private final String text;
+
+        private CachedPrompt(long generation, boolean nativeTools, String text) {
+            this.generation = generation;
+            this.nativeTools = nativeTools;
+            this.text = text;
+        }
     }
 }
@@ -0,0 +1,604 @@
+package org.YanPl.manager;
+
+import org.YanPl.MineAgent;
+import org.YanPl.util.SearchCache;
+import org.bukkit.Bukkit;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 搜索管理器，负责 Minecraft Wiki 与全网搜索，并缓存搜索结果
+ *
+ * 非全网搜索先查本地命令知识库，命中时直接返回，不发起网络请求。
+ * 默认并行查询两个来源并共享同一个总时限：先拿到有效结果后只再等待一个很短的合并窗口，
+ * 随后取消仍未返回的来源。每个来源的延迟会被记录，明显偏慢的来源会延后发起（对冲请求）。
+ */
+public class SearchManager {
+    static final String WIKI_SOURCE = "wiki";
+    static final String PUBLIC_SOURCE = "public";
+    private static final String WIKI_EMPTY = "未找到相关 Wiki 条目。";
+    private static final String PUBLIC_EMPTY = "未找到相关全网搜索结果。";
+    private static final String WIKI_ERROR = "Wiki 搜索出错";
+    private static final String PUBLIC_ERROR = "全网搜索出错";
+    /** 结果合并时的来源优先级，Wiki 内容更权威，排在前面 */
+    private static final List<String> SOURCES = Arrays.asList(WIKI_SOURCE, PUBLIC_SOURCE);
+
+    private final MineAgent plugin;
+    private final okhttp3.OkHttpClient httpClient;
+    private final SearchCache cache;
+    private final File cacheFile;
+    private final BukkitTask saveTask;
+    private final Map<String, SourceStats> sourceStats = new LinkedHashMap<>();
+    private final KnowledgeBase knowledgeBase;
+
+    public SearchManager(MineAgent plugin, okhttp3.OkHttpClient httpClient) {
+        this.plugin = plugin;
+        this.httpClient = httpClient;
+        this.cache = new SearchCache(
+                plugin.getConfigManager().getSearchCacheTtlMinutes() * 60 * 1000L,
+                plugin.getConfigManager().getSearchCacheMaxEntries(),
+                plugin.getConfigManager().getSearchCacheMaxKilobytes() * 1024L);
+        this.cacheFile = new File(plugin.getDataFolder(), "search_cache.json");
+        for (String source : SOURCES) {
+            sourceStats.put(source, new SourceStats(source));
+        }
+
+        try {
+            cache.load(cacheFile);
+            plugin.getLogger().info("已加载 " + cache.size() + " 条搜索缓存。");
+        } catch (Exception e) {
+            plugin.getLogger().warning("加载搜索缓存失败: " + e.getMessage());
+        }
+        this.knowledgeBase = new KnowledgeBase(plugin);
+        if (plugin.getConfigManager().isKnowledgeBaseEnabled()) {
+            knowledgeBase.loadAsync(false);
+        }
+        // 每 5 分钟将有变化的缓存写入磁盘
+        this.saveTask = Bukkit.getScheduler().runTaskTimerAsynchronously(plugin, this::saveCache, 20L * 300, 20L * 300);
+    }
+
+    /**
+     * 执行 #search 工具的搜索
+     *
+     * @param onNotice 需要提示玩家的进度信息
+     */
+    public CompletableFuture<String> search(String query, Consumer<String> onNotice) {
+        long deadline = System.currentTimeMillis() + plugin.getConfigManager().getSearchDeadlineSeconds() * 1000L;
+        if (query.toLowerCase().contains("widely")) {
+            String q = query.replace("widely", "").trim();
+            return cachedSearch(PUBLIC_SOURCE, q, deadline);
+        }
+        if (plugin.getConfigManager().isKnowledgeBaseEnabled()) {
+            String local = knowledgeBase.lookup(query);
+            if (local != null) {
+                return CompletableFuture.completedFuture(local);
+            }
+        }
+        if (!plugin.getConfigManager().isParallelSearch()) {
+            return cachedSearch(WIKI_SOURCE, query, deadline).thenCompose(result -> {
+                // 如果 Wiki 没搜到，自动尝试全网搜索
+                if (result.equals(WIKI_EMPTY)) {
+                    onNotice.accept("Wiki 无结果，正在尝试全网搜索...");
+                    return cachedSearch(PUBLIC_SOURCE, query, deadline);
+                }
+                return CompletableFuture.completedFuture(result);
+            });
+        }
+        return new ParallelSearch(query, deadline).start();
+    }
+
+    private CompletableFuture<String> cachedSearch(String source, String query, long deadline) {
+        return cache.getOrLoad(SearchCache.key(source, query),
+                () -> fetch(source, query, deadline),
+                this::isCacheable);
+    }
+
+    /**
+     * 发起一次真实的网络请求并记录该来源的延迟
+     */
+    private CompletableFuture<String> fetch(String source, String query, long deadline) {
+        long startedAt = System.currentTimeMillis();
+        CompletableFuture<String> future = WIKI_SOURCE.equals(source)
+                ? fetchWikiResult(query, deadline)
+                : fetchPublicSearchResult(query, deadline);
+        SourceStats stats = sourceStats.get(source);
+        future.whenComplete((result, error) -> {
+            long elapsed = System.currentTimeMillis() - startedAt;
+            if (future.isCancelled()) {
+                // 被取消说明它比另一个来源慢，耗时只是下限
+                stats.recordCancelled(elapsed);
+            } else {
+                stats.record(elapsed, result != null && !isError(result));
+            }
+        });
+        return future;
+    }
+
+    /**
+     * 网络错误的结果不写入缓存，下次仍会重新请求
+     */
+    private boolean isCacheable(String result) {
+        return !isError(result);
+    }
+
+    private boolean isError(String result) {
+        return result.startsWith(WIKI_ERROR) || result.startsWith(PUBLIC_ERROR);
+    }
+
+    /**
+     * 结果是否包含实际条目（非空结果、非错误信息）
+     */
+    private boolean isUseful(String result) {
+        return result != null && !result.equals(WIKI_EMPTY) && !result.equals(PUBLIC_EMPTY) && !isError(result);
+    }
+
+    private void saveCache() {
+        try {
+            cache.save(cacheFile);
+        } catch (IOException e) {
+            plugin.getLogger().warning("保存搜索缓存失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 停止定时保存并将缓存写入磁盘
+     */
+    public void shutdown() {
+        saveTask.cancel();
+        saveCache();
+    }
+
+    public SearchCache getCache() {
+        return cache;
+    }
+
+    public KnowledgeBase getKnowledgeBase() {
+        return knowledgeBase;
+    }
+
+    public Collection<SourceStats> getSourceStats() {
+        return Collections.unmodifiableCollection(sourceStats.values());
+    }
+
+    /**
+     * 合并多个来源的结果：按来源优先级拼接，去掉标题重复的条目
+     */
+    static String mergeResults(List<String> results) {
+        Set<String> seenTitles = new HashSet<>();
+        StringBuilder merged = new StringBuilder();
+        for (String result : results) {
+            String[] lines = result.split("\n");
+            StringBuilder block = new StringBuilder();
+            int kept = 0;
+            for (int i = 1; i < lines.length; i++) {
+                String line = lines[i];
+                if (!line.startsWith("- ")) continue;
+                int colon = line.indexOf(": ");
+                String title = colon == -1 ? line.substring(2) : line.substring(2, colon);
+                if (!seenTitles.add(normalizeTitle(title))) continue;
+                block.append(line).append("\n");
+                kept++;
+            }
+            if (kept > 0) {
+                merged.append(lines[0]).append("\n").append(block);
+            }
+        }
+        return merged.toString();
+    }
+
+    /**
+     * 标题规范化：去掉 " - 站点名" 之类的后缀、空白与标点，忽略大小写
+     */
+    private static String normalizeTitle(String title) {
+        String clean = title.toLowerCase();
+        for (String separator : new String[]{" - ", " – ", " — ", " | ", "_"}) {
+            int index = clean.indexOf(separator);
+            if (index > 0) {
+                clean = clean.substring(0, index);
+            }
+        }
+        return clean.replaceAll("[\\p{Punct}\\s]+", "");
+    }
+
+    /**
+     * 一次并行搜索：所有来源共享同一总时限，先返回有效结果的来源胜出
+     */
+    private class ParallelSearch {
+        private final String query;
+        private final long deadline;
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+        private final Map<String, CompletableFuture<String>> calls = new HashMap<>();
+        private final Map<String, String> answers = new HashMap<>();
+        private final Set<String> pendingHedges = new HashSet<>();
+        private boolean mergeWindowStarted = false;
+
+        private ParallelSearch(String query, long deadline) {
+            this.query = query;
+            this.deadline = deadline;
+        }
+
+        private CompletableFuture<String> start() {
+            // 玩家中断或总结果完成后，取消所有仍在进行的请求
+            result.whenComplete((value, error) -> cancelCalls());
+
+            List<String> order = new ArrayList<>(SOURCES);
+            order.sort(Comparator.comparingDouble(source -> sourceStats.get(source).getEffectiveLatency()));
+            SourceStats fastest = sourceStats.get(order.get(0));
+            long remaining = Math.max(0, deadline - System.currentTimeMillis());
+
+            // 先登记所有延后发起的来源，避免先发起的来源命中缓存后被误判为全部完成
+            Map<String, Long> hedgeDelays = new LinkedHashMap<>();
+            for (String source : order) {
+                SourceStats stats = sourceStats.get(source);
+                if (stats != fastest && stats.isSlowerThan(fastest)) {
+                    long delay = Math.min(remaining / 2, Math.max(300L, (long) (fastest.getEffectiveLatency() * 1.5)));
+                    hedgeDelays.put(source, delay);
+                }
+            }
+            synchronized (this) {
+                pendingHedges.addAll(hedgeDelays.keySet());
+            }
+
+            for (String source : order) {
+                Long delay = hedgeDelays.get(source);
+                if (delay == null) {
+                    launch(source);
+                } else {
+                    // 偏慢的来源延后发起，若届时已有有效结果则不再请求
+                    CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() -> launchHedge(source));
+                }
+            }
+            CompletableFuture.delayedExecutor(remaining, TimeUnit.MILLISECONDS).execute(this::finish);
+            return result;
+        }
+
+        private void launchHedge(String source) {
+            synchronized (this) {
+                if (!pendingHedges.remove(source) || result.isDone() || hasUsefulAnswer()) return;
+            }
+            launch(source);
+        }
+
+        private void launch(String source) {
+            CompletableFuture<String> call;
+            synchronized (this) {
+                if (result.isDone()) return;
+                call = cachedSearch(source, query, deadline);
+                calls.put(source, call);
+            }
+            call.whenComplete((value, error) -> onAnswer(source, value, error));
+        }
+
+        private void onAnswer(String source, String value, Throwable error) {
+            List<String> hedgesToLaunch = new ArrayList<>();
+            boolean finishNow = false;
+            boolean startMergeWindow = false;
+            synchronized (this) {
+                if (result.isDone()) return;
+                String label = WIKI_SOURCE.equals(source) ? WIKI_ERROR : PUBLIC_ERROR;
+                answers.put(source, error != null ? label + ": " + error.getMessage() : value);
+
+                if (answers.size() == SOURCES.size()) {
+                    finishNow = true;
+                } else if (hasUsefulAnswer()) {
+                    if (!mergeWindowStarted) {
+                        mergeWindowStarted = true;
+                        startMergeWindow = true;
+                    }
+                } else if (answers.size() + pendingHedges.size() == SOURCES.size()) {
+                    // 已发起的来源都没有结果，不必再等待对冲延迟
+                    hedgesToLaunch.addAll(pendingHedges);
+                    pendingHedges.clear();
+                }
+            }
+
+            if (finishNow) {
+                finish();
+            } else if (startMergeWindow) {
+                long window = Math.min(plugin.getConfigManager().getSearchMergeWindowMillis(),
+                        Math.max(0, deadline - System.currentTimeMillis()));
+                CompletableFuture.delayedExecutor(window, TimeUnit.MILLISECONDS).execute(this::finish);
+            }
+            for (String hedge : hedgesToLaunch) {
+                launch(hedge);
+            }
+        }
+
+        private boolean hasUsefulAnswer() {
+            for (String answer : answers.values()) {
+                if (isUseful(answer)) return true;
+            }
+            return false;
+        }
+
+        private void finish() {
+            String merged;
+            synchronized (this) {
+                if (result.isDone()) return;
+                merged = buildResult();
+            }
+            result.complete(merged);
+        }
+
+        private String buildResult() {
+            List<String> useful = new ArrayList<>();
+            for (String source : SOURCES) {
+                String answer = answers.get(source);
+                if (isUseful(answer)) {
+                    useful.add(answer);
+                    sourceStats.get(source).recordWin();
+                }
+            }
+            if (useful.size() == 1) {
+                return useful.get(0);
+            }
+            if (!useful.isEmpty()) {
+                return mergeResults(useful);
+            }
+
+            // 没有任何有效结果：优先返回"未找到"，其次返回错误信息
+            String fallback = null;
+            for (String source : SOURCES) {
+                String answer = answers.get(source);
+                if (answer == null) continue;
+                if (fallback == null || (isError(fallback) && !isError(answer))) {
+                    fallback = answer;
+                }
+            }
+            if (fallback != null) {
+                return fallback;
+            }
+            return "搜索超时：" + plugin.getConfigManager().getSearchDeadlineSeconds() + " 秒内没有来源返回结果。";
+        }
+
+        private void cancelCalls() {
+            List<CompletableFuture<String>> toCancel;
+            synchronized (this) {
+                pendingHedges.clear();
+                toCancel = new ArrayList<>(calls.values());
+            }
+            for (CompletableFuture<String> call : toCancel) {
+                call.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * 单个搜索来源的延迟统计（指数加权移动平均）
+     */
+    public static class SourceStats {
+        private static final double ALPHA = 0.3;
+        private static final int FAILURES_BEFORE_SLOW = 3;
+
+        private final String name;
+        private double averageMillis = -1;
+        private long requests = 0;
+        private long failures = 0;
+        private int consecutiveFailures = 0;
+        private long wins = 0;
+
+        private SourceStats(String name) {
+            this.name = name;
+        }
+
+        private synchronized void record(long elapsedMillis, boolean success) {
+            requests++;
+            if (success) {
+                consecutiveFailures = 0;
+            } else {
+                failures++;
+                consecutiveFailures++;
+            }
+            update(elapsedMillis);
+        }
+
+        private synchronized void recordCancelled(long elapsedMillis) {
+            requests++;
+            // 只用它来拉高平均值，避免被取消的慢来源显得比实际更快
+            if (elapsedMillis > averageMillis) {
+                update(elapsedMillis);
+            }
+        }
+
+        private void update(long elapsedMillis) {
+            averageMillis = averageMillis < 0 ? elapsedMillis : averageMillis * (1 - ALPHA) + elapsedMillis * ALPHA;
+        }
+
+        private synchronized void recordWin() {
+            wins++;
+        }
+
+        /**
+         * 用于排序的延迟，尚无数据时视为 0，连续失败的来源视为极慢
+         */
+        private synchronized double getEffectiveLatency() {
+            if (consecutiveFailures >= FAILURES_BEFORE_SLOW) return Double.MAX_VALUE;
+            return Math.max(0, averageMillis);
+        }
+
+        /**
+         * 明显慢于另一个来源（超过两倍且至少慢 1 秒）时需要延后发起
+         */
+        private boolean isSlowerThan(SourceStats other) {
+            double mine = getEffectiveLatency();
+            double theirs = other.getEffectiveLatency();
+            if (theirs == Double.MAX_VALUE) return false;
+            return mine == Double.MAX_VALUE || (mine > theirs * 2 && mine - theirs > 1000);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public synchronized long getAverageMillis() {
+            return Math.round(Math.max(0, averageMillis));
+        }
+
+        public synchronized long getRequests() {
+            return requests;
+        }
+
+        public synchronized long getFailures() {
+            return failures;
+        }
+
+        public synchronized long getWins() {
+            return wins;
+        }
+    }
+
+    /**
+     * 异步执行搜索请求，受总时限约束；取消返回的 Future 会同时中断 HTTP 请求
+     *
+     * 网络错误与非 2xx 响应（限流、服务端故障等）都以 "<errorLabel>: 原因" 的文本形式返回，与搜索结果一起反馈给 AI；
+     * 这类结果不会写入缓存，parser 只会收到成功的响应。
+     */
+    private CompletableFuture<String> execute(okhttp3.Request request, long deadline, String errorLabel, ResponseParser parser) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            future.complete(errorLabel + ": timeout");
+            return future;
+        }
+
+        okhttp3.Call call = httpClient.newCall(request);
+        call.timeout().deadline(remaining, TimeUnit.MILLISECONDS);
+        future.whenComplete((result, error) -> {
+            if (future.isCancelled()) {
+                call.cancel();
+            }
+        });
+        call.enqueue(new okhttp3.Callback() {
+            @Override
+            public void onFailure(okhttp3.Call call, IOException e) {
+                future.complete(errorLabel + ": " + e.getMessage());
+            }
+
+            @Override
+            public void onResponse(okhttp3.Call call, okhttp3.Response response) {
+                try (okhttp3.Response r = response) {
+                    if (!r.isSuccessful()) {
+                        plugin.getLogger().warning("[Search] " + errorLabel + ": HTTP " + r.code() + " " + r.message());
+                        future.complete(errorLabel + ": HTTP " + r.code());
+                        return;
+                    }
+                    future.complete(parser.parse(r));
+                } catch (Exception e) {
+                    future.complete(errorLabel + ": " + e.getMessage());
+                }
+            }
+        });
+        return future;
+    }
+
+    @FunctionalInterface
+    private interface ResponseParser {
+        String parse(okhttp3.Response response) throws IOException;
+    }
+
+    /**
+     * 调用 Minecraft Wiki 公开 API 搜索
+     */
+    private CompletableFuture<String> fetchWikiResult(String query, long deadline) {
+        // 使用 Minecraft Wiki 的 MediaWiki API
+        String url = "https://zh.minecraft.wiki/api.php?action=query&list=search&srsearch=" +
+                     java.net.URLEncoder.encode(query, java.nio.charset.StandardCharsets.UTF_8) + "&format=json&utf8=1";
+
+        okhttp3.Request request = new okhttp3.Request.Builder().url(url).build();
+        return execute(request, deadline, WIKI_ERROR, response -> {
+            if (response.body() != null) {
+                com.google.gson.JsonObject json = com.google.gson.JsonParser.parseString(response.body().string()).getAsJsonObject();
+                com.google.gson.JsonArray searchResults = json.getAsJsonObject("query").getAsJsonArray("search");
+
+                if (searchResults.size() > 0) {
+                    StringBuilder sb = new StringBuilder("Minecraft Wiki 搜索结果：\n");
+                    for (int i = 0; i < Math.min(3, searchResults.size()); i++) {
+                        com.google.gson.JsonObject item = searchResults.get(i).getAsJsonObject();
+                        String title = item.get("title").getAsString();
+                        String snippet = item.get("snippet").getAsString().replaceAll("<[^>]*>", ""); // 移除 HTML 标签
+                        sb.append("- ").append(title).append(": ").append(snippet).append("\n");
+                    }
+                    return sb.toString();
+                }
+            }
+            return WIKI_EMPTY;
+        });
+    }
+
+    /**
+     * 调用公开搜索接口 (UAPI Aggregate Search)
+     */
+    private CompletableFuture<String> fetchPublicSearchResult(String query, long deadline) {
+        // 使用 UAPI 的聚合搜索接口
+        String url = "https://uapis.cn/api/v1/search/aggregate";
+
+        com.google.gson.JsonObject bodyJson = new com.google.gson.JsonObject();
+        // 参数名确认为 query
+        bodyJson.addProperty("query", query);
+
+        okhttp3.RequestBody body = okhttp3.RequestBody.create(
+            bodyJson.toString(),
+            okhttp3.MediaType.get("application/json; charset=utf-8")
+        );
+
+        okhttp3.Request request = new okhttp3.Request.Builder()
+            .url(url)
+            .header("User-Agent", "MineAgent/1.0")
+            .post(body)
+            .build();
+
+        return execute(request, deadline, PUBLIC_ERROR, response -> {
+            if (response.body() != null) {
+                String responseBody = response.body().string();
+                com.google.gson.JsonElement jsonElement = com.google.gson.JsonParser.parseString(responseBody);
+
+                com.google.gson.JsonArray results = null;
+                if (jsonElement.isJsonArray()) {
+                    results = jsonElement.getAsJsonArray();
+                } else if (jsonElement.isJsonObject()) {
+                    com.google.gson.JsonObject jsonObj = jsonElement.getAsJsonObject();
+                    if (jsonObj.has("data") && jsonObj.get("data").isJsonArray()) {
+                        results = jsonObj.getAsJsonArray("data");
+                    } else if (jsonObj.has("results") && jsonObj.get("results").isJsonArray()) {
+                        results = jsonObj.getAsJsonArray("results");
+                    }
+                }
+
+                if (results != null && results.size() > 0) {
+                    StringBuilder sb = new StringBuilder("全网搜索结果 (" + query + ")：\n");
+                    for (int i = 0; i < Math.min(5, results.size()); i++) {
+                        com.google.gson.JsonObject item = results.get(i).getAsJsonObject();
+
+                        String title = "无标题";
+                        if (item.has("title") && !item.get("title").isJsonNull()) {
+                            title = item.get("title").getAsString();
+                        }
+
+                        String content = "";
+                        if (item.has("content") && !item.get("content").isJsonNull()) {
+                            content = item.get("content").getAsString();
+                        } else if (item.has("snippet") && !item.get("snippet").isJsonNull()) {
+                            content = item.get("snippet").getAsString();
+                        } else if (item.has("abstract") && !item.get("abstract").isJsonNull()) {
+                            content = item.get("abstract").getAsString();
+                        }
+
+                        if (content.length() > 500) {
+                            content = content.substring(0, 500) + "...";
+                        }
+
+                        sb.append("- ").append(title).append(": ").append(content).append("\n");
+                    }
+                    return sb.toString();
+                }
+            }
+            return PUBLIC_EMPTY;
+        });
+    }
+}
@@ -1,57 +1,175 @@
 package org.YanPl.manager;
 
 import org.YanPl.MineAgent;
+import org.YanPl.model.CommandInfo;
+import org.YanPl.util.CommandSearchIndex;
 import org.YanPl.util.ResourceUtil;
 import org.bukkit.Bukkit;
 import org.bukkit.command.Command;
+import org.bukkit.command.PluginIdentifiableCommand;
 import org.bukkit.command.SimpleCommandMap;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
 
 import java.io.File;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 工作区索引器，负责索引可用命令和预设文件
+ *
+ * 索引在后台线程完成：主线程只负责复制一份命令表，构建检索索引、释放与加载预设文件都不占用主线程。
+ * 首次索引完成前 isReady 返回 false，CLI 据此提示玩家稍候。
  */
 public class WorkspaceIndexer {
+    /** 异步线程等待主线程计算命令视图的最长时间 */
+    private static final long VIEW_WAIT_SECONDS = 5;
+
     private final MineAgent plugin;
-    private List<String> indexedCommands = new ArrayList<>();
-    private List<String> indexedPresets = new ArrayList<>();
+    private volatile List<String> indexedCommands = Collections.emptyList();
+    private volatile List<String> indexedPresets = Collections.emptyList();
+    private final AtomicLong generation = new AtomicLong();
+    /** 主线程增量更新命令索引的次数，后台的完整更新据此判断其命令表快照是否已过时 */
+    private final AtomicLong commandUpdates = new AtomicLong();
+    private final CommandSearchIndex commandIndex = new CommandSearchIndex();
+    private final CommandViewCache commandViews = new CommandViewCache(commandIndex);
+    private final PresetStore presetStore;
+    private final File manifestFile;
+    private volatile boolean ready = false;
+    /** 服务端的命令表，只在主线程读取 */
+    private Map<String, Command> knownCommands;
 
     public WorkspaceIndexer(MineAgent plugin) {
         this.plugin = plugin;
+        this.presetStore = new PresetStore(plugin);
+        this.presetStore.addChangeListener(this::refreshPresetNames);
+        this.manifestFile = new File(plugin.getDataFolder(), "preset_manifest.properties");
+    }
+
+    /**
+     * 执行完整索引：在主线程复制命令表后，其余工作交给后台线程
+     *
+     * 可在任意线程调用；重复调用时后台部分依次执行，检索索引与预设缓存都按变化增量更新。
+     *
+     * @return 索引完成（无论成功与否）时结束的 Future
+     */
+    public CompletableFuture<Void> indexAll() {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        Runnable snapshot = () -> {
+            Map<String, Command> commands = snapshotCommands();
+            long updates = commandUpdates.get();
+            Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+                try {
+                    buildIndex(commands, updates);
+                } finally {
+                    ready = true;
+                    done.complete(null);
+                }
+            });
+        };
+        if (Bukkit.isPrimaryThread()) {
+            snapshot.run();
+        } else {
+            Bukkit.getScheduler().runTask(plugin, snapshot);
+        }
+        return done;
     }
 
     /**
-     * 执行完整索引
+     * 首次索引是否已完成
      */
-    public void indexAll() {
-        indexCommands();
+    public boolean isReady() {
+        return ready;
+    }
+
+    private synchronized void buildIndex(Map<String, Command> commands, long updates) {
+        long start = System.nanoTime();
+        if (commands != null) {
+            indexCommands(commands, updates);
+        }
         indexPresets();
+        plugin.getLogger().info("工作区索引完成，用时 " + (System.nanoTime() - start) / 1_000_000 + "ms。");
     }
 
     /**
-     * 索引所有可用的 Bukkit 命令
+     * 复制当前的命令表（主线程），反射失败时返回 null
+     */
+    private Map<String, Command> snapshotCommands() {
+        Map<String, Command> knownCommands = getKnownCommands();
+        return knownCommands == null ? null : new HashMap<>(knownCommands);
+    }
+
+    /**
+     * 标签当前是否解析到原版（或服务端内置）命令，而不是插件注册的同名命令，只能在主线程调用
+     *
+     * 例如 Essentials 会以 tp、give、msg 等标签覆盖原版命令，此时返回 false。
+     */
+    public boolean isVanillaCommand(String label) {
+        Map<String, Command> knownCommands = getKnownCommands();
+        if (knownCommands == null) return false;
+        Command command = knownCommands.get(label.toLowerCase(Locale.ROOT));
+        return command != null && !(command instanceof PluginIdentifiableCommand);
+    }
+
+    /**
+     * 通过反射取得服务端的命令表，结果缓存（命令表对象在服务器运行期间不变），只能在主线程读取
      */
     @SuppressWarnings("unchecked")
-    public void indexCommands() {
-        indexedCommands.clear();
+    private Map<String, Command> getKnownCommands() {
+        if (knownCommands != null) return knownCommands;
         try {
             Field commandMapField = Bukkit.getServer().getClass().getDeclaredField("commandMap");
             commandMapField.setAccessible(true);
             SimpleCommandMap commandMap = (SimpleCommandMap) commandMapField.get(Bukkit.getServer());
-            
+
             Field knownCommandsField = SimpleCommandMap.class.getDeclaredField("knownCommands");
             knownCommandsField.setAccessible(true);
-            Map<String, Command> knownCommands = (Map<String, Command>) knownCommandsField.get(commandMap);
-            
-            indexedCommands.addAll(knownCommands.keySet().stream()
-                    .filter(name -> !name.contains(":")) // 过滤掉带前缀的命令，保留基础命令
-                    .collect(Collectors.toList()));
-            
+            knownCommands = (Map<String, Command>) knownCommandsField.get(commandMap);
+            return knownCommands;
+        } catch (Exception e) {
+            plugin.getLogger().warning("索引命令时出错: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 根据命令表快照更新命令列表与检索索引
+     *
+     * 快照之后若主线程已有增量更新（插件启用、停用或重新对照），快照中的差异已经过时，直接应用会撤销这些更新；
+     * 此时放弃快照，改为在主线程按当前命令表重新对照一次。
+     *
+     * @param updates 复制快照时的增量更新次数
+     */
+    private void indexCommands(Map<String, Command> knownCommands, long updates) {
+        try {
+            List<CommandInfo> infos = toCommandInfos(knownCommands, null);
+            int changed;
+            synchronized (commandIndex) {
+                if (commandUpdates.get() != updates) {
+                    changed = -1;
+                } else {
+                    changed = commandIndex.update(infos);
+                }
+            }
+            if (changed < 0) {
+                plugin.getLogger().info("命令表在索引期间发生变化，改为在主线程重新对照。");
+                Bukkit.getScheduler().runTask(plugin, this::resyncCommands);
+                return;
+            }
+            refreshCommandNames(changed);
+            plugin.getLogger().info("命令检索索引已更新，变化 " + changed + " 个命令。");
             plugin.getLogger().info("已索引 " + indexedCommands.size() + " 个命令。");
         } catch (Exception e) {
             plugin.getLogger().warning("索引命令时出错: " + e.getMessage());
@@ -59,27 +177,143 @@ public class WorkspaceIndexer {
     }
 
     /**
-     * 索引 /plugins/MineAgent/preset/ 目录下的所有文件名
+     * 插件启用后（主线程）只更新该插件的命令
+     */
+    public void onPluginEnabled(Plugin enabled) {
+        Map<String, Command> knownCommands = getKnownCommands();
+        if (knownCommands == null) return;
+        List<CommandInfo> infos = toCommandInfos(knownCommands, enabled.getName());
+        int changed;
+        synchronized (commandIndex) {
+            commandUpdates.incrementAndGet();
+            changed = commandIndex.updatePlugin(enabled.getName(), infos);
+        }
+        refreshCommandNames(changed);
+        if (changed > 0) {
+            plugin.getLogger().info("插件 " + enabled.getName() + " 已启用，命令索引变化 " + changed + " 个命令。");
+        }
+    }
+
+    /**
+     * 插件停用后移除其命令（停用的插件即使仍留在命令表中，其命令也无法执行）
      */
-    public void indexPresets() {
-        indexedPresets.clear();
+    public void onPluginDisabled(Plugin disabled) {
+        int changed;
+        synchronized (commandIndex) {
+            commandUpdates.incrementAndGet();
+            changed = commandIndex.removePlugin(disabled.getName());
+        }
+        refreshCommandNames(changed);
+        if (changed > 0) {
+            plugin.getLogger().info("插件 " + disabled.getName() + " 已停用，已从命令索引移除 " + changed + " 个命令。");
+        }
+    }
+
+    /**
+     * 重新对照整个命令表（服务器启动或 /reload 完成后，主线程），只应用差异
+     */
+    public void resyncCommands() {
+        Map<String, Command> knownCommands = getKnownCommands();
+        if (knownCommands == null) return;
+        List<CommandInfo> infos = toCommandInfos(knownCommands, null);
+        int changed;
+        synchronized (commandIndex) {
+            commandUpdates.incrementAndGet();
+            changed = commandIndex.update(infos);
+        }
+        refreshCommandNames(changed);
+        if (changed > 0) {
+            plugin.getLogger().info("命令检索索引已更新，变化 " + changed + " 个命令。");
+        }
+    }
+
+    private void refreshCommandNames(int changed) {
+        if (changed == 0 && !indexedCommands.isEmpty()) return;
+        // 排序保证每次生成的提示词字节完全一致，便于服务端前缀缓存命中
+        indexedCommands = Collections.unmodifiableList(commandIndex.getAllLabels());
+        generation.incrementAndGet();
+    }
+
+    /**
+     * 将命令表整理为命令元数据
+     *
+     * 同一个 Command 对象会以主名称、别名以及 "命名空间:名称" 注册多次：不带前缀的标签合并为一条元数据，
+     * 命名空间用于判断原版或服务端内置命令的归属。
+     *
+     * @param onlyPlugin 不为 null 时只返回属于该插件的命令
+     */
+    private List<CommandInfo> toCommandInfos(Map<String, Command> knownCommands, String onlyPlugin) {
+        Map<Command, String> namespaces = new IdentityHashMap<>();
+        Map<Command, List<String>> labelsByCommand = new IdentityHashMap<>();
+        List<String> labels = new ArrayList<>(knownCommands.keySet());
+        Collections.sort(labels);
+        for (String label : labels) {
+            Command command = knownCommands.get(label);
+            if (command == null) continue;
+            int colon = label.indexOf(':');
+            if (colon > 0) {
+                namespaces.putIfAbsent(command, label.substring(0, colon));
+            } else {
+                labelsByCommand.computeIfAbsent(command, c -> new ArrayList<>()).add(label);
+            }
+        }
+
+        List<CommandInfo> infos = new ArrayList<>();
+        for (Map.Entry<Command, List<String>> entry : labelsByCommand.entrySet()) {
+            Command command = entry.getKey();
+            // 停用的插件的命令可能仍留在命令表中，但已无法执行
+            if (command instanceof PluginIdentifiableCommand && !((PluginIdentifiableCommand) command).getPlugin().isEnabled()) continue;
+            String owner = command instanceof PluginIdentifiableCommand
+                    ? ((PluginIdentifiableCommand) command).getPlugin().getName()
+                    : namespaces.getOrDefault(command, "");
+            if (onlyPlugin != null && !owner.equalsIgnoreCase(onlyPlugin)) continue;
+            infos.add(toCommandInfo(command, entry.getValue(), owner));
+        }
+        return infos;
+    }
+
+    private CommandInfo toCommandInfo(Command command, List<String> labels, String owner) {
+        String name = labels.contains(command.getName()) ? command.getName() : labels.get(0);
+        List<String> aliases = new ArrayList<>(labels);
+        aliases.remove(name);
+        return new CommandInfo(name, aliases, command.getDescription(), command.getUsage(), owner, command.getPermission());
+    }
+
+    /**
+     * 索引 /plugins/MineAgent/preset/ 目录下的所有文件，并将内容加载到内存
+     */
+    private void indexPresets() {
         File presetDir = new File(plugin.getDataFolder(), "preset");
         if (!presetDir.exists()) {
             presetDir.mkdirs();
         }
-        
-        // 动态释放所有预设文件
-        ResourceUtil.releaseResources(plugin, "preset/", false, ".txt");
-        
-        File[] files = presetDir.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                if (file.isFile() && file.getName().endsWith(".txt")) {
-                    indexedPresets.add(file.getName());
-                }
-            }
+
+        // 按清单释放预设文件：插件 JAR 未变化时不会打开 JAR，未变化的文件不会重写
+        int released = ResourceUtil.syncResources(plugin, "preset/", ".txt", manifestFile);
+
+        int read = presetStore.loadAll();
+        presetStore.startWatching();
+        refreshPresetNames();
+        plugin.getLogger().info("已索引 " + indexedPresets.size() + " 个预设文件（释放 " + released + " 个，读取 " + read + " 个，"
+                + presetStore.getChunkIndex().size() + " 个检索片段）。");
+    }
+
+    /**
+     * 根据预设缓存刷新预设文件名列表
+     */
+    private void refreshPresetNames() {
+        List<String> names = presetStore.getNames();
+        if (!names.equals(indexedPresets)) {
+            indexedPresets = Collections.unmodifiableList(names);
+            generation.incrementAndGet();
         }
-        plugin.getLogger().info("已索引 " + indexedPresets.size() + " 个预设文件。");
+    }
+
+    /**
+     * 停止预设目录监听
+     */
+    public void shutdown() {
+        presetStore.shutdown();
     }
 
     public List<String> getIndexedCommands() {
@@ -89,4 +323,48 @@ public class WorkspaceIndexer {
     public List<String> getIndexedPresets() {
         return indexedPresets;
     }
+
+    public PresetStore getPresetStore() {
+        return presetStore;
+    }
+
+    public CommandSearchIndex getCommandIndex() {
+        return commandIndex;
+    }
+
+    /**
+     * 获取该玩家按权限可执行的命令视图，可在任意线程调用
+     *
+     * 视图按玩家缓存；未命中时在主线程查询权限，异步线程（如聊天线程）会等待主线程算完。
+     * 等待失败（例如服务器正在关闭）时退回玩家上次的视图。
+     */
+    public CommandViewCache.CommandView getCommandView(Player player) {
+        UUID uuid = player.getUniqueId();
+        CommandViewCache.CommandView cached = commandViews.getCachedView(uuid);
+        if (cached != null) return cached;
+        if (Bukkit.isPrimaryThread()) {
+            return commandViews.getView(uuid, player);
+        }
+        try {
+            return Bukkit.getScheduler().callSyncMethod(plugin, () -> commandViews.getView(uuid, player))
+                    .get(VIEW_WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            plugin.getLogger().warning("计算 " + player.getName() + " 的命令视图失败: " + e);
+        }
+        CommandViewCache.CommandView last = commandViews.getLastView(uuid);
+        return last != null ? last : CommandViewCache.CommandView.EMPTY;
+    }
+
+    public CommandViewCache getCommandViews() {
+        return commandViews;
+    }
+
+    /**
+     * 获取索引代数，每次重新索引后递增，供下游缓存判断是否失效
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
 }
@@ -0,0 +1,229 @@
+package org.YanPl.model;
+
+import org.YanPl.util.CaptureSender;
+import org.YanPl.util.ToolCallLexer.ToolCall;
+import org.bukkit.entity.Player;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicStampedReference;
+
+/**
+ * 单个玩家的 CLI 状态
+ *
+ * 聊天事件在异步线程处理，工具执行与 AI 回复在主线程处理，所有状态切换都通过 CAS 完成：
+ * 只有从预期状态出发的一方能够成功，另一方据此放弃，不会出现互相覆盖的更新。
+ * 玩家退出 CLI 后该对象即被丢弃，迟到的回调只会修改旧对象，不影响重新进入后的新状态。
+ *
+ * 每次从其他状态进入 GENERATING 都会开始新的一段生成并获得新的编号，编号与状态在同一次 CAS 中更新。
+ * 异步回调在发起时记下编号，执行时用 isCurrentTurn 校验：若期间玩家打断后又发送了新消息，
+ * 状态虽然同样是 GENERATING，编号却已不同，迟到的回复、工具结果与错误回滚都会被丢弃。
+ */
+public class CLIPlayerState {
+    public enum Phase {
+        /** 等待玩家同意用户协议 */
+        AGREEING,
+        /** 空闲，可以接收新消息 */
+        IDLE,
+        /** Agent 正在生成回复或执行工具 */
+        GENERATING,
+        /** 等待玩家确认 #run 命令或 #batch 批量命令 */
+        AWAITING_CONFIRM,
+        /** 等待玩家回应 #choose 选项 */
+        CHOOSING
+    }
+
+    private final DialogueSession session = new DialogueSession();
+    /** 编号不属于任何一段生成，状态切换失败时返回 */
+    public static final int NO_TURN = -1;
+
+    /** 当前状态，版本戳为当前这段生成的编号 */
+    private final AtomicStampedReference<Phase> phase;
+    private final AtomicReference<CompletableFuture<?>> inFlight = new AtomicReference<>();
+    private volatile ToolCall pendingCall;
+    private volatile String pendingCommand;
+    private volatile List<String> pendingBatch;
+    private final AtomicReference<List<ToolCall>> ignoredCalls = new AtomicReference<>(Collections.emptyList());
+    private volatile long turnDeadline;
+    /** 执行 #run 命令用的捕获发送者，仅在主线程访问 */
+    private CaptureSender captureSender;
+
+    public CLIPlayerState(Phase initial) {
+        this.phase = new AtomicStampedReference<>(initial, 0);
+    }
+
+    public DialogueSession getSession() {
+        return session;
+    }
+
+    public Phase getPhase() {
+        return phase.getReference();
+    }
+
+    /**
+     * 仅当当前状态为 expect 时切换到 update
+     *
+     * @return 是否切换成功
+     */
+    public boolean transition(Phase expect, Phase update) {
+        return advance(expect, update) != NO_TURN;
+    }
+
+    /**
+     * 从 expect 进入 GENERATING，开始新的一段生成
+     *
+     * @return 这段生成的编号，切换失败时返回 NO_TURN
+     */
+    public int beginTurn(Phase expect) {
+        return advance(expect, Phase.GENERATING);
+    }
+
+    /**
+     * 结束编号为 turn 的这段生成并回到 IDLE
+     *
+     * @return 已被打断或已开始新的一段生成时返回 false
+     */
+    public boolean endTurn(int turn) {
+        return phase.compareAndSet(Phase.GENERATING, Phase.IDLE, turn, turn);
+    }
+
+    /**
+     * 回调是否仍属于当前这段生成：状态仍为 GENERATING，且期间没有被打断后重新开始
+     */
+    public boolean isCurrentTurn(int turn) {
+        int[] stamp = new int[1];
+        return phase.get(stamp) == Phase.GENERATING && stamp[0] == turn;
+    }
+
+    private int advance(Phase expect, Phase update) {
+        int[] stamp = new int[1];
+        while (true) {
+            if (phase.get(stamp) != expect) return NO_TURN;
+            int turn = stamp[0];
+            int next = update == Phase.GENERATING && expect != Phase.GENERATING ? (turn + 1) & Integer.MAX_VALUE : turn;
+            if (phase.compareAndSet(expect, update, turn, next)) return next;
+        }
+    }
+
+    /**
+     * 玩家退出 CLI 时调用：中断请求并回到 IDLE，之后到达的回复与工具结果都会被丢弃
+     */
+    public void close() {
+        phase.set(Phase.IDLE, phase.getStamp());
+        cancelInFlight();
+    }
+
+    public boolean isActive() {
+        return phase.getReference() != Phase.AGREEING;
+    }
+
+    /**
+     * 记录待确认的命令并进入 AWAITING_CONFIRM（命令先于状态写入，看到该状态的线程一定能读到命令）
+     *
+     * @return 生成已被打断或已开始新的一段生成时返回 false
+     */
+    public boolean awaitConfirm(int turn, ToolCall call, String command) {
+        pendingCall = call;
+        pendingCommand = command;
+        pendingBatch = null;
+        return phase.compareAndSet(Phase.GENERATING, Phase.AWAITING_CONFIRM, turn, turn);
+    }
+
+    /**
+     * 记录待确认的批量命令并进入 AWAITING_CONFIRM
+     *
+     * @return 生成已被打断或已开始新的一段生成时返回 false
+     */
+    public boolean awaitBatchConfirm(int turn, ToolCall call, List<String> commands) {
+        pendingCall = call;
+        pendingCommand = null;
+        pendingBatch = commands;
+        return phase.compareAndSet(Phase.GENERATING, Phase.AWAITING_CONFIRM, turn, turn);
+    }
+
+    /**
+     * 记录等待玩家回应的 #choose 调用并进入 CHOOSING
+     *
+     * @return 生成已被打断或已开始新的一段生成时返回 false
+     */
+    public boolean awaitChoice(int turn, ToolCall call) {
+        pendingCall = call;
+        return phase.compareAndSet(Phase.GENERATING, Phase.CHOOSING, turn, turn);
+    }
+
+    /**
+     * 待确认的命令，仅在成功离开 AWAITING_CONFIRM 状态的一方读取
+     */
+    public String getPendingCommand() {
+        return pendingCommand;
+    }
+
+    /**
+     * 待确认的批量命令，确认的是单条命令时为 null
+     */
+    public List<String> getPendingBatch() {
+        return pendingBatch;
+    }
+
+    /**
+     * 等待玩家确认或选择的工具调用，其结果需要反馈给这次调用
+     */
+    public ToolCall getPendingCall() {
+        return pendingCall;
+    }
+
+    /**
+     * 记录本轮回复中因需要单独执行而被忽略的调用，替换上一轮的记录
+     */
+    public void setIgnoredCalls(List<ToolCall> calls) {
+        ignoredCalls.set(calls);
+    }
+
+    /**
+     * 取出本轮被忽略的调用，只有第一次反馈能取到，之后返回空列表
+     */
+    public List<ToolCall> takeIgnoredCalls() {
+        return ignoredCalls.getAndSet(Collections.emptyList());
+    }
+
+    /**
+     * 获取该玩家复用的捕获发送者，玩家对象变化（重新登录）时重建
+     */
+    public CaptureSender getCaptureSender(Player player) {
+        if (captureSender == null || captureSender.getPlayer() != player) {
+            captureSender = new CaptureSender(player);
+        }
+        return captureSender;
+    }
+
+    public long getTurnDeadline() {
+        return turnDeadline;
+    }
+
+    public void setTurnDeadline(long turnDeadline) {
+        this.turnDeadline = turnDeadline;
+    }
+
+    public void setInFlight(CompletableFuture<?> future) {
+        inFlight.set(future);
+    }
+
+    /**
+     * 请求结束时清除记录，若已被更新的请求替换则保持不变
+     */
+    public void clearInFlight(CompletableFuture<?> future) {
+        inFlight.compareAndSet(future, null);
+    }
+
+    /**
+     * 中断正在进行的 AI 请求或搜索
+     *
+     * @return 是否确实中断了一个请求
+     */
+    public boolean cancelInFlight() {
+        CompletableFuture<?> future = inFlight.getAndSet(null);
+        return future != null && future.cancel(true);
+    }
+}
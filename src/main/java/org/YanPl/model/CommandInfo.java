@@ -0,0 +1,102 @@
+package org.YanPl.model;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * 已索引命令的元数据
+ *
+ * 所属插件名会被驻留，同一插件的命令共享同一个字符串；没有别名时共享空列表。
+ */
+public class CommandInfo {
+    private final String name;
+    private final List<String> aliases;
+    private final String description;
+    private final String usage;
+    private final String plugin;
+    private final String permission;
+
+    public CommandInfo(String name, List<String> aliases, String description, String usage) {
+        this(name, aliases, description, usage, "", "");
+    }
+
+    /**
+     * @param plugin     所属插件名，原版与服务端内置命令为其命名空间（如 minecraft、bukkit），未知时为空
+     * @param permission 执行所需的权限节点，没有时为空
+     */
+    public CommandInfo(String name, List<String> aliases, String description, String usage, String plugin, String permission) {
+        this.name = name;
+        this.aliases = aliases.isEmpty() ? Collections.emptyList() : Collections.unmodifiableList(aliases);
+        this.description = description == null ? "" : description;
+        this.usage = usage == null ? "" : usage.replace("<command>", name);
+        this.plugin = plugin == null ? "" : plugin.intern();
+        this.permission = permission == null ? "" : permission;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<String> getAliases() {
+        return aliases;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public String getUsage() {
+        return usage;
+    }
+
+    public String getPlugin() {
+        return plugin;
+    }
+
+    public String getPermission() {
+        return permission;
+    }
+
+    /**
+     * 是否属于指定插件（忽略大小写，命名空间形式的插件名同样匹配）
+     */
+    public boolean isOwnedBy(String pluginName) {
+        return plugin.equalsIgnoreCase(pluginName);
+    }
+
+    /**
+     * 生成提供给 AI 的单行描述
+     */
+    public String format() {
+        StringBuilder sb = new StringBuilder(name);
+        if (!aliases.isEmpty()) {
+            sb.append(" [别名: ").append(String.join(", ", aliases)).append("]");
+        }
+        if (!description.isEmpty()) {
+            sb.append(" - ").append(description);
+        }
+        if (!usage.isEmpty() && !usage.equals("/" + name)) {
+            sb.append(" (用法: ").append(usage.replace("\n", " ")).append(")");
+        }
+        if (!plugin.isEmpty()) {
+            sb.append(" [插件: ").append(plugin).append("]");
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof CommandInfo)) return false;
+        CommandInfo that = (CommandInfo) o;
+        return name.equals(that.name) && aliases.equals(that.aliases)
+                && description.equals(that.description) && usage.equals(that.usage)
+                && plugin.equals(that.plugin) && permission.equals(that.permission);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(name, aliases, description, usage, plugin, permission);
+    }
+}
@@ -1,40 +1,176 @@
 package org.YanPl.model;
 
-import java.util.ArrayList;
+import com.google.gson.stream.JsonWriter;
+import org.YanPl.util.PersistentList;
+import org.YanPl.util.TokenCounter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 
 /**
  * 对话会话模型，存储对话历史
+ *
+ * 历史按 Token 预算裁剪：较早的对话由 HistoryCompactor 在后台压缩为一条滚动摘要，
+ * 摘要不在 history 中，而是在请求时作为一条单独的消息插入。
+ *
+ * 历史以不可变的 PersistentList 保存，每次修改发布一个新版本：
+ * 修改方法之间互斥，读取方（构建请求、检索相关命令）直接拿到当前版本作为快照，无需加锁或复制。
  */
 public class DialogueSession {
-    private final List<Message> history = new ArrayList<>();
+    private static final String TRUNCATED_MARK = "\n...(内容过长，已截断)";
+
+    private volatile PersistentList<Message> history = PersistentList.empty();
     private long lastActivityTime;
+    private volatile ResponseChain responseChain;
+    private volatile String summary;
+    private long generation = 0;
+    /** 历史消息 Token 数之和，随消息增删增量维护；计数方式变化（词表加载完成）后整体重算 */
+    private volatile int historyTokens = 0;
+    private volatile int historyTokensVersion = TokenCounter.getVersion();
 
     public DialogueSession() {
         this.lastActivityTime = System.currentTimeMillis();
     }
 
     public void addMessage(String role, String content) {
-        history.add(new Message(role, content));
+        addMessage(new Message(role, content));
+    }
+
+    /**
+     * 追加一条已构建的消息，调用方可以事先在异步线程中算好它的 Token 数
+     */
+    public synchronized void addMessage(Message message) {
+        getHistoryTokens();
+        historyTokens += message.getTokenCount();
+        history = history.append(message);
         this.lastActivityTime = System.currentTimeMillis();
-        
-        // 简单的历史记录剪裁，防止 Token 超出过多（假设最大 10 轮对话）
-        if (history.size() > 20) {
-            history.remove(0);
-            history.remove(0);
-        }
     }
 
+    /**
+     * 获取历史的当前版本，返回的列表不可修改，之后的修改不会影响它
+     */
     public List<Message> getHistory() {
         return history;
     }
 
+    /**
+     * 历史（含摘要）占用的 Token 数，未加载词表时为估算值
+     */
     public int getEstimatedTokens() {
-        int chars = 0;
-        for (Message msg : history) {
-            chars += msg.getContent().length();
+        return getHistoryTokens() + getSummaryTokens();
+    }
+
+    private synchronized int getHistoryTokens() {
+        int currentVersion = TokenCounter.getVersion();
+        if (historyTokensVersion != currentVersion) {
+            int tokens = 0;
+            for (Message msg : history) {
+                tokens += msg.getTokenCount();
+            }
+            historyTokens = tokens;
+            historyTokensVersion = currentVersion;
+        }
+        return historyTokens;
+    }
+
+    private int getSummaryTokens() {
+        String currentSummary = summary;
+        return currentSummary == null ? 0 : TokenCounter.count(currentSummary) + TokenCounter.MESSAGE_OVERHEAD;
+    }
+
+    private Message removeFirst() {
+        Message removed = history.get(0);
+        history = history.dropFirst(1);
+        historyTokens -= removed.getTokenCount();
+        return removed;
+    }
+
+    /**
+     * 较早对话的滚动摘要，没有时返回 null
+     */
+    public String getSummary() {
+        return summary;
+    }
+
+    /**
+     * 历史代数，每次清空历史时递增，用于丢弃针对旧历史生成的摘要
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * 选出需要压缩的最早一段消息，使剩余消息不超过 keepTokens
+     *
+     * @param minKeepMessages 无论如何都保留的最新消息条数
+     * @return 需要压缩的消息快照，无需压缩时返回空列表
+     */
+    public synchronized List<Message> selectForCompaction(int keepTokens, int minKeepMessages) {
+        PersistentList<Message> snapshot = history;
+        int remaining = getHistoryTokens();
+        int count = 0;
+        while (count < snapshot.size() - minKeepMessages && remaining > keepTokens) {
+            remaining -= snapshot.get(count).getTokenCount();
+            count++;
         }
-        return chars / 4; // 粗略估计：4个字符1个Token
+        return snapshot.subList(0, count);
+    }
+
+    /**
+     * 用新摘要替换已压缩的消息
+     *
+     * 只移除仍位于历史开头的那些消息（其间可能已被预算裁剪掉一部分）；
+     * 生成摘要期间历史被清空时忽略本次结果。
+     *
+     * @return 是否应用了摘要
+     */
+    public synchronized boolean applySummary(String newSummary, List<Message> compacted, long expectedGeneration) {
+        if (expectedGeneration != generation) return false;
+
+        Set<Message> compactedSet = Collections.newSetFromMap(new IdentityHashMap<>());
+        compactedSet.addAll(compacted);
+        getHistoryTokens();
+        while (!history.isEmpty() && compactedSet.contains(history.get(0))) {
+            removeFirst();
+        }
+        summary = newSummary;
+        // 服务端对话链中仍包含被压缩的原始消息，需要重新以摘要开始
+        responseChain = null;
+        return true;
+    }
+
+    /**
+     * 按 Token 预算直接裁剪历史：从最早的消息开始丢弃，最新一条消息过长时截断其内容
+     *
+     * @return 被丢弃的消息数
+     */
+    public synchronized int trimToBudget(int budget) {
+        int dropped = 0;
+        int tokens = getEstimatedTokens();
+        while (tokens > budget && history.size() > 1) {
+            tokens -= removeFirst().getTokenCount();
+            dropped++;
+        }
+        if (tokens > budget && !history.isEmpty()) {
+            // 按 Token 比例截断最新一条消息
+            Message last = history.get(history.size() - 1);
+            int lastTokens = Math.max(1, last.getTokenCount());
+            int allowed = Math.max(0, lastTokens - (tokens - budget));
+            int keepChars = Math.max(0, (int) ((long) last.getContent().length() * allowed / lastTokens) - TRUNCATED_MARK.length());
+            Message truncated = last.withContent(last.getContent().substring(0, keepChars) + TRUNCATED_MARK);
+            history = history.with(history.size() - 1, truncated);
+            historyTokens += truncated.getTokenCount() - lastTokens;
+        }
+        if (dropped > 0) {
+            // 服务端对话链中仍包含被丢弃的消息
+            responseChain = null;
+        }
+        return dropped;
     }
 
     public long getLastActivityTime() {
@@ -45,23 +181,204 @@ public class DialogueSession {
         this.lastActivityTime = System.currentTimeMillis();
     }
 
-    public void clearHistory() {
-        history.clear();
+    public synchronized void clearHistory() {
+        history = PersistentList.empty();
+        historyTokens = 0;
+        responseChain = null;
+        summary = null;
+        generation++;
     }
 
-    public void removeLastMessage() {
+    public synchronized void removeLastMessage() {
         if (!history.isEmpty()) {
-            history.remove(history.size() - 1);
+            getHistoryTokens();
+            historyTokens -= history.get(history.size() - 1).getTokenCount();
+            history = history.dropLast(1);
+            // 被删除的消息已在服务端的对话链中，链与本地历史不再一致
+            ResponseChain chain = responseChain;
+            if (chain != null && history.size() <= chain.getSyncedCount()) {
+                responseChain = null;
+            }
+        }
+    }
+
+    /**
+     * 获取服务端对话链状态，为 null 时下一次请求需要完整重放历史
+     */
+    public ResponseChain getResponseChain() {
+        return responseChain;
+    }
+
+    public void setResponseChain(ResponseChain responseChain) {
+        this.responseChain = responseChain;
+    }
+
+    public void resetResponseChain() {
+        this.responseChain = null;
+    }
+
+    /**
+     * 服务端对话链（Responses API 的 previous_response_id）状态
+     *
+     * 服务端已保存历史中前 syncedCount 条消息以及紧随其后的一条 AI 回复，
+     * 续接时只需发送此后新增的消息。
+     */
+    public static class ResponseChain {
+        private final String responseId;
+        private final int syncedCount;
+        private final int systemPromptHash;
+        private final String contextPrompt;
+        private final String reply;
+        private final int chainedMessages;
+
+        public ResponseChain(String responseId, int syncedCount, int systemPromptHash, String contextPrompt, String reply, int chainedMessages) {
+            this.responseId = responseId;
+            this.syncedCount = syncedCount;
+            this.systemPromptHash = systemPromptHash;
+            this.contextPrompt = contextPrompt;
+            this.reply = reply;
+            this.chainedMessages = chainedMessages;
+        }
+
+        public String getResponseId() {
+            return responseId;
+        }
+
+        public int getSyncedCount() {
+            return syncedCount;
+        }
+
+        public int getSystemPromptHash() {
+            return systemPromptHash;
+        }
+
+        public String getContextPrompt() {
+            return contextPrompt;
+        }
+
+        public String getReply() {
+            return reply;
+        }
+
+        /**
+         * 自上次完整重放以来通过续接发送的消息数
+         */
+        public int getChainedMessages() {
+            return chainedMessages;
         }
     }
 
     public static class Message {
+        private static final String FUNCTION_CALL = "function_call";
+        private static final String FUNCTION_CALL_OUTPUT = "function_call_output";
+
         private final String role;
         private final String content;
+        /** 为 null 时是普通消息，否则为函数调用或函数调用结果 */
+        private final String type;
+        private final String callId;
+        private final String name;
+        /** 高 32 位为计数方式版本号，低 32 位为 Token 数；合并为一个字段以便多线程读取时保持一致 */
+        private volatile long tokenCountCache = -1L;
+        private volatile String serializedJson;
 
         public Message(String role, String content) {
+            this(role, content, null, null, null);
+        }
+
+        private Message(String role, String content, String type, String callId, String name) {
             this.role = role;
             this.content = content;
+            this.type = type;
+            this.callId = callId;
+            this.name = name;
+        }
+
+        /**
+         * AI 发起的函数调用，内容为 JSON 格式的参数
+         */
+        public static Message functionCall(String callId, String name, String arguments) {
+            return new Message("assistant", arguments == null || arguments.isEmpty() ? "{}" : arguments, FUNCTION_CALL, callId, name);
+        }
+
+        /**
+         * 返回给 AI 的函数调用结果
+         */
+        public static Message functionCallOutput(String callId, String output) {
+            return new Message("tool", output, FUNCTION_CALL_OUTPUT, callId, null);
+        }
+
+        /**
+         * 替换内容后的副本，保留类型与调用 ID
+         */
+        public Message withContent(String newContent) {
+            return new Message(role, newContent, type, callId, name);
+        }
+
+        public boolean isFunctionCall() {
+            return FUNCTION_CALL.equals(type);
+        }
+
+        public boolean isFunctionCallOutput() {
+            return FUNCTION_CALL_OUTPUT.equals(type);
+        }
+
+        public String getCallId() {
+            return callId;
+        }
+
+        /**
+         * 函数调用的函数名，普通消息为 null
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * 消息占用的 Token 数（含角色标记开销），计算一次后缓存
+         */
+        public int getTokenCount() {
+            int currentVersion = TokenCounter.getVersion();
+            long cache = tokenCountCache;
+            if (cache != -1L && (int) (cache >>> 32) == currentVersion) {
+                return (int) cache;
+            }
+            int tokenCount = TokenCounter.count(content) + TokenCounter.MESSAGE_OVERHEAD;
+            tokenCountCache = ((long) currentVersion << 32) | (tokenCount & 0xFFFFFFFFL);
+            return tokenCount;
+        }
+
+        /**
+         * 消息在请求体中的 JSON 形式（普通消息为 {"role":...,"content":...}，函数调用及其结果为对应的输入项），生成一次后缓存，
+         * 每次请求重放历史时直接写出，无需重新转义内容
+         */
+        public String getSerializedJson() {
+            String json = serializedJson;
+            if (json == null) {
+                StringWriter out = new StringWriter(content.length() + 32);
+                try (JsonWriter writer = new JsonWriter(out)) {
+                    writer.beginObject();
+                    if (isFunctionCall()) {
+                        writer.name("type").value(FUNCTION_CALL);
+                        writer.name("call_id").value(callId);
+                        writer.name("name").value(name);
+                        writer.name("arguments").value(content);
+                    } else if (isFunctionCallOutput()) {
+                        writer.name("type").value(FUNCTION_CALL_OUTPUT);
+                        writer.name("call_id").value(callId);
+                        writer.name("output").value(content);
+                    } else {
+                        writer.name("role").value(role);
+                        writer.name("content").value(content);
+                    }
+                    writer.endObject();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                json = out.toString();
+                serializedJson = json;
+            }
+            return json;
         }
 
         public String getRole() {
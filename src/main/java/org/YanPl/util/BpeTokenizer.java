@@ -0,0 +1,188 @@
+package org.YanPl.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 离线 BPE 分词器，读取 tiktoken 格式的词表（每行 "base64(token) rank"），只用于统计 Token 数
+ *
+ * 预分词规则与 OpenAI 的 o200k / cl100k 编码一致，gpt-oss 系列使用 o200k。
+ */
+public class BpeTokenizer {
+    private static final String O200K_PATTERN =
+            "[^\\r\\n\\p{L}\\p{N}]?[\\p{Lu}\\p{Lt}\\p{Lm}\\p{Lo}\\p{M}]*[\\p{Ll}\\p{Lm}\\p{Lo}\\p{M}]+(?i:'s|'t|'re|'ve|'m|'ll|'d)?"
+            + "|[^\\r\\n\\p{L}\\p{N}]?[\\p{Lu}\\p{Lt}\\p{Lm}\\p{Lo}\\p{M}]+[\\p{Ll}\\p{Lm}\\p{Lo}\\p{M}]*(?i:'s|'t|'re|'ve|'m|'ll|'d)?"
+            + "|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n/]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+";
+    private static final String CL100K_PATTERN =
+            "(?i:'s|'t|'re|'ve|'m|'ll|'d)|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+";
+    /** 超长的单个片段（如一长串无空格字符）分块合并，避免合并过程退化为平方复杂度 */
+    private static final int MAX_PIECE_BYTES = 256;
+    private static final int NO_RANK = Integer.MAX_VALUE;
+
+    private final String encoding;
+    private final Pattern pattern;
+    /** 词表中的字节序列，下标与 tokenRanks 对应 */
+    private final byte[][] tokens;
+    /** 字节序列的合并优先级 */
+    private final int[] tokenRanks;
+    /** 开放寻址哈希表，存放 tokens 的下标加一，0 表示空槽；按字节区间直接查找，不需要创建键对象 */
+    private final int[] slots;
+    private final int mask;
+
+    private BpeTokenizer(String encoding, List<byte[]> tokens, List<Integer> ranks) {
+        this.encoding = encoding;
+        this.tokens = tokens.toArray(new byte[0][]);
+        this.tokenRanks = new int[ranks.size()];
+        for (int i = 0; i < tokenRanks.length; i++) {
+            tokenRanks[i] = ranks.get(i);
+        }
+        int capacity = Integer.highestOneBit(Math.max(16, this.tokens.length * 2 - 1)) << 1;
+        this.slots = new int[capacity];
+        this.mask = capacity - 1;
+        for (int t = 0; t < this.tokens.length; t++) {
+            byte[] token = this.tokens[t];
+            int slot = hash(token, 0, token.length) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = t + 1;
+        }
+        String regex = encoding.startsWith("o200k") ? O200K_PATTERN : CL100K_PATTERN;
+        this.pattern = Pattern.compile(regex, Pattern.UNICODE_CHARACTER_CLASS);
+    }
+
+    /**
+     * 从 tiktoken 词表加载分词器
+     *
+     * @param encoding 编码名称（如 o200k_base），决定预分词规则
+     */
+    public static BpeTokenizer load(String encoding, InputStream vocab) throws IOException {
+        List<byte[]> tokens = new ArrayList<>(262144);
+        List<Integer> ranks = new ArrayList<>(262144);
+        Set<String> seen = new HashSet<>(262144);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(vocab, StandardCharsets.US_ASCII))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int space = line.indexOf(' ');
+                if (space <= 0) continue;
+                String encoded = line.substring(0, space);
+                // 正常词表不含重复词条，出现时只保留第一条
+                if (!seen.add(encoded)) continue;
+                tokens.add(Base64.getDecoder().decode(encoded));
+                ranks.add(Integer.parseInt(line.substring(space + 1).trim()));
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("词表格式错误: " + e.getMessage(), e);
+        }
+        if (tokens.isEmpty()) {
+            throw new IOException("词表为空");
+        }
+        return new BpeTokenizer(encoding, tokens, ranks);
+    }
+
+    public String getEncoding() {
+        return encoding;
+    }
+
+    public int getVocabularySize() {
+        return tokens.length;
+    }
+
+    /**
+     * 统计文本编码后的 Token 数
+     */
+    public int count(String text) {
+        int tokens = 0;
+        Matcher matcher = pattern.matcher(text);
+        while (matcher.find()) {
+            byte[] bytes = matcher.group().getBytes(StandardCharsets.UTF_8);
+            for (int offset = 0; offset < bytes.length; offset += MAX_PIECE_BYTES) {
+                tokens += countPiece(bytes, offset, Math.min(bytes.length, offset + MAX_PIECE_BYTES));
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * 对单个预分词片段执行 BPE 合并：反复合并优先级最高（rank 最小）的相邻字节对
+     *
+     * bounds 记录当前各部分的起点，pairRanks[i] 为第 i、i+1 部分合并后的优先级；
+     * 每次合并只需重新查询与合并位置相邻的两对，查询直接按字节区间进行，整个过程不创建临时对象。
+     */
+    private int countPiece(byte[] bytes, int start, int end) {
+        int length = end - start;
+        if (length <= 1 || rank(bytes, start, end) != NO_RANK) {
+            return 1;
+        }
+
+        int[] bounds = new int[length + 1];
+        for (int i = 0; i <= length; i++) {
+            bounds[i] = start + i;
+        }
+        int[] pairRanks = new int[length];
+        for (int i = 0; i + 2 <= length; i++) {
+            pairRanks[i] = rank(bytes, bounds[i], bounds[i + 2]);
+        }
+
+        int count = length + 1;
+        while (count > 2) {
+            int bestRank = NO_RANK;
+            int bestIndex = -1;
+            for (int i = 0; i + 2 < count; i++) {
+                if (pairRanks[i] < bestRank) {
+                    bestRank = pairRanks[i];
+                    bestIndex = i;
+                }
+            }
+            if (bestIndex == -1) break;
+
+            // 删除 bestIndex + 1 处的边界，即合并第 bestIndex 与 bestIndex + 1 部分
+            System.arraycopy(bounds, bestIndex + 2, bounds, bestIndex + 1, count - bestIndex - 2);
+            System.arraycopy(pairRanks, bestIndex + 2, pairRanks, bestIndex + 1, Math.max(0, count - bestIndex - 4));
+            count--;
+            if (bestIndex + 2 < count) {
+                pairRanks[bestIndex] = rank(bytes, bounds[bestIndex], bounds[bestIndex + 2]);
+            }
+            if (bestIndex > 0) {
+                pairRanks[bestIndex - 1] = rank(bytes, bounds[bestIndex - 1], bounds[bestIndex + 1]);
+            }
+        }
+        return count - 1;
+    }
+
+    /**
+     * 查询字节区间的合并优先级，不在词表中时返回 NO_RANK
+     */
+    private int rank(byte[] bytes, int start, int end) {
+        int slot = hash(bytes, start, end) & mask;
+        int length = end - start;
+        while (true) {
+            int entry = slots[slot];
+            if (entry == 0) return NO_RANK;
+            byte[] token = tokens[entry - 1];
+            if (token.length == length && Arrays.equals(token, 0, length, bytes, start, end)) {
+                return tokenRanks[entry - 1];
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static int hash(byte[] bytes, int start, int end) {
+        int h = 0x811C9DC5;
+        for (int i = start; i < end; i++) {
+            h = (h ^ bytes[i]) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+}
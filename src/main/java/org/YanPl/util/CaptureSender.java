@@ -0,0 +1,282 @@
+package org.YanPl.util;
+
+import net.md_5.bungee.api.ChatMessageType;
+import net.md_5.bungee.api.chat.BaseComponent;
+import net.md_5.bungee.api.chat.TextComponent;
+import org.bukkit.ChatColor;
+import org.bukkit.entity.Player;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+
+/**
+ * 以玩家身份执行命令并捕获文本输出的发送者
+ *
+ * 分派表在类加载时按 Method 构建一次：发送消息的方法写入捕获缓冲区后再转发给玩家，
+ * 其余方法（权限检查、名字、位置等）通过预先绑定的 MethodHandle 直接调用真实玩家，
+ * 不再逐次比较方法名或走反射调用。每个玩家复用同一个实例，执行命令前调用 begin 开始新的捕获。
+ */
+public final class CaptureSender implements InvocationHandler {
+    private static final Object[] NO_ARGS = new Object[0];
+    /** 分派表中没有的方法，回退到反射调用 */
+    private static final Route MISSING = (sender, args) -> null;
+    private static final MethodType GENERIC = MethodType.methodType(Object.class, Object.class, Object[].class);
+    private static final Map<Method, Route> ROUTES = buildRoutes();
+    /** 代理类每次传入的是同一批 Method 对象，按引用缓存查找结果，避免逐次比较方法签名 */
+    private static volatile Map<Method, Route> resolved = new IdentityHashMap<>();
+
+    private final Player player;
+    private final Player proxy;
+    private final CaptureSpigot spigot = new CaptureSpigot();
+    /** 当前捕获缓冲区，为 null 时只转发不捕获 */
+    private StringBuilder output;
+    /** 本次捕获收到的消息条数，用于判断输出是否已经静止 */
+    private long captured;
+
+    public CaptureSender(Player player) {
+        this.player = player;
+        this.proxy = (Player) Proxy.newProxyInstance(CaptureSender.class.getClassLoader(), new Class<?>[]{Player.class}, this);
+    }
+
+    /**
+     * 用于 dispatchCommand 的代理玩家
+     */
+    public Player getSender() {
+        return proxy;
+    }
+
+    public Player getPlayer() {
+        return player;
+    }
+
+    /**
+     * 开始新的捕获，丢弃上一次未取走的输出
+     */
+    public synchronized void begin() {
+        output = new StringBuilder();
+        captured = 0;
+    }
+
+    /**
+     * 本次捕获到目前为止收到的消息条数
+     */
+    public synchronized long getCapturedCount() {
+        return captured;
+    }
+
+    /**
+     * 结束捕获并返回期间收到的文本（已去除颜色代码），之后的消息仍会转发给玩家
+     */
+    public synchronized String finish() {
+        String text = output == null ? "" : output.toString();
+        output = null;
+        return text;
+    }
+
+    /**
+     * 命令可能在异步线程中回复，写入缓冲区需要同步
+     */
+    private synchronized void capture(String text) {
+        if (output == null || text == null) return;
+        if (output.length() > 0) output.append("\n");
+        output.append(ChatColor.stripColor(text));
+        captured++;
+    }
+
+    private void captureComponents(BaseComponent... components) {
+        if (components == null) return;
+        for (BaseComponent component : components) {
+            if (component != null) capture(TextComponent.toLegacyText(component));
+        }
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        Route route = resolved.get(method);
+        if (route == null) {
+            route = resolve(method);
+        }
+        if (route == MISSING) {
+            // 运行时接口中存在、构建分派表时未能绑定的方法
+            try {
+                return method.invoke(player, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+        return route.invoke(this, args == null ? NO_ARGS : args);
+    }
+
+    private static Route resolve(Method method) {
+        Route route = ROUTES.getOrDefault(method, MISSING);
+        synchronized (CaptureSender.class) {
+            Map<Method, Route> copy = new IdentityHashMap<>(resolved);
+            copy.put(method, route);
+            resolved = copy;
+        }
+        return route;
+    }
+
+    /**
+     * 分派表中的一项
+     */
+    private interface Route {
+        Object invoke(CaptureSender sender, Object[] args) throws Throwable;
+    }
+
+    private static Map<Method, Route> buildRoutes() {
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        Map<Method, Route> routes = new HashMap<>();
+        for (Method method : Player.class.getMethods()) {
+            MethodHandle handle = bind(lookup, method);
+            if (handle != null) routes.put(method, route(method, handle));
+        }
+        // 代理同样会分派 Object 的这三个方法
+        for (String name : new String[]{"equals", "hashCode", "toString"}) {
+            for (Method method : Object.class.getMethods()) {
+                if (!method.getName().equals(name)) continue;
+                MethodHandle handle = bind(lookup, method);
+                if (handle != null) routes.put(method, delegate(handle));
+            }
+        }
+        return routes;
+    }
+
+    /**
+     * 把方法绑定为 (Object target, Object[] args) -> Object 形式的句柄，无法访问时返回 null
+     */
+    private static MethodHandle bind(MethodHandles.Lookup lookup, Method method) {
+        try {
+            return lookup.unreflect(method)
+                    .asSpreader(Object[].class, method.getParameterCount())
+                    .asType(GENERIC);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private static Route route(Method method, MethodHandle handle) {
+        String name = method.getName();
+        Class<?>[] params = method.getParameterTypes();
+        int last = params.length - 1;
+
+        if (name.equals("spigot") && params.length == 0) {
+            return (sender, args) -> sender.spigot;
+        }
+        // 命令执行期间调用最频繁的几个方法直接调用，不经过句柄
+        if (name.equals("hasPermission") && params.length == 1 && params[0] == String.class) {
+            return (sender, args) -> sender.player.hasPermission((String) args[0]);
+        }
+        if (name.equals("getName") && params.length == 0) {
+            return (sender, args) -> sender.player.getName();
+        }
+        if (name.equals("getUniqueId") && params.length == 0) {
+            return (sender, args) -> sender.player.getUniqueId();
+        }
+        if (name.equals("isOp") && params.length == 0) {
+            return (sender, args) -> sender.player.isOp();
+        }
+        if ((name.equals("sendMessage") || name.equals("sendRawMessage") || name.equals("sendActionBar")) && last >= 0) {
+            // 文本总是最后一个参数，前面可能带有发送者 UUID
+            if (params[last] == String.class) {
+                return capturing(handle, (sender, args) -> sender.capture((String) args[last]));
+            }
+            if (params[last] == String[].class) {
+                return capturing(handle, (sender, args) -> {
+                    String[] messages = (String[]) args[last];
+                    if (messages == null) return;
+                    for (String message : messages) {
+                        sender.capture(message);
+                    }
+                });
+            }
+        }
+        if (name.equals("sendTitle") && params.length >= 2 && params[0] == String.class && params[1] == String.class) {
+            return capturing(handle, (sender, args) -> {
+                String title = args[0] != null ? args[0].toString() : "";
+                String subtitle = args[1] != null ? args[1].toString() : "";
+                if (title.isEmpty() && subtitle.isEmpty()) return;
+                String text = "[Title] " + title;
+                if (!subtitle.isEmpty()) text += " [Subtitle] " + subtitle;
+                sender.capture(text);
+            });
+        }
+        return delegate(handle);
+    }
+
+    private static Route delegate(MethodHandle handle) {
+        return (sender, args) -> handle.invokeExact((Object) sender.player, args);
+    }
+
+    /**
+     * 先记录输出，再把原调用转发给真实玩家
+     */
+    private static Route capturing(MethodHandle handle, BiConsumer<CaptureSender, Object[]> recorder) {
+        return (sender, args) -> {
+            recorder.accept(sender, args);
+            return handle.invokeExact((Object) sender.player, args);
+        };
+    }
+
+    /**
+     * 代理玩家的 spigot()：捕获组件消息后转发给真实玩家
+     */
+    private final class CaptureSpigot extends Player.Spigot {
+        @Override
+        public void sendMessage(BaseComponent component) {
+            captureComponents(component);
+            player.spigot().sendMessage(component);
+        }
+
+        @Override
+        public void sendMessage(BaseComponent... components) {
+            captureComponents(components);
+            player.spigot().sendMessage(components);
+        }
+
+        @Override
+        public void sendMessage(UUID sender, BaseComponent component) {
+            captureComponents(component);
+            player.spigot().sendMessage(sender, component);
+        }
+
+        @Override
+        public void sendMessage(UUID sender, BaseComponent... components) {
+            captureComponents(components);
+            player.spigot().sendMessage(sender, components);
+        }
+
+        @Override
+        public void sendMessage(ChatMessageType position, BaseComponent component) {
+            captureComponents(component);
+            player.spigot().sendMessage(position, component);
+        }
+
+        @Override
+        public void sendMessage(ChatMessageType position, BaseComponent... components) {
+            captureComponents(components);
+            player.spigot().sendMessage(position, components);
+        }
+
+        @Override
+        public InetSocketAddress getRawAddress() {
+            return player.spigot().getRawAddress();
+        }
+
+        @Override
+        public void respawn() {
+            player.spigot().respawn();
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package org.YanPl.util;
+
+import org.YanPl.model.CommandInfo;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * 命令检索索引：命令名/别名前缀树 + 名称、别名、描述、用法的倒排索引
+ *
+ * 支持按命令增量更新，所有方法均为同步方法，可在主线程与异步线程之间共享。
+ */
+public class CommandSearchIndex {
+    private static final float NAME_WEIGHT = 3.0f;
+    private static final float ALIAS_WEIGHT = 2.0f;
+    private static final float TEXT_WEIGHT = 1.0f;
+
+    private final Map<String, CommandInfo> commands = new TreeMap<>();
+    private final Map<String, Map<String, Float>> postings = new HashMap<>();
+    private final Map<String, Set<String>> commandTokens = new HashMap<>();
+    private final TrieNode trie = new TrieNode();
+    private long generation = 0;
+
+    /**
+     * 以新的命令集合替换索引内容，只处理新增、变化和被移除的命令
+     *
+     * @return 发生变化的命令数
+     */
+    public synchronized int update(Collection<CommandInfo> latest) {
+        return replace(latest, null);
+    }
+
+    /**
+     * 只替换某个插件的命令：移除该插件不再提供的命令，新增或更新其余命令，其他插件的命令保持不变
+     *
+     * @return 发生变化的命令数
+     */
+    public synchronized int updatePlugin(String plugin, Collection<CommandInfo> latest) {
+        return replace(latest, plugin);
+    }
+
+    /**
+     * 移除某个插件的全部命令（插件被停用或卸载时）
+     *
+     * @return 被移除的命令数
+     */
+    public synchronized int removePlugin(String plugin) {
+        return replace(Collections.emptyList(), plugin);
+    }
+
+    /**
+     * @param plugin 为 null 时替换全部命令，否则只处理属于该插件的旧命令
+     */
+    private int replace(Collection<CommandInfo> latest, String plugin) {
+        Map<String, CommandInfo> incoming = new HashMap<>();
+        for (CommandInfo info : latest) {
+            incoming.put(info.getName(), info);
+        }
+
+        int changed = 0;
+        for (CommandInfo existing : new ArrayList<>(commands.values())) {
+            if (plugin != null && !existing.isOwnedBy(plugin)) continue;
+            if (!incoming.containsKey(existing.getName())) {
+                remove(existing.getName());
+                changed++;
+            }
+        }
+        for (CommandInfo info : incoming.values()) {
+            CommandInfo existing = commands.get(info.getName());
+            if (info.equals(existing)) continue;
+            if (existing != null) {
+                remove(info.getName());
+            }
+            add(info);
+            changed++;
+        }
+        if (changed > 0) {
+            generation++;
+        }
+        return changed;
+    }
+
+    /**
+     * 索引代数，内容每发生一次变化递增，供下游缓存判断是否失效
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    private void add(CommandInfo info) {
+        String name = info.getName();
+        commands.put(name, info);
+
+        Map<String, Float> weights = new HashMap<>();
+        addTokens(weights, SearchTokenizer.tokenize(name), NAME_WEIGHT);
+        trie.insert(name.toLowerCase(), name);
+        for (String alias : info.getAliases()) {
+            addTokens(weights, SearchTokenizer.tokenize(alias), ALIAS_WEIGHT);
+            trie.insert(alias.toLowerCase(), name);
+        }
+        addTokens(weights, SearchTokenizer.tokenize(info.getDescription()), TEXT_WEIGHT);
+        addTokens(weights, SearchTokenizer.tokenize(info.getUsage()), TEXT_WEIGHT);
+
+        for (Map.Entry<String, Float> entry : weights.entrySet()) {
+            postings.computeIfAbsent(entry.getKey(), k -> new HashMap<>()).put(name, entry.getValue());
+        }
+        commandTokens.put(name, weights.keySet());
+    }
+
+    private void addTokens(Map<String, Float> weights, List<String> tokens, float weight) {
+        for (String token : tokens) {
+            weights.merge(token, weight, Math::max);
+        }
+    }
+
+    private void remove(String name) {
+        CommandInfo info = commands.remove(name);
+        if (info == null) return;
+
+        Set<String> tokens = commandTokens.remove(name);
+        if (tokens != null) {
+            for (String token : tokens) {
+                Map<String, Float> posting = postings.get(token);
+                if (posting == null) continue;
+                posting.remove(name);
+                if (posting.isEmpty()) {
+                    postings.remove(token);
+                }
+            }
+        }
+        trie.remove(name.toLowerCase(), name);
+        for (String alias : info.getAliases()) {
+            trie.remove(alias.toLowerCase(), name);
+        }
+    }
+
+    /**
+     * 按相关度检索命令
+     *
+     * @param weightedQueries 查询文本及其权重（例如当前消息权重高于历史消息）
+     * @param limit           最多返回的命令数
+     */
+    public List<CommandInfo> search(Map<String, Float> weightedQueries, int limit) {
+        return search(weightedQueries, limit, name -> true);
+    }
+
+    /**
+     * 按相关度检索命令，只返回 filter 接受的命令名
+     */
+    public synchronized List<CommandInfo> search(Map<String, Float> weightedQueries, int limit, Predicate<String> filter) {
+        Map<String, Float> scores = new HashMap<>();
+        int total = Math.max(1, commands.size());
+
+        for (Map.Entry<String, Float> query : weightedQueries.entrySet()) {
+            float queryWeight = query.getValue();
+            for (String token : new LinkedHashSet<>(SearchTokenizer.tokenize(query.getKey()))) {
+                Map<String, Float> posting = postings.get(token);
+                if (posting != null) {
+                    float idf = (float) Math.log(1.0 + (double) total / posting.size());
+                    for (Map.Entry<String, Float> hit : posting.entrySet()) {
+                        if (!filter.test(hit.getKey())) continue;
+                        scores.merge(hit.getKey(), hit.getValue() * idf * queryWeight, Float::sum);
+                    }
+                }
+
+                // 前缀匹配命令名和别名，例如 "worl" -> worldedit
+                if (token.length() >= 2 && !SearchTokenizer.isCjk(token.charAt(0))) {
+                    for (String name : trie.collect(token, limit * 4, filter)) {
+                        scores.merge(name, ALIAS_WEIGHT * queryWeight * 0.5f, Float::sum);
+                    }
+                }
+            }
+        }
+
+        List<Map.Entry<String, Float>> ranked = new ArrayList<>(scores.entrySet());
+        ranked.sort((a, b) -> {
+            int cmp = Float.compare(b.getValue(), a.getValue());
+            return cmp != 0 ? cmp : a.getKey().compareTo(b.getKey());
+        });
+
+        List<CommandInfo> result = new ArrayList<>();
+        for (int i = 0; i < ranked.size() && result.size() < limit; i++) {
+            result.add(commands.get(ranked.get(i).getKey()));
+        }
+        return result;
+    }
+
+    /**
+     * 按命令名或别名前缀查找命令
+     */
+    public List<CommandInfo> lookupPrefix(String prefix, int limit) {
+        return lookupPrefix(prefix, limit, name -> true);
+    }
+
+    /**
+     * 按命令名或别名前缀查找 filter 接受的命令
+     */
+    public synchronized List<CommandInfo> lookupPrefix(String prefix, int limit, Predicate<String> filter) {
+        List<CommandInfo> result = new ArrayList<>();
+        for (String name : trie.collect(prefix.toLowerCase(), limit, filter)) {
+            result.add(commands.get(name));
+        }
+        result.sort(Comparator.comparing(CommandInfo::getName));
+        return result;
+    }
+
+    public synchronized CommandInfo get(String name) {
+        return commands.get(name);
+    }
+
+    public synchronized List<String> getAllNames() {
+        return new ArrayList<>(commands.keySet());
+    }
+
+    /**
+     * 全部命令的元数据（按命令名排序）
+     */
+    public synchronized List<CommandInfo> getAll() {
+        return new ArrayList<>(commands.values());
+    }
+
+    /**
+     * 全部命令名与别名（已排序、去重）
+     */
+    public synchronized List<String> getAllLabels() {
+        Set<String> labels = new TreeSet<>(commands.keySet());
+        for (CommandInfo info : commands.values()) {
+            labels.addAll(info.getAliases());
+        }
+        return new ArrayList<>(labels);
+    }
+
+    public synchronized int size() {
+        return commands.size();
+    }
+
+    /**
+     * 前缀树节点，终止节点记录所有以该路径为名称或别名的命令
+     */
+    private static class TrieNode {
+        private final Map<Character, TrieNode> children = new HashMap<>();
+        private final Set<String> commands = new TreeSet<>();
+
+        private void insert(String key, String command) {
+            TrieNode node = this;
+            for (int i = 0; i < key.length(); i++) {
+                node = node.children.computeIfAbsent(key.charAt(i), c -> new TrieNode());
+            }
+            node.commands.add(command);
+        }
+
+        private boolean remove(String key, String command) {
+            return remove(key, 0, command);
+        }
+
+        /**
+         * 删除记录并回收空节点
+         *
+         * @return 当前节点是否已为空，可由父节点删除
+         */
+        private boolean remove(String key, int depth, String command) {
+            if (depth == key.length()) {
+                commands.remove(command);
+            } else {
+                char c = key.charAt(depth);
+                TrieNode child = children.get(c);
+                if (child != null && child.remove(key, depth + 1, command)) {
+                    children.remove(c);
+                }
+            }
+            return commands.isEmpty() && children.isEmpty();
+        }
+
+        private Set<String> collect(String prefix, int limit, Predicate<String> filter) {
+            TrieNode node = this;
+            for (int i = 0; i < prefix.length() && node != null; i++) {
+                node = node.children.get(prefix.charAt(i));
+            }
+            Set<String> result = new LinkedHashSet<>();
+            if (node != null) {
+                node.collectInto(result, limit, filter);
+            }
+            return result;
+        }
+
+        private void collectInto(Set<String> result, int limit, Predicate<String> filter) {
+            for (String command : commands) {
+                if (result.size() >= limit) return;
+                if (filter.test(command)) result.add(command);
+            }
+            if (result.size() >= limit) return;
+            // 按字符顺序深度优先遍历，保证结果稳定
+            List<Character> keys = new ArrayList<>(children.keySet());
+            Collections.sort(keys);
+            for (Character key : keys) {
+                children.get(key).collectInto(result, limit, filter);
+                if (result.size() >= limit) return;
+            }
+        }
+    }
+}
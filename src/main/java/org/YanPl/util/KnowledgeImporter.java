@@ -0,0 +1,183 @@
+package org.YanPl.util;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 本地命令知识库的离线导入器
+ *
+ * 支持两种来源，都只读取本地文件，不访问网络：
+ * 语法数据文本（以 "== 标题 ==" 分隔条目，标题中可用逗号列出别名，# 开头为注释），以及 MediaWiki 的 XML 导出文件
+ * （只导入标题以 命令/ 或 Commands/ 开头的页面，按二级标题切成多个条目并去除 Wiki 标记）。
+ */
+public class KnowledgeImporter {
+    /** 单个条目正文的字符数上限 */
+    private static final int MAX_ENTRY_CHARS = 1500;
+    private static final String[] PAGE_PREFIXES = {"命令/", "Commands/"};
+
+    private static final Pattern HEADING = Pattern.compile("^=+\\s*(.*?)\\s*=+$");
+    private static final Pattern COMMENT = Pattern.compile("<!--.*?-->", Pattern.DOTALL);
+    private static final Pattern REF = Pattern.compile("<ref[^>]*/>|<ref[^>]*>.*?</ref>", Pattern.DOTALL);
+    private static final Pattern TEMPLATE = Pattern.compile("\\{\\{([^{}]*)\\}\\}");
+    private static final Pattern FILE_LINK = Pattern.compile("\\[\\[(?:File|Image|文件|图像|Category|分类):[^\\]]*\\]\\]", Pattern.CASE_INSENSITIVE);
+    private static final Pattern LINK = Pattern.compile("\\[\\[(?:[^|\\]]*\\|)?([^\\]]*)\\]\\]");
+    private static final Pattern EXTERNAL_LINK = Pattern.compile("\\[https?://\\S+\\s*([^\\]]*)\\]");
+    private static final Pattern HTML_TAG = Pattern.compile("</?[a-zA-Z][^>]*>");
+    private static final Pattern EMPHASIS = Pattern.compile("'{2,}");
+
+    private KnowledgeImporter() {}
+
+    /**
+     * 解析语法数据文本
+     */
+    public static List<KnowledgeIndex.Entry> parseDataset(Reader source) throws IOException {
+        List<KnowledgeIndex.Entry> entries = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(source);
+        String title = null;
+        StringBuilder body = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String trimmed = line.trim();
+            if (trimmed.startsWith("#")) continue;
+            Matcher heading = HEADING.matcher(trimmed);
+            if (trimmed.startsWith("==") && heading.matches()) {
+                addEntry(entries, title, body);
+                title = heading.group(1);
+                body.setLength(0);
+                continue;
+            }
+            if (title != null && !trimmed.isEmpty()) {
+                body.append(trimmed).append('\n');
+            }
+        }
+        addEntry(entries, title, body);
+        return entries;
+    }
+
+    /**
+     * 解析 MediaWiki XML 导出文件（Special:Export 或数据库转储）
+     */
+    public static List<KnowledgeIndex.Entry> parseWikiDump(InputStream in) throws IOException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        // 只读取本地文件，不解析 DTD 与外部实体
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+        List<KnowledgeIndex.Entry> entries = new ArrayList<>();
+        try {
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+            String title = null;
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) continue;
+                String name = reader.getLocalName();
+                if (name.equals("title")) {
+                    title = reader.getElementText().trim();
+                } else if (name.equals("text") && title != null && isCommandPage(title)) {
+                    String text = reader.getElementText();
+                    // 重定向页面没有内容
+                    if (!text.trim().toUpperCase().startsWith("#REDIRECT") && !text.trim().startsWith("#重定向")) {
+                        addPage(entries, title, text);
+                    }
+                    title = null;
+                }
+            }
+            reader.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("解析 Wiki 导出文件失败: " + e.getMessage(), e);
+        }
+        return entries;
+    }
+
+    private static boolean isCommandPage(String title) {
+        for (String prefix : PAGE_PREFIXES) {
+            if (title.startsWith(prefix)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * 按二级及以下标题把页面切成多个条目，标题形如 "命令/give - 语法"
+     */
+    private static void addPage(List<KnowledgeIndex.Entry> entries, String page, String wikitext) {
+        String section = null;
+        StringBuilder body = new StringBuilder();
+        for (String line : cleanWikitext(wikitext).split("\n")) {
+            String trimmed = line.trim();
+            Matcher heading = HEADING.matcher(trimmed);
+            if (trimmed.startsWith("==") && heading.matches()) {
+                addEntry(entries, section == null ? page : page + " - " + section, body);
+                section = heading.group(1);
+                body.setLength(0);
+                continue;
+            }
+            if (!trimmed.isEmpty()) {
+                body.append(trimmed).append('\n');
+            }
+        }
+        addEntry(entries, section == null ? page : page + " - " + section, body);
+    }
+
+    private static void addEntry(List<KnowledgeIndex.Entry> entries, String title, StringBuilder body) {
+        if (title == null || title.isEmpty() || body.length() == 0) return;
+        String text = body.toString().trim();
+        if (text.length() > MAX_ENTRY_CHARS) {
+            text = text.substring(0, MAX_ENTRY_CHARS) + "...";
+        }
+        entries.add(new KnowledgeIndex.Entry(title, text));
+    }
+
+    /**
+     * 粗略去除 Wiki 标记：链接取显示文本，模板取最后一个参数，表格只保留单元格内容
+     */
+    static String cleanWikitext(String text) {
+        String result = COMMENT.matcher(text).replaceAll("");
+        result = REF.matcher(result).replaceAll("");
+        // 先处理链接，避免链接中的 | 被当作模板参数分隔符
+        result = FILE_LINK.matcher(result).replaceAll("");
+        result = LINK.matcher(result).replaceAll("$1");
+        // {{!}} 是模板参数中转义的竖线
+        result = result.replace("{{!}}", "&#124;");
+        // 由内向外展开嵌套模板
+        String previous;
+        do {
+            previous = result;
+            result = TEMPLATE.matcher(result).replaceAll(match -> {
+                String inner = match.group(1);
+                int bar = inner.lastIndexOf('|');
+                if (bar < 0) return "";
+                String value = inner.substring(bar + 1);
+                int eq = value.indexOf('=');
+                if (eq >= 0 && value.substring(0, eq).matches("\\w+")) value = value.substring(eq + 1);
+                return Matcher.quoteReplacement(value.trim());
+            });
+        } while (!result.equals(previous));
+        result = result.replace("&#124;", "|").replace("&lt;", "<").replace("&gt;", ">").replace("&amp;", "&");
+        result = EXTERNAL_LINK.matcher(result).replaceAll("$1");
+        result = HTML_TAG.matcher(result).replaceAll("");
+        result = EMPHASIS.matcher(result).replaceAll("");
+
+        StringBuilder sb = new StringBuilder();
+        for (String line : result.split("\n")) {
+            String trimmed = line.trim();
+            if (trimmed.startsWith("{|") || trimmed.startsWith("|}") || trimmed.startsWith("|-") || trimmed.startsWith("__")) continue;
+            if (trimmed.startsWith("|") || trimmed.startsWith("!")) {
+                trimmed = trimmed.substring(1).replace("||", " | ").replace("!!", " | ").trim();
+            }
+            if (trimmed.startsWith("*") || trimmed.startsWith("#") || trimmed.startsWith(":") || trimmed.startsWith(";")) {
+                trimmed = trimmed.replaceFirst("^[*:;#]+\\s*", "");
+            }
+            sb.append(trimmed).append('\n');
+        }
+        return sb.toString();
+    }
+}
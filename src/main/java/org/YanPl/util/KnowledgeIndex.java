@@ -0,0 +1,318 @@
+package org.YanPl.util;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * 本地命令知识库的全文索引（BM25），可整体写入磁盘并在启动时直接读回
+ *
+ * 磁盘格式为条目表加倒排表，倒排表中的文档号与词频以变长整数差分编码；
+ * 读回后不再分词或重建索引。索引创建后不可变，可在任意线程检索。
+ */
+public final class KnowledgeIndex {
+    private static final int MAGIC = 0x4D414B42;
+    private static final int FORMAT = 1;
+    private static final float K1 = 1.2f;
+    private static final float B = 0.75f;
+    /** 标题中的词按出现多次计入词频，使标题命中排在正文命中之前 */
+    private static final int TITLE_BOOST = 3;
+
+    private final String gameVersion;
+    private final String sourceStamp;
+    private final String[] titles;
+    private final String[] texts;
+    private final int[] lengths;
+    /** 词 -> [文档号, 词频, 文档号, 词频, ...]，文档号递增 */
+    private final Map<String, int[]> postings;
+    private final float avgLength;
+
+    private KnowledgeIndex(String gameVersion, String sourceStamp, String[] titles, String[] texts,
+                           int[] lengths, Map<String, int[]> postings) {
+        this.gameVersion = gameVersion;
+        this.sourceStamp = sourceStamp;
+        this.titles = titles;
+        this.texts = texts;
+        this.lengths = lengths;
+        this.postings = postings;
+        long total = 0;
+        for (int length : lengths) total += length;
+        this.avgLength = Math.max(1.0f, lengths.length == 0 ? 1.0f : (float) total / lengths.length);
+    }
+
+    /**
+     * 由导入的条目建立索引
+     *
+     * @param sourceStamp 数据来源的状态标记，来源不变时可直接复用磁盘上的索引
+     */
+    public static KnowledgeIndex build(String gameVersion, String sourceStamp, List<Entry> entries) {
+        int count = entries.size();
+        String[] titles = new String[count];
+        String[] texts = new String[count];
+        int[] lengths = new int[count];
+        Map<String, List<int[]>> lists = new HashMap<>();
+
+        for (int doc = 0; doc < count; doc++) {
+            Entry entry = entries.get(doc);
+            titles[doc] = entry.getTitle();
+            texts[doc] = entry.getText();
+
+            Map<String, Integer> freqs = new HashMap<>();
+            int length = 0;
+            for (String token : SearchTokenizer.tokenize(entry.getTitle())) {
+                freqs.merge(token, TITLE_BOOST, Integer::sum);
+                length += TITLE_BOOST;
+            }
+            for (String token : SearchTokenizer.tokenize(entry.getText())) {
+                freqs.merge(token, 1, Integer::sum);
+                length++;
+            }
+            lengths[doc] = length;
+            for (Map.Entry<String, Integer> freq : freqs.entrySet()) {
+                lists.computeIfAbsent(freq.getKey(), k -> new ArrayList<>()).add(new int[]{doc, freq.getValue()});
+            }
+        }
+
+        Map<String, int[]> postings = new HashMap<>(lists.size() * 2);
+        for (Map.Entry<String, List<int[]>> list : lists.entrySet()) {
+            int[] flat = new int[list.getValue().size() * 2];
+            int i = 0;
+            for (int[] hit : list.getValue()) {
+                flat[i++] = hit[0];
+                flat[i++] = hit[1];
+            }
+            postings.put(list.getKey(), flat);
+        }
+        return new KnowledgeIndex(gameVersion, sourceStamp, titles, texts, lengths, postings);
+    }
+
+    /**
+     * 写入磁盘：先写临时文件再替换，写入中途失败不会破坏已有索引
+     */
+    public void write(File file) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) parent.mkdirs();
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeUTF(gameVersion);
+            out.writeUTF(sourceStamp);
+
+            writeVarInt(out, titles.length);
+            for (int doc = 0; doc < titles.length; doc++) {
+                out.writeUTF(titles[doc]);
+                out.writeUTF(texts[doc]);
+                writeVarInt(out, lengths[doc]);
+            }
+
+            writeVarInt(out, postings.size());
+            for (Map.Entry<String, int[]> posting : postings.entrySet()) {
+                out.writeUTF(posting.getKey());
+                int[] hits = posting.getValue();
+                writeVarInt(out, hits.length / 2);
+                int previous = 0;
+                for (int i = 0; i < hits.length; i += 2) {
+                    writeVarInt(out, hits[i] - previous);
+                    writeVarInt(out, hits[i + 1]);
+                    previous = hits[i];
+                }
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * 从磁盘读取索引
+     *
+     * @throws IOException 文件损坏或格式版本不符
+     */
+    public static KnowledgeIndex read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+                throw new IOException("索引格式不符");
+            }
+            String gameVersion = in.readUTF();
+            String sourceStamp = in.readUTF();
+
+            int count = readVarInt(in);
+            String[] titles = new String[count];
+            String[] texts = new String[count];
+            int[] lengths = new int[count];
+            for (int doc = 0; doc < count; doc++) {
+                titles[doc] = in.readUTF();
+                texts[doc] = in.readUTF();
+                lengths[doc] = readVarInt(in);
+            }
+
+            int terms = readVarInt(in);
+            Map<String, int[]> postings = new HashMap<>(terms * 2);
+            for (int t = 0; t < terms; t++) {
+                String term = in.readUTF();
+                int[] hits = new int[readVarInt(in) * 2];
+                int doc = 0;
+                for (int i = 0; i < hits.length; i += 2) {
+                    doc += readVarInt(in);
+                    if (doc >= count) throw new IOException("索引数据损坏");
+                    hits[i] = doc;
+                    hits[i + 1] = readVarInt(in);
+                }
+                postings.put(term, hits);
+            }
+            return new KnowledgeIndex(gameVersion, sourceStamp, titles, texts, lengths, postings);
+        }
+    }
+
+    /**
+     * 按 BM25 检索条目
+     */
+    public List<Hit> search(String query, int limit) {
+        Set<String> tokens = new LinkedHashSet<>(SearchTokenizer.tokenize(query));
+        if (tokens.isEmpty() || titles.length == 0) return Collections.emptyList();
+
+        Map<Integer, Float> scores = new HashMap<>();
+        Map<Integer, Integer> matched = new HashMap<>();
+        int total = titles.length;
+        for (String token : tokens) {
+            int[] hits = postings.get(token);
+            if (hits == null) continue;
+            int df = hits.length / 2;
+            double idf = Math.log(1.0 + (total - df + 0.5) / (df + 0.5));
+            for (int i = 0; i < hits.length; i += 2) {
+                int doc = hits[i];
+                int tf = hits[i + 1];
+                float norm = K1 * (1 - B + B * lengths[doc] / avgLength);
+                scores.merge(doc, (float) (idf * tf * (K1 + 1) / (tf + norm)), Float::sum);
+                matched.merge(doc, 1, Integer::sum);
+            }
+        }
+
+        List<Map.Entry<Integer, Float>> ranked = new ArrayList<>(scores.entrySet());
+        ranked.sort((a, b) -> {
+            int cmp = Float.compare(b.getValue(), a.getValue());
+            return cmp != 0 ? cmp : Integer.compare(a.getKey(), b.getKey());
+        });
+
+        List<Hit> result = new ArrayList<>();
+        for (int i = 0; i < ranked.size() && result.size() < limit; i++) {
+            int doc = ranked.get(i).getKey();
+            float coverage = (float) matched.get(doc) / tokens.size();
+            result.add(new Hit(titles[doc], texts[doc], ranked.get(i).getValue(), coverage, titleMatches(titles[doc], tokens)));
+        }
+        return result;
+    }
+
+    /**
+     * 查询是否包含条目的主题词：取标题中 / 之后、" - " 之前的部分，例如 "命令/give - 语法" 取 give；
+     * 主题词可以用逗号列出多个别名，例如 "teleport, tp"，查询包含其中任意一个即可
+     */
+    private static boolean titleMatches(String title, Set<String> queryTokens) {
+        String key = title;
+        int section = key.indexOf(" - ");
+        if (section >= 0) key = key.substring(0, section);
+        int slash = key.lastIndexOf('/');
+        if (slash >= 0) key = key.substring(slash + 1);
+        for (String alias : key.split("[,，]")) {
+            List<String> aliasTokens = SearchTokenizer.tokenize(alias);
+            if (!aliasTokens.isEmpty() && queryTokens.containsAll(aliasTokens)) return true;
+        }
+        return false;
+    }
+
+    public String getGameVersion() {
+        return gameVersion;
+    }
+
+    public String getSourceStamp() {
+        return sourceStamp;
+    }
+
+    public int size() {
+        return titles.length;
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("索引数据损坏");
+    }
+
+    /**
+     * 导入的一个知识条目
+     */
+    public static final class Entry {
+        private final String title;
+        private final String text;
+
+        public Entry(String title, String text) {
+            this.title = title;
+            this.text = text;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+
+    /**
+     * 一条检索结果
+     */
+    public static final class Hit {
+        private final String title;
+        private final String text;
+        private final float score;
+        private final float coverage;
+        private final boolean titleMatched;
+
+        private Hit(String title, String text, float score, float coverage, boolean titleMatched) {
+            this.title = title;
+            this.text = text;
+            this.score = score;
+            this.coverage = coverage;
+            this.titleMatched = titleMatched;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public float getScore() {
+            return score;
+        }
+
+        /**
+         * 查询中的词在该条目中出现的比例
+         */
+        public float getCoverage() {
+            return coverage;
+        }
+
+        /**
+         * 查询是否直接提到了该条目的主题（命令名）
+         */
+        public boolean isTitleMatched() {
+            return titleMatched;
+        }
+    }
+}
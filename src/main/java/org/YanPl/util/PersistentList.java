@@ -0,0 +1,124 @@
+package org.YanPl.util;
+
+import java.util.AbstractList;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 不可变列表，各版本之间共享底层数组
+ *
+ * 追加元素时若当前版本恰好位于共享数组的末尾，则直接写入下一个空槽（通过 CAS 占位，
+ * 保证同一个槽位只会被一个新版本使用）；从头部或尾部删除只调整可见范围，
+ * 头部被丢弃的部分超过数组一半时改为复制到新数组，使被丢弃的元素不再被新版本引用。
+ * 旧版本可见范围内的元素永远不会被改写，因此任何线程持有的版本都是一致的快照，读取无需加锁。
+ */
+public final class PersistentList<E> extends AbstractList<E> implements RandomAccess {
+    private static final int MIN_CAPACITY = 8;
+    private static final PersistentList<?> EMPTY = new PersistentList<>(new Buffer(new Object[0], 0), 0, 0);
+
+    private final Buffer buffer;
+    private final int offset;
+    private final int size;
+
+    private PersistentList(Buffer buffer, int offset, int size) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <E> PersistentList<E> empty() {
+        return (PersistentList<E>) EMPTY;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+        Objects.checkIndex(index, size);
+        return (E) buffer.items[offset + index];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 返回末尾追加一个元素后的新版本，均摊 O(1)
+     */
+    public PersistentList<E> append(E element) {
+        int end = offset + size;
+        if (end < buffer.items.length && buffer.claimed.compareAndSet(end, end + 1)) {
+            buffer.items[end] = element;
+            return new PersistentList<>(buffer, offset, size + 1);
+        }
+        // 槽位已被其他版本占用或数组已满：只复制当前可见范围
+        Object[] items = new Object[Math.max(MIN_CAPACITY, size * 2)];
+        System.arraycopy(buffer.items, offset, items, 0, size);
+        items[size] = element;
+        return new PersistentList<>(new Buffer(items, size + 1), 0, size + 1);
+    }
+
+    /**
+     * 返回去掉前 count 个元素后的新版本，均摊 O(count)
+     *
+     * 旧版本可能仍在其他线程中被读取，不能清空共享数组中的槽位；
+     * 因此当可见范围之前的部分超过数组一半时复制剩余元素，共享数组随旧版本一起被回收。
+     */
+    public PersistentList<E> dropFirst(int count) {
+        if (count <= 0) return this;
+        if (count >= size) return empty();
+        int newOffset = offset + count;
+        int newSize = size - count;
+        if (newOffset > buffer.items.length / 2) {
+            Object[] items = new Object[Math.max(MIN_CAPACITY, newSize * 2)];
+            System.arraycopy(buffer.items, newOffset, items, 0, newSize);
+            return new PersistentList<>(new Buffer(items, newSize), 0, newSize);
+        }
+        return new PersistentList<>(buffer, newOffset, newSize);
+    }
+
+    /**
+     * 返回去掉最后 count 个元素后的新版本，O(1)
+     */
+    public PersistentList<E> dropLast(int count) {
+        if (count <= 0) return this;
+        if (count >= size) return empty();
+        return new PersistentList<>(buffer, offset, size - count);
+    }
+
+    /**
+     * 返回替换指定位置元素后的新版本（需要复制，仅用于少见的修改）
+     */
+    public PersistentList<E> with(int index, E element) {
+        Objects.checkIndex(index, size);
+        Object[] items = new Object[Math.max(MIN_CAPACITY, size + size / 2)];
+        System.arraycopy(buffer.items, offset, items, 0, size);
+        items[index] = element;
+        return new PersistentList<>(new Buffer(items, size), 0, size);
+    }
+
+    /**
+     * 子列表同样是共享底层数组的不可变快照
+     */
+    @Override
+    public PersistentList<E> subList(int fromIndex, int toIndex) {
+        Objects.checkFromToIndex(fromIndex, toIndex, size);
+        if (fromIndex == toIndex) return empty();
+        return new PersistentList<>(buffer, offset + fromIndex, toIndex - fromIndex);
+    }
+
+    /**
+     * 共享数组，claimed 之前的槽位都已被某个版本使用，只能读取
+     */
+    private static final class Buffer {
+        private final Object[] items;
+        private final AtomicInteger claimed;
+
+        private Buffer(Object[] items, int claimed) {
+            this.items = items;
+            this.claimed = new AtomicInteger(claimed);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package org.YanPl.util;
+
+import java.util.*;
+
+/**
+ * 预设文档片段的 BM25 检索索引
+ *
+ * 每个预设文件按行切成若干片段（每段不超过 CHUNK_CHARS 个字符），片段前附上文件首行作为标题，
+ * 以便单独注入时模型仍知道它属于哪个插件。索引按文件增量更新，所有方法均为同步方法，可在任意线程调用。
+ */
+public class PresetChunkIndex {
+    /** 单个片段的字符数上限，超过后在行边界处切开 */
+    private static final int CHUNK_CHARS = 320;
+    private static final float K1 = 1.2f;
+    private static final float B = 0.75f;
+
+    /** 片段 ID -> 片段 */
+    private final Map<Integer, Chunk> chunks = new HashMap<>();
+    /** 文件名 -> 该文件的片段 ID */
+    private final Map<String, List<Integer>> fileChunks = new HashMap<>();
+    /** 词 -> (片段 ID -> 词频) */
+    private final Map<String, Map<Integer, Integer>> postings = new HashMap<>();
+    private long totalLength = 0;
+    private int nextId = 0;
+
+    /**
+     * 以文件的新内容替换其全部片段
+     */
+    public synchronized void update(String file, String content) {
+        remove(file);
+        List<Integer> ids = new ArrayList<>();
+        for (String text : split(content)) {
+            Chunk chunk = new Chunk(nextId++, file, text);
+            Map<String, Integer> freqs = new HashMap<>();
+            for (String token : SearchTokenizer.tokenize(text)) {
+                freqs.merge(token, 1, Integer::sum);
+                chunk.length++;
+            }
+            for (Map.Entry<String, Integer> entry : freqs.entrySet()) {
+                postings.computeIfAbsent(entry.getKey(), k -> new HashMap<>()).put(chunk.id, entry.getValue());
+            }
+            chunk.terms = freqs.keySet();
+            chunks.put(chunk.id, chunk);
+            totalLength += chunk.length;
+            ids.add(chunk.id);
+        }
+        fileChunks.put(file, ids);
+    }
+
+    /**
+     * 移除文件的全部片段
+     */
+    public synchronized void remove(String file) {
+        List<Integer> ids = fileChunks.remove(file);
+        if (ids == null) return;
+        for (Integer id : ids) {
+            Chunk chunk = chunks.remove(id);
+            if (chunk == null) continue;
+            totalLength -= chunk.length;
+            for (String term : chunk.terms) {
+                Map<Integer, Integer> posting = postings.get(term);
+                if (posting == null) continue;
+                posting.remove(id);
+                if (posting.isEmpty()) {
+                    postings.remove(term);
+                }
+            }
+        }
+    }
+
+    /**
+     * 只保留给定的文件，移除其余文件的片段
+     */
+    public synchronized void retainFiles(Collection<String> files) {
+        for (String file : new ArrayList<>(fileChunks.keySet())) {
+            if (!files.contains(file)) {
+                remove(file);
+            }
+        }
+    }
+
+    /**
+     * 按 BM25 相关度检索片段
+     *
+     * @param weightedQueries 查询文本及其权重（例如当前消息权重高于历史消息）
+     * @param limit           最多返回的片段数
+     */
+    public synchronized List<Chunk> search(Map<String, Float> weightedQueries, int limit) {
+        int total = chunks.size();
+        if (total == 0 || limit <= 0) return Collections.emptyList();
+        float avgLength = Math.max(1.0f, (float) totalLength / total);
+
+        Map<Integer, Float> scores = new HashMap<>();
+        for (Map.Entry<String, Float> query : weightedQueries.entrySet()) {
+            float queryWeight = query.getValue();
+            for (String token : new LinkedHashSet<>(SearchTokenizer.tokenize(query.getKey()))) {
+                Map<Integer, Integer> posting = postings.get(token);
+                if (posting == null) continue;
+                double idf = Math.log(1.0 + (total - posting.size() + 0.5) / (posting.size() + 0.5));
+                for (Map.Entry<Integer, Integer> hit : posting.entrySet()) {
+                    int tf = hit.getValue();
+                    float norm = K1 * (1 - B + B * chunks.get(hit.getKey()).length / avgLength);
+                    float score = (float) (idf * tf * (K1 + 1) / (tf + norm)) * queryWeight;
+                    scores.merge(hit.getKey(), score, Float::sum);
+                }
+            }
+        }
+
+        List<Map.Entry<Integer, Float>> ranked = new ArrayList<>(scores.entrySet());
+        ranked.sort((a, b) -> {
+            int cmp = Float.compare(b.getValue(), a.getValue());
+            return cmp != 0 ? cmp : Integer.compare(a.getKey(), b.getKey());
+        });
+
+        List<Chunk> result = new ArrayList<>();
+        for (int i = 0; i < ranked.size() && result.size() < limit; i++) {
+            result.add(chunks.get(ranked.get(i).getKey()));
+        }
+        return result;
+    }
+
+    public synchronized int size() {
+        return chunks.size();
+    }
+
+    /**
+     * 按行切分文件内容，首行作为标题附加到后续每个片段之前
+     */
+    private static List<String> split(String content) {
+        List<String> result = new ArrayList<>();
+        if (content == null) return result;
+
+        String[] lines = content.replace("\r", "").split("\n");
+        String title = null;
+        StringBuilder current = new StringBuilder();
+        for (String raw : lines) {
+            String line = raw.trim();
+            if (line.isEmpty()) continue;
+            if (title == null) {
+                title = line;
+                current.append(line);
+                continue;
+            }
+            if (current.length() > 0 && current.length() + line.length() + 1 > CHUNK_CHARS) {
+                result.add(current.toString());
+                current.setLength(0);
+                current.append(title);
+            }
+            current.append('\n').append(line);
+        }
+        if (current.length() > 0 && (result.isEmpty() || current.length() > title.length())) {
+            result.add(current.toString());
+        }
+        return result;
+    }
+
+    /**
+     * 预设文件中的一个片段
+     */
+    public static final class Chunk {
+        private final int id;
+        private final String file;
+        private final String text;
+        private int length;
+        private Set<String> terms = Collections.emptySet();
+
+        private Chunk(int id, String file, String text) {
+            this.id = id;
+            this.file = file;
+            this.text = text;
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+}
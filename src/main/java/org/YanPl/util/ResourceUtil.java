@@ -3,9 +3,15 @@ package org.YanPl.util;
 import org.YanPl.MineAgent;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Enumeration;
+import java.util.Properties;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
@@ -67,4 +73,101 @@ public class ResourceUtil {
             }
         }
     }
+
+    /**
+     * 按清单同步 JAR 包中指定目录下的文件
+     *
+     * 清单记录插件 JAR 的大小与修改时间，以及每个已释放文件在 JAR 中的 CRC 和释放后的磁盘大小、修改时间：
+     * JAR 未变化且文件都在时不打开 JAR；JAR 变化时只比较目录中的 CRC（无需读取内容），
+     * 内容变化且磁盘文件未被用户修改过的才重新写出，缺失的文件总会释放，用户修改过的文件保持不变。
+     *
+     * @param manifestFile 清单文件
+     * @return 写出的文件数
+     */
+    public static int syncResources(MineAgent plugin, String resourceDir, String extension, File manifestFile) {
+        if (!resourceDir.endsWith("/")) {
+            resourceDir += "/";
+        }
+
+        Properties manifest = new Properties();
+        if (manifestFile.isFile()) {
+            try (InputStream in = Files.newInputStream(manifestFile.toPath())) {
+                manifest.load(in);
+            } catch (IOException e) {
+                plugin.getLogger().warning("读取资源清单失败，将重新检查全部资源: " + e.getMessage());
+                manifest.clear();
+            }
+        }
+
+        int written = 0;
+        try {
+            File jarFile = getJarFile(plugin);
+            String jarStamp = jarStamp(plugin);
+            if (jarStamp.equals(manifest.getProperty("jar")) && allExtracted(plugin, manifest)) {
+                return 0;
+            }
+
+            try (JarFile jar = new JarFile(jarFile)) {
+                Enumeration<JarEntry> entries = jar.entries();
+                while (entries.hasMoreElements()) {
+                    JarEntry entry = entries.nextElement();
+                    String name = entry.getName();
+                    if (!name.startsWith(resourceDir) || entry.isDirectory()) continue;
+                    if (extension != null && !name.endsWith(extension)) continue;
+
+                    File target = new File(plugin.getDataFolder(), name);
+                    String crc = Long.toHexString(entry.getCrc());
+                    String recorded = manifest.getProperty("file." + name);
+                    if (target.exists()) {
+                        // 没有记录的已有文件来源不明（旧版本释放或用户放入），保持不变
+                        if (recorded == null) continue;
+                        String[] parts = recorded.split(":");
+                        if (parts.length != 3 || parts[0].equals(crc)) continue;
+                        // JAR 中的内容已更新，但用户改过磁盘上的文件时不覆盖
+                        if (!(target.length() + ":" + target.lastModified()).equals(parts[1] + ":" + parts[2])) continue;
+                    }
+
+                    target.getParentFile().mkdirs();
+                    try (InputStream in = jar.getInputStream(entry)) {
+                        Files.copy(in, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    manifest.setProperty("file." + name, crc + ":" + target.length() + ":" + target.lastModified());
+                    written++;
+                }
+            }
+            manifest.setProperty("jar", jarStamp);
+
+            try (OutputStream out = Files.newOutputStream(manifestFile.toPath())) {
+                manifest.store(out, "MineAgent resource manifest");
+            }
+        } catch (Exception e) {
+            plugin.getLogger().warning("同步资源目录 " + resourceDir + " 时出错: " + e.getMessage());
+        }
+        return written;
+    }
+
+    /**
+     * 插件 JAR 的大小与修改时间，用于判断插件是否被更新过；无法定位 JAR 时返回空字符串
+     */
+    public static String jarStamp(MineAgent plugin) {
+        try {
+            File jarFile = getJarFile(plugin);
+            return jarFile.length() + ":" + jarFile.lastModified();
+        } catch (Exception e) {
+            return "";
+        }
+    }
+
+    private static File getJarFile(MineAgent plugin) throws Exception {
+        return new File(plugin.getClass().getProtectionDomain().getCodeSource().getLocation().toURI());
+    }
+
+    private static boolean allExtracted(MineAgent plugin, Properties manifest) {
+        for (String key : manifest.stringPropertyNames()) {
+            if (key.startsWith("file.") && !new File(plugin.getDataFolder(), key.substring("file.".length())).exists()) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
@@ -0,0 +1,265 @@
+package org.YanPl.util;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * 搜索结果缓存：按来源与规范化查询词缓存，带 TTL、条目数/字节数上限与 LRU 淘汰
+ *
+ * 相同查询的并发请求会合并为一次实际请求（single-flight），缓存可持久化到插件数据目录。
+ */
+public class SearchCache {
+    private final long ttlMillis;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Flight> inFlight = new HashMap<>();
+    private long currentBytes = 0;
+    private boolean dirty = false;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    public SearchCache(long ttlMillis, int maxEntries, long maxBytes) {
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 生成缓存键：来源 + 规范化后的查询词（小写、合并空白）
+     */
+    public static String key(String source, String query) {
+        return source + ":" + query.trim().toLowerCase().replaceAll("\\s+", " ");
+    }
+
+    /**
+     * 读取缓存，未命中时调用 loader 加载；同一键同时只会有一个 loader 在执行
+     *
+     * @param cacheable 判断结果是否可以缓存（例如错误信息不应缓存）
+     * @return 结果 Future；取消它不会影响其他等待同一请求的调用方，所有调用方都取消后才会取消 loader
+     */
+    public CompletableFuture<String> getOrLoad(String key, Supplier<CompletableFuture<String>> loader, Predicate<String> cacheable) {
+        String cached = get(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        Flight flight;
+        boolean created = false;
+        synchronized (inFlight) {
+            flight = inFlight.get(key);
+            if (flight == null) {
+                flight = new Flight();
+                inFlight.put(key, flight);
+                created = true;
+            }
+            flight.waiters++;
+        }
+
+        if (created) {
+            misses.incrementAndGet();
+            Flight owner = flight;
+            CompletableFuture<String> load;
+            try {
+                load = loader.get();
+            } catch (Exception e) {
+                load = new CompletableFuture<>();
+                load.completeExceptionally(e);
+            }
+            // 加载开始后、记录之前，等待者可能已全部离开；此时 release 取消不到加载，需要在这里补上
+            boolean abandoned;
+            synchronized (inFlight) {
+                owner.load = load;
+                abandoned = owner.waiters == 0;
+            }
+            load.whenComplete((value, error) -> {
+                if (error == null && value != null && cacheable.test(value)) {
+                    put(key, value);
+                }
+                synchronized (inFlight) {
+                    inFlight.remove(key, owner);
+                }
+                if (error != null) {
+                    owner.shared.completeExceptionally(error);
+                } else {
+                    owner.shared.complete(value);
+                }
+            });
+            if (abandoned) {
+                load.cancel(true);
+            }
+        } else {
+            coalesced.incrementAndGet();
+        }
+
+        Flight joined = flight;
+        CompletableFuture<String> result = joined.shared.thenApply(value -> value);
+        result.whenComplete((value, error) -> {
+            if (result.isCancelled()) {
+                release(key, joined);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 调用方取消等待；最后一个调用方离开时取消正在进行的加载（例如中断 HTTP 请求）
+     */
+    private void release(String key, Flight flight) {
+        CompletableFuture<String> load;
+        synchronized (inFlight) {
+            if (--flight.waiters > 0 || flight.shared.isDone()) return;
+            inFlight.remove(key, flight);
+            load = flight.load;
+        }
+        if (load != null) {
+            load.cancel(true);
+        }
+    }
+
+    private synchronized String get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) return null;
+        if (entry.expiresAt < System.currentTimeMillis()) {
+            removeEntry(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    private synchronized void put(String key, String value) {
+        Entry entry = new Entry();
+        entry.value = value;
+        entry.expiresAt = System.currentTimeMillis() + ttlMillis;
+        entry.bytes = estimateBytes(key, value);
+        if (entry.bytes > maxBytes) return;
+
+        removeEntry(key);
+        entries.put(key, entry);
+        currentBytes += entry.bytes;
+        dirty = true;
+        evictIfNeeded();
+    }
+
+    private void removeEntry(String key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            currentBytes -= removed.bytes;
+            dirty = true;
+        }
+    }
+
+    /**
+     * 按 LRU 顺序淘汰，直到满足条目数与字节数上限
+     */
+    private void evictIfNeeded() {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || currentBytes > maxBytes) && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            currentBytes -= eldest.getValue().bytes;
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private long estimateBytes(String key, String value) {
+        return (key.length() + value.length()) * 2L + 64;
+    }
+
+    /**
+     * 从文件加载缓存，过期条目会被丢弃
+     */
+    public synchronized void load(File file) throws IOException {
+        if (!file.exists()) return;
+        Map<String, Entry> stored;
+        try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            stored = new Gson().fromJson(reader, new TypeToken<LinkedHashMap<String, Entry>>() {}.getType());
+        }
+        if (stored == null) return;
+
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Entry> item : stored.entrySet()) {
+            Entry entry = item.getValue();
+            if (entry == null || entry.value == null || entry.expiresAt < now) continue;
+            entry.bytes = estimateBytes(item.getKey(), entry.value);
+            entries.put(item.getKey(), entry);
+            currentBytes += entry.bytes;
+        }
+        evictIfNeeded();
+        dirty = false;
+    }
+
+    /**
+     * 缓存有变化时写入文件（先写临时文件再替换，避免写到一半时损坏）
+     */
+    public void save(File file) throws IOException {
+        Map<String, Entry> snapshot;
+        synchronized (this) {
+            if (!dirty) return;
+            snapshot = new LinkedHashMap<>(entries);
+            dirty = false;
+        }
+
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+            new Gson().toJson(snapshot, writer);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * 一次正在进行的加载及其等待者数量
+     */
+    private static class Flight {
+        private final CompletableFuture<String> shared = new CompletableFuture<>();
+        private CompletableFuture<String> load;
+        private int waiters = 0;
+    }
+
+    private static class Entry {
+        private String value;
+        private long expiresAt;
+        private transient long bytes;
+    }
+}
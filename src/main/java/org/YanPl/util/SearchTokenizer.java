@@ -0,0 +1,69 @@
+package org.YanPl.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 检索用分词器：英文/数字按连续字符切词并转小写，中日韩文字切成二元组
+ */
+public class SearchTokenizer {
+
+    private SearchTokenizer() {}
+
+    public static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null || text.isEmpty()) return tokens;
+
+        StringBuilder word = new StringBuilder();
+        StringBuilder cjk = new StringBuilder();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (isCjk(c)) {
+                flushWord(word, tokens);
+                cjk.append(c);
+            } else if (Character.isLetterOrDigit(c) || c == '_' || c == '-') {
+                flushCjk(cjk, tokens);
+                word.append(Character.toLowerCase(c));
+            } else {
+                flushWord(word, tokens);
+                flushCjk(cjk, tokens);
+            }
+        }
+        flushWord(word, tokens);
+        flushCjk(cjk, tokens);
+        return tokens;
+    }
+
+    public static boolean isCjk(char c) {
+        Character.UnicodeBlock block = Character.UnicodeBlock.of(c);
+        return block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS
+                || block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_A
+                || block == Character.UnicodeBlock.CJK_COMPATIBILITY_IDEOGRAPHS
+                || block == Character.UnicodeBlock.HIRAGANA
+                || block == Character.UnicodeBlock.KATAKANA
+                || block == Character.UnicodeBlock.HANGUL_SYLLABLES;
+    }
+
+    private static void flushWord(StringBuilder word, List<String> tokens) {
+        // 去掉首尾的连接符，例如 "-s" 中的 "-"
+        int start = 0;
+        int end = word.length();
+        while (start < end && (word.charAt(start) == '-' || word.charAt(start) == '_')) start++;
+        while (end > start && (word.charAt(end - 1) == '-' || word.charAt(end - 1) == '_')) end--;
+        if (end > start) {
+            tokens.add(word.substring(start, end));
+        }
+        word.setLength(0);
+    }
+
+    private static void flushCjk(StringBuilder cjk, List<String> tokens) {
+        if (cjk.length() == 1) {
+            tokens.add(cjk.toString());
+        } else {
+            for (int i = 0; i + 1 < cjk.length(); i++) {
+                tokens.add(cjk.substring(i, i + 2));
+            }
+        }
+        cjk.setLength(0);
+    }
+}
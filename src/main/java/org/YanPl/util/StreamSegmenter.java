@@ -0,0 +1,233 @@
+package org.YanPl.util;
+
+import java.util.List;
+
+/**
+ * 流式回复分段器，负责把 AI 的增量文本切成可以立即展示给玩家的句子
+ *
+ * 思考内容、可能是工具调用的末尾部分以及未闭合的高亮/代码块都会被暂存，
+ * 直到流结束后再由 CLIManager 统一处理。
+ *
+ * 所有扫描都是增量的：原始文本中已确定的部分只清理一次并追加到 clean，
+ * 工具调用与高亮/代码块标记也只从上次停下的位置继续扫描，每段增量的处理时间与其长度成正比。
+ */
+public class StreamSegmenter {
+    private static final String SENTENCE_ENDS = "\n。！？!?；;";
+    private static final String THOUGHT_OPEN = "<thought>";
+    private static final String THOUGHT_CLOSE = "</thought>";
+    private static final String[] THOUGHT_PREFIXES = {"thought:", "思考过程:"};
+    private static final String CODE_MARK = "```";
+    private static final String BOLD_MARK = "**";
+
+    private final List<String> knownTools;
+    private final StringBuilder raw = new StringBuilder();
+    /** 已移除思考内容、不会再变化的正文 */
+    private final StringBuilder clean = new StringBuilder();
+    /** raw 中已处理到的位置 */
+    private int rawScanned = 0;
+    /** clean 中已确认不是工具调用的 # 之前的位置 */
+    private int toolScanned = 0;
+    /** clean 中已统计过标记与句子边界的位置 */
+    private int markScanned = 0;
+    /** 已统计的 ``` 与 ** 个数的奇偶 */
+    private boolean codeOpen = false;
+    private boolean boldOpen = false;
+    /** 已扫描部分中最后一个标记成对的句子边界 */
+    private int boundary = 0;
+    private int flushed = 0;
+    private boolean emitted = false;
+
+    public StreamSegmenter(List<String> knownTools) {
+        this.knownTools = knownTools;
+    }
+
+    /**
+     * 清理思考内容（与非流式路径保持一致，不做 trim）
+     */
+    public static String cleanResponse(String response) {
+        return ToolCallLexer.stripThoughts(response);
+    }
+
+    /**
+     * 追加一段增量文本，返回当前可以安全展示的新片段（可能为空字符串）
+     */
+    public String append(String delta) {
+        raw.append(delta);
+        advanceClean();
+        int limit = findToolStart();
+        advanceBoundary(limit);
+        if (boundary <= flushed) {
+            return "";
+        }
+
+        String segment = clean.substring(flushed, boundary).trim();
+        flushed = boundary;
+        if (!segment.isEmpty()) {
+            emitted = true;
+        }
+        return segment;
+    }
+
+    /**
+     * 流结束后，根据最终解析出的正文计算尚未展示的剩余部分
+     *
+     * @param fullResponse 完整的原始回复
+     * @param content      CLIManager 解析出的正文（已 trim，不含工具调用）
+     */
+    public String remainder(String fullResponse, String content) {
+        String clean = cleanResponse(fullResponse);
+        int leading = 0;
+        while (leading < clean.length() && Character.isWhitespace(clean.charAt(leading))) {
+            leading++;
+        }
+        int shown = Math.max(0, flushed - leading);
+        if (shown >= content.length()) {
+            return "";
+        }
+        return content.substring(shown).trim();
+    }
+
+    /**
+     * 是否已经向玩家展示过至少一段内容
+     */
+    public boolean hasEmitted() {
+        return emitted;
+    }
+
+    /**
+     * 把 raw 中已经确定的部分移除思考内容后追加到 clean，规则与 ToolCallLexer.stripThoughts 一致；
+     * 未闭合的思考块、可能是思考标记开头的末尾以及开头尚未结束的 Thought: 行都留到下次再处理
+     */
+    private void advanceClean() {
+        int n = raw.length();
+        while (rawScanned < n) {
+            char c = raw.charAt(rawScanned);
+            if (c == '<') {
+                if (matchesAt(raw, rawScanned, THOUGHT_OPEN, false)) {
+                    int close = raw.indexOf(THOUGHT_CLOSE, rawScanned + THOUGHT_OPEN.length());
+                    if (close == -1) return;
+                    rawScanned = close + THOUGHT_CLOSE.length();
+                    continue;
+                }
+                if (isPartialAt(raw, rawScanned, THOUGHT_OPEN)) return;
+            }
+            if (clean.length() == 0) {
+                int skip = thoughtLineEnd();
+                if (skip == -1) return;
+                if (skip > rawScanned) {
+                    rawScanned = skip;
+                    continue;
+                }
+            }
+            clean.append(c);
+            rawScanned++;
+        }
+    }
+
+    /**
+     * 正文开头的 Thought: 行
+     *
+     * @return 是该行且已完整时返回行尾之后的位置；可能是该行但尚未结束时返回 -1；否则返回 rawScanned
+     */
+    private int thoughtLineEnd() {
+        for (String prefix : THOUGHT_PREFIXES) {
+            if (matchesAt(raw, rawScanned, prefix, true)) {
+                int newline = raw.indexOf("\n", rawScanned + prefix.length());
+                return newline == -1 ? -1 : newline + 1;
+            }
+            if (isPartialAt(raw, rawScanned, prefix)) {
+                return -1;
+            }
+        }
+        return rawScanned;
+    }
+
+    /**
+     * 查找第一个可能是工具调用的 # 位置，其后的内容要等流结束再处理
+     *
+     * 末尾长度不足以判断的 # 暂按工具调用处理；确认不是工具调用的 # 不会再检查。
+     */
+    private int findToolStart() {
+        int index = clean.indexOf("#", Math.max(toolScanned, flushed));
+        while (index != -1) {
+            if (mayBeTool(index)) {
+                toolScanned = index;
+                return index;
+            }
+            index = clean.indexOf("#", index + 1);
+        }
+        toolScanned = clean.length();
+        return clean.length();
+    }
+
+    private boolean mayBeTool(int index) {
+        int available = clean.length() - index;
+        for (String tool : knownTools) {
+            if (regionEqualsIgnoreCase(clean, index, tool, Math.min(available, tool.length()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 从上次停下的位置继续扫描到 limit，累计标记的奇偶并记录最后一个标记成对的句子边界
+     */
+    private void advanceBoundary(int limit) {
+        int i = markScanned;
+        while (i < limit) {
+            char c = clean.charAt(i);
+            if (SENTENCE_ENDS.indexOf(c) != -1) {
+                if (!codeOpen && !boldOpen) {
+                    boundary = i + 1;
+                }
+                i++;
+            } else if (c == '`' || c == '*') {
+                String mark = c == '`' ? CODE_MARK : BOLD_MARK;
+                // 标记可能还没有完整到达，等待后续文本
+                if (isPartialAt(clean, i, mark)) break;
+                if (matchesAt(clean, i, mark, false)) {
+                    if (c == '`') {
+                        codeOpen = !codeOpen;
+                    } else {
+                        boldOpen = !boldOpen;
+                    }
+                    i += mark.length();
+                } else {
+                    i++;
+                }
+            } else {
+                i++;
+            }
+        }
+        markScanned = i;
+    }
+
+    private static boolean matchesAt(CharSequence text, int at, String marker, boolean ignoreCase) {
+        if (at + marker.length() > text.length()) return false;
+        return ignoreCase ? regionEqualsIgnoreCase(text, at, marker, marker.length())
+                : regionEquals(text, at, marker, marker.length());
+    }
+
+    /**
+     * text 从 at 开始到末尾是否为 marker 的真前缀（不区分大小写），即标记可能还没有完整到达
+     */
+    private static boolean isPartialAt(CharSequence text, int at, String marker) {
+        int available = text.length() - at;
+        return available < marker.length() && regionEqualsIgnoreCase(text, at, marker, available);
+    }
+
+    private static boolean regionEquals(CharSequence text, int at, String marker, int length) {
+        for (int k = 0; k < length; k++) {
+            if (text.charAt(at + k) != marker.charAt(k)) return false;
+        }
+        return true;
+    }
+
+    private static boolean regionEqualsIgnoreCase(CharSequence text, int at, String marker, int length) {
+        for (int k = 0; k < length; k++) {
+            if (Character.toLowerCase(text.charAt(at + k)) != Character.toLowerCase(marker.charAt(k))) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,130 @@
+package org.YanPl.util;
+
+import org.YanPl.MineAgent;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+
+/**
+ * Token 计数入口
+ *
+ * 词表加载成功后使用 BPE 精确计数；词表缺失时退化为按字符类别估算（中文每字约 1 个 Token）。
+ * 每次切换计数方式都会递增版本号，缓存了计数结果的对象据此判断是否需要重新计算。
+ */
+public final class TokenCounter {
+    /** 每条消息在对话格式中额外占用的 Token（角色标记与分隔符） */
+    public static final int MESSAGE_OVERHEAD = 4;
+
+    private static volatile BpeTokenizer tokenizer;
+    private static volatile int version = 0;
+    /** 使用估算时说明原因与启用精确计数的方法，精确计数时为 null */
+    private static volatile String fallbackReason;
+
+    private TokenCounter() {}
+
+    /**
+     * 统计文本的 Token 数
+     */
+    public static int count(String text) {
+        if (text == null || text.isEmpty()) return 0;
+        BpeTokenizer current = tokenizer;
+        return current != null ? current.count(text) : estimate(text);
+    }
+
+    /**
+     * 计数方式的版本号，词表加载或卸载后变化
+     */
+    public static int getVersion() {
+        return version;
+    }
+
+    public static boolean isExact() {
+        return tokenizer != null;
+    }
+
+    /**
+     * 当前计数方式的说明，估算时附带原因与启用精确计数的方法，用于 /cli status
+     */
+    public static String describe() {
+        BpeTokenizer current = tokenizer;
+        if (current != null) {
+            return current.getEncoding() + " (" + current.getVocabularySize() + " 词)";
+        }
+        String reason = fallbackReason;
+        return reason == null ? "近似估算" : "近似估算（" + reason + "）";
+    }
+
+    /**
+     * 根据配置的模型加载对应的词表，应在异步线程中调用
+     *
+     * 依次查找数据目录下的 tokenizer/&lt;编码&gt;.tiktoken 与插件内置资源；都不存在时使用估算。
+     */
+    public static void load(MineAgent plugin) {
+        String encoding = plugin.getConfigManager().getTokenizerEncoding();
+        if (encoding == null || encoding.isEmpty() || encoding.equalsIgnoreCase("none")) {
+            install(null);
+            fallbackReason = "当前模型没有可用的词表";
+            plugin.getLogger().info("[Tokenizer] 当前模型没有可用的词表，使用近似估算。");
+            return;
+        }
+
+        String path = "tokenizer/" + encoding + ".tiktoken";
+        File file = new File(plugin.getDataFolder(), path);
+        long start = System.currentTimeMillis();
+        try (InputStream in = file.exists() ? new FileInputStream(file) : plugin.getResource(path)) {
+            if (in == null) {
+                install(null);
+                fallbackReason = "未找到 plugins/" + plugin.getName() + "/" + path + "，放入后执行 /cli reload 启用精确计数";
+                plugin.getLogger().warning("[Tokenizer] 未找到词表 " + path + "，Token 数仅为近似估算，上下文预算与历史压缩可能偏差较大。"
+                        + "请将 " + encoding + ".tiktoken 放入 " + file.getParentFile().getPath() + " 后执行 /cli reload 启用精确计数。");
+                return;
+            }
+            BpeTokenizer loaded = BpeTokenizer.load(encoding, in);
+            install(loaded);
+            fallbackReason = null;
+            plugin.getLogger().info("[Tokenizer] 已加载词表 " + encoding + "，共 " + loaded.getVocabularySize()
+                    + " 个 Token，耗时 " + (System.currentTimeMillis() - start) + "ms");
+        } catch (Exception e) {
+            install(null);
+            fallbackReason = "词表 " + path + " 加载失败，详见控制台";
+            plugin.getLogger().warning("[Tokenizer] 加载词表 " + path + " 失败，使用近似估算: " + e.getMessage());
+        }
+    }
+
+    private static synchronized void install(BpeTokenizer newTokenizer) {
+        if (tokenizer == null && newTokenizer == null) return;
+        tokenizer = newTokenizer;
+        version++;
+    }
+
+    /**
+     * 没有词表时的估算：英文与数字约 4 个字符 1 个 Token，中文等表意文字每字 1 个 Token，
+     * 标点每个 1 个 Token，换行 1 个 Token，其余空白并入相邻 Token
+     */
+    static int estimate(String text) {
+        int tokens = 0;
+        int asciiRun = 0;
+        for (int i = 0; i < text.length(); ) {
+            int cp = text.codePointAt(i);
+            i += Character.charCount(cp);
+
+            if (cp < 128 && Character.isLetterOrDigit(cp)) {
+                asciiRun++;
+                continue;
+            }
+            tokens += (asciiRun + 3) / 4;
+            asciiRun = 0;
+
+            if (Character.isWhitespace(cp)) {
+                if (cp == '\n') tokens++;
+            } else if (cp > 0xFFFF) {
+                // 表情等补充平面字符通常被拆成多个字节级 Token
+                tokens += 2;
+            } else {
+                tokens++;
+            }
+        }
+        return tokens + (asciiRun + 3) / 4;
+    }
+}
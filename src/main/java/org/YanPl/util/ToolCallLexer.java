@@ -0,0 +1,221 @@
+package org.YanPl.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * AI 回复的单遍词法分析器：一次扫描同时移除思考内容、提取按顺序排列的工具调用并保留正文
+ *
+ * 工具调用以 #工具名 开头，其后直到行尾都是参数，因此参数中的 # 不会被误认为新的调用。
+ * 独占一行的调用总是有效；写在正文行末尾的调用只有在其后不再出现正文时才有效，否则按正文处理。
+ */
+public class ToolCallLexer {
+    private static final String THOUGHT_OPEN = "<thought>";
+    private static final String THOUGHT_CLOSE = "</thought>";
+    private static final List<String> THOUGHT_PREFIXES = Arrays.asList("thought:", "思考过程:");
+
+    /** 已知工具名（小写，含 #），构造时确定 */
+    private final Set<String> tools;
+
+    public ToolCallLexer(Collection<String> knownTools) {
+        Set<String> names = new HashSet<>();
+        for (String tool : knownTools) {
+            names.add(tool.toLowerCase(Locale.ROOT));
+        }
+        this.tools = Collections.unmodifiableSet(names);
+    }
+
+    /**
+     * 解析完整回复
+     */
+    public Result parse(String response) {
+        List<ToolCall> calls = new ArrayList<>();
+        String content = scan(response, tools, calls);
+        return new Result(content.trim(), calls);
+    }
+
+    /**
+     * 只移除思考内容（不做 trim），供流式分段与摘要使用
+     */
+    public static String stripThoughts(String response) {
+        return scan(response, Collections.emptySet(), null);
+    }
+
+    private static String scan(String text, Set<String> tools, List<ToolCall> calls) {
+        int n = text.length();
+        StringBuilder content = new StringBuilder(n);
+        // 写在正文行末尾、尚待确认的调用：之后出现正文时撤回，把原文还给正文
+        ToolCall pending = null;
+        int pendingAt = -1;
+        String pendingSource = null;
+        boolean lineBlank = true;
+
+        int i = 0;
+        while (i < n) {
+            if (text.startsWith(THOUGHT_OPEN, i)) {
+                // 未闭合的思考块一直延续到回复末尾
+                int close = text.indexOf(THOUGHT_CLOSE, i + THOUGHT_OPEN.length());
+                i = close == -1 ? n : close + THOUGHT_CLOSE.length();
+                continue;
+            }
+            // 回复开头的 Thought: 行（有换行时才视为完整的一行）
+            if (content.length() == 0 && (calls == null || calls.isEmpty())) {
+                int skip = thoughtPrefixLineEnd(text, i);
+                if (skip != -1) {
+                    i = skip;
+                    continue;
+                }
+            }
+
+            char c = text.charAt(i);
+            if (c == '#' && calls != null && (lineBlank || !Character.isLetterOrDigit(text.charAt(i - 1)))) {
+                int nameEnd = i + 1;
+                while (nameEnd < n && isNameChar(text.charAt(nameEnd))) nameEnd++;
+                String name = text.substring(i, nameEnd).toLowerCase(Locale.ROOT);
+                if (tools.contains(name) && (nameEnd == n || isArgsSeparator(text.charAt(nameEnd)))) {
+                    int lineEnd = text.indexOf('\n', nameEnd);
+                    if (lineEnd == -1) lineEnd = n;
+                    ToolCall call = new ToolCall(name, text.substring(i, nameEnd), parseArgs(text.substring(nameEnd, lineEnd)));
+                    calls.add(call);
+                    if (!lineBlank) {
+                        pending = call;
+                        pendingAt = content.length();
+                        pendingSource = text.substring(i, lineEnd);
+                    }
+                    i = lineEnd;
+                    continue;
+                }
+            }
+
+            if (c == '\n') {
+                lineBlank = true;
+            } else if (!Character.isWhitespace(c)) {
+                lineBlank = false;
+                if (pending != null) {
+                    calls.remove(pending);
+                    content.insert(pendingAt, pendingSource);
+                    pending = null;
+                }
+            }
+            content.append(c);
+            i++;
+        }
+        return content.toString();
+    }
+
+    private static int thoughtPrefixLineEnd(String text, int start) {
+        for (String prefix : THOUGHT_PREFIXES) {
+            if (text.regionMatches(true, start, prefix, 0, prefix.length())) {
+                int newline = text.indexOf('\n', start + prefix.length());
+                return newline == -1 ? -1 : newline + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isNameChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    private static boolean isArgsSeparator(char c) {
+        return c == ':' || c == '：' || Character.isWhitespace(c);
+    }
+
+    private static String parseArgs(String raw) {
+        String args = raw.trim();
+        if (args.startsWith(":") || args.startsWith("：")) {
+            args = args.substring(1).trim();
+        }
+        return args;
+    }
+
+    /**
+     * 一次工具调用
+     */
+    public static class ToolCall {
+        private final String name;
+        private final String rawName;
+        private final String args;
+        private final String callId;
+
+        public ToolCall(String name, String rawName, String args) {
+            this(name, rawName, args, null);
+        }
+
+        /**
+         * @param callId 原生函数调用的 call_id，结果需要以对应的函数输出返回；文本调用为 null
+         */
+        public ToolCall(String name, String rawName, String args, String callId) {
+            this.name = name;
+            this.rawName = rawName;
+            this.args = args;
+            this.callId = callId;
+        }
+
+        /**
+         * 小写的工具名，含 #
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * AI 原样写出的工具名，用于展示
+         */
+        public String getRawName() {
+            return rawName;
+        }
+
+        public String getArgs() {
+            return args;
+        }
+
+        public String getCallId() {
+            return callId;
+        }
+
+        /**
+         * 按逗号拆分的参数（用于 #choose 等列表参数），忽略空项
+         */
+        public List<String> getArgList() {
+            List<String> list = new ArrayList<>();
+            for (String part : args.split("[,，]")) {
+                String trimmed = part.trim();
+                if (!trimmed.isEmpty()) list.add(trimmed);
+            }
+            return list;
+        }
+
+        @Override
+        public String toString() {
+            return args.isEmpty() ? rawName : rawName + ": " + args;
+        }
+    }
+
+    /**
+     * 解析结果：去掉思考内容与工具调用后的正文，以及按出现顺序排列的工具调用
+     */
+    public static class Result {
+        private final String content;
+        private final List<ToolCall> calls;
+
+        private Result(String content, List<ToolCall> calls) {
+            this.content = content;
+            this.calls = Collections.unmodifiableList(calls);
+        }
+
+        public String getContent() {
+            return content;
+        }
+
+        public List<ToolCall> getCalls() {
+            return calls;
+        }
+    }
+}